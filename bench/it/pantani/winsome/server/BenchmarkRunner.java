@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esegue una singola operazione in ciclo su uno o più thread e ne misura il throughput. Ogni misura è preceduta da
+ * una fase di riscaldamento (per dare tempo al JIT di compilare il codice) con la stessa durata per tutti i thread;
+ * i thread partono insieme per avere la massima contesa possibile nella modalità con più thread.
+ */
+class BenchmarkRunner {
+    private final long warmup_ms;
+    private final long measure_ms;
+
+    // somma dei risultati delle operazioni, serve solo ad impedire che il JIT elimini il codice misurato
+    private final AtomicLong sink = new AtomicLong();
+
+    /**
+     * Operazione da misurare
+     */
+    interface Operation {
+        /**
+         * Esegue l'operazione una volta
+         * @param random generatore casuale del thread corrente
+         * @return il risultato dell'operazione (può essere null), consumato dal runner
+         * @throws Throwable le eccezioni lanciate dal social (che estendono Throwable) sono considerate parte
+         * dell'operazione
+         */
+        Object run(Random random) throws Throwable;
+    }
+
+    /**
+     * Risultato di una misura
+     */
+    static class Result {
+        final String name;
+        final int threads;
+        final long ops;
+        final long elapsed_ns;
+
+        Result(String name, int threads, long ops, long elapsed_ns) {
+            this.name = name;
+            this.threads = threads;
+            this.ops = ops;
+            this.elapsed_ns = elapsed_ns;
+        }
+
+        /**
+         * @return operazioni al secondo, sommate su tutti i thread
+         */
+        double getThroughput() {
+            return ops / (elapsed_ns / 1e9);
+        }
+
+        /**
+         * @return tempo medio di una operazione vista da un singolo thread, in microsecondi
+         */
+        double getAverageMicros() {
+            return ops == 0 ? 0 : (elapsed_ns * (double) threads) / ops / 1000.0;
+        }
+    }
+
+    /**
+     * @param warmup_ms durata del riscaldamento in millisecondi
+     * @param measure_ms durata della misura in millisecondi
+     */
+    BenchmarkRunner(long warmup_ms, long measure_ms) {
+        this.warmup_ms = warmup_ms;
+        this.measure_ms = measure_ms;
+    }
+
+    /**
+     * Misura un'operazione
+     * @param name il nome della misura
+     * @param threads il numero di thread che eseguono l'operazione contemporaneamente
+     * @param op l'operazione da misurare
+     * @return il risultato della misura
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa dei thread della misura
+     */
+    Result run(String name, int threads, Operation op) throws InterruptedException {
+        loop(threads, op, warmup_ms);
+        long start = System.nanoTime();
+        long ops = loop(threads, op, measure_ms);
+        return new Result(name, threads, ops, System.nanoTime() - start);
+    }
+
+    /**
+     * Esegue l'operazione su tutti i thread fino allo scadere del tempo
+     * @return il numero di operazioni eseguite in totale
+     */
+    private long loop(int threads, Operation op, long duration_ms) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong total = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                Random random = ThreadLocalRandom.current();
+                long count = 0;
+                long hash = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + duration_ms * 1_000_000L;
+                    do {
+                        // controllo il tempo ogni 16 operazioni per non misurare soprattutto nanoTime()
+                        for(int j = 0; j < 16; j++) {
+                            Object result;
+                            try {
+                                result = op.run(random);
+                            } catch(RuntimeException | Error e) {
+                                throw e; // errore nel codice misurato, non un'eccezione del social
+                            } catch(Throwable e) {
+                                result = e;
+                            }
+                            if(result != null) hash += result.hashCode();
+                        }
+                        count += 16;
+                    } while(System.nanoTime() < deadline);
+                } catch(InterruptedException ignored) {
+                } finally {
+                    total.addAndGet(count);
+                    sink.addAndGet(hash);
+                    done.countDown();
+                }
+            }, "bench-" + i);
+            workers[i].start();
+        }
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+
+    /**
+     * @return il valore accumulato dai risultati delle operazioni (da stampare, così non è eliminabile)
+     */
+    long getSink() {
+        return sink.get();
+    }
+}
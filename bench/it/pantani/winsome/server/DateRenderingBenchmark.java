@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.shared.Utils;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Misura tempo e memoria allocata per ogni data formattata, confrontando Utils.getFormattedDate con la versione
+ * precedente (che creava un nuovo DateTimeFormatter ad ogni chiamata). Le date sono di due tipi: quelle dei post di un
+ * blog o di un feed (ognuna in un secondo diverso) e quelle delle transazioni di un portafoglio (i premi di uno stesso
+ * ciclo hanno tutti lo stesso secondo). Parametri: dates (date per ogni misura, default 200000) e rounds (default 5,
+ * viene stampata l'ultima, le precedenti servono da riscaldamento).
+ *   java ... it.pantani.winsome.server.DateRenderingBenchmark dates=200000
+ * La memoria allocata è letta da com.sun.management.ThreadMXBean, disponibile nelle JVM HotSpot e OpenJ9.
+ */
+public class DateRenderingBenchmark {
+    private static final long SEED = 598896;
+
+    private static volatile int sink; // impedisce che le stringhe formattate vengano eliminate dal compilatore JIT
+
+    public static void main(String[] args) {
+        int dates = 200000;
+        int rounds = 5;
+        for(String arg : args) {
+            try {
+                String[] kv = arg.split("=", 2);
+                if(kv.length == 2 && kv[0].equals("dates")) dates = Integer.parseInt(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("rounds")) rounds = Integer.parseInt(kv[1]);
+                else {
+                    System.err.println("[!] Parametro sconosciuto: " + arg);
+                    return;
+                }
+            } catch(NumberFormatException e) {
+                System.err.println("[!] Valore non valido per il parametro: " + arg);
+                return;
+            }
+        }
+
+        Random random = new Random(SEED);
+        long now = System.currentTimeMillis();
+        long[] post_dates = new long[dates];
+        long[] transaction_dates = new long[dates];
+        for(int i = 0; i < dates; i++) {
+            post_dates[i] = now - (long) i * 60000 - random.nextInt(60000); // un post al minuto, a ritroso
+            transaction_dates[i] = now - (i / 100) * 15000L - random.nextInt(1000); // 100 premi per ciclo
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        System.out.printf("%-28s %-10s %12s %14s%n", "date", "versione", "ns/data", "byte/data");
+        measure(mx, "post (secondi diversi)", post_dates, rounds);
+        measure(mx, "transazioni (stesso ciclo)", transaction_dates, rounds);
+        System.out.println("> Benchmark completato (" + sink + ").");
+    }
+
+    private static void measure(com.sun.management.ThreadMXBean mx, String name, long[] dates, int rounds) {
+        for(int version = 0; version < 2; version++) {
+            long ns = 0;
+            long bytes = 0;
+            for(int r = 0; r < rounds; r++) {
+                long start_bytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long start = System.nanoTime();
+                int len = 0;
+                for(long d : dates) {
+                    len += (version == 0) ? previousFormattedDate(d).length() : Utils.getFormattedDate(d).length();
+                }
+                ns = System.nanoTime() - start;
+                bytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - start_bytes;
+                sink += len;
+            }
+            System.out.printf("%-28s %-10s %12.1f %14.1f%n", name, (version == 0) ? "prima" : "dopo", ns / (double) dates.length, bytes / (double) dates.length);
+        }
+    }
+
+    /**
+     * Utils.getFormattedDate com'era prima della cache: un nuovo formattatore per ogni data
+     */
+    private static String previousFormattedDate(long date) {
+        Instant instant = Instant.ofEpochSecond(date/1000);
+        DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM)
+                                                        .withLocale(Locale.ITALY)
+                                                        .withZone(ZoneId.systemDefault());
+        return formatter.format(instant);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.server.utils.IntSet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Misura la memoria occupata da una direzione del grafo delle relazioni con le rappresentazioni usate dal social:
+ * liste (ConcurrentHashMap di ArrayList, come erano i follower), insiemi hash concorrenti di username (ConcurrentHashMap
+ * di ConcurrentHashMap.newKeySet, come sono stati follower e seguiti) e insiemi di id senza lock (ConcurrentHashMap di
+ * IntSet, come sono ora). Gli username sono creati una volta sola e condivisi, e l'indice dell'username fa da id come
+ * nel dizionario degli utenti, quindi la misura riguarda solo le strutture. Parametri: edges (default 1000000) e users
+ * (default 100000).
+ *   java ... it.pantani.winsome.server.FollowGraphFootprint edges=1000000 users=100000
+ * Per una misura affidabile conviene lanciarlo con un heap fisso, per esempio -Xms2g -Xmx2g.
+ */
+public class FollowGraphFootprint {
+    private static final long SEED = 598896;
+
+    private static volatile int sink; // mantiene le strutture raggiungibili fino alla misura
+
+    public static void main(String[] args) throws InterruptedException {
+        int edges = 1000000;
+        int users = 100000;
+        for(String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if(kv.length == 2 && kv[0].equals("edges")) edges = Integer.parseInt(kv[1]);
+            else if(kv.length == 2 && kv[0].equals("users")) users = Integer.parseInt(kv[1]);
+            else {
+                System.err.println("[!] Parametro sconosciuto: " + arg);
+                return;
+            }
+        }
+
+        String[] names = new String[users];
+        for(int i = 0; i < users; i++) {
+            names[i] = SocialGraphGenerator.username(i);
+        }
+        // gli archi sono generati una volta sola, così le due strutture contengono esattamente le stesse relazioni
+        int[][] pairs = generateEdges(users, edges);
+
+        System.out.println("> Relazioni: " + edges + ", utenti: " + users);
+        long lists = measure(() -> {
+            ConcurrentHashMap<String, ArrayList<String>> graph = new ConcurrentHashMap<>();
+            for(int[] e : pairs) {
+                graph.computeIfAbsent(names[e[0]], k -> new ArrayList<>()).add(names[e[1]]);
+            }
+            return graph;
+        });
+        long sets = measure(() -> {
+            ConcurrentHashMap<String, Set<String>> graph = new ConcurrentHashMap<>();
+            for(int[] e : pairs) {
+                graph.computeIfAbsent(names[e[0]], k -> ConcurrentHashMap.newKeySet()).add(names[e[1]]);
+            }
+            return graph;
+        });
+
+        long ids = measure(() -> {
+            ConcurrentHashMap<String, IntSet> graph = new ConcurrentHashMap<>();
+            for(int[] e : pairs) {
+                graph.computeIfAbsent(names[e[0]], k -> new IntSet()).add(e[1]);
+            }
+            return graph;
+        });
+
+        print("liste (ArrayList)", lists, edges);
+        print("insiemi (newKeySet)", sets, edges);
+        print("insiemi di id (IntSet)", ids, edges);
+        System.out.printf("> Rapporto insiemi/liste: %.2f, insiemi di id/liste: %.2f%n", sets / (double) lists, ids / (double) lists);
+    }
+
+    /**
+     * Genera archi casuali distinti (senza cappi)
+     * @return gli archi come coppie [da, a]
+     */
+    private static int[][] generateEdges(int users, int edges) {
+        Random random = new Random(SEED);
+        Set<Long> seen = new HashSet<>();
+        int[][] pairs = new int[edges][];
+        int n = 0;
+        while(n < edges) {
+            int from = random.nextInt(users);
+            int to = random.nextInt(users);
+            if(from == to || !seen.add((long) from * users + to)) continue;
+            pairs[n++] = new int[] { from, to };
+        }
+        return pairs;
+    }
+
+    /**
+     * Costruisce una struttura e misura di quanto è cresciuto l'heap (dopo aver chiamato il garbage collector)
+     * @return i byte occupati dalla struttura
+     */
+    private static long measure(Builder builder) throws InterruptedException {
+        long before = usedHeap();
+        Map<?, ?> graph = builder.build();
+        long after = usedHeap();
+        sink = graph.size();
+        return after - before;
+    }
+
+    private interface Builder {
+        Map<?, ?> build();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void print(String name, long bytes, int edges) {
+        System.out.printf("%-22s %10.1f MB %8.1f byte/relazione%n", name, bytes / (1024.0 * 1024.0), bytes / (double) edges);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.shared.ConfigManager;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Misura il tempo di un ciclo di calcolo dei premi al variare del numero di thread del RewardsManager (1, 2, 4...
+ * fino al numero di core, o al valore di max_threads). Per ogni numero di thread esegue prima un ciclo di controllo,
+ * sempre con la stessa attività e lo stesso numero di ciclo, e verifica che il premio totale sia identico a quello
+ * calcolato con un solo thread; poi misura il tempo medio dei cicli. Parametri del grafo: vedi SocialGraphGenerator.
+ * Altri parametri: active_posts (post con attività in ogni ciclo, default 20000), cycles (cicli misurati per ogni
+ * numero di thread, default 20), max_threads.
+ *   java ... it.pantani.winsome.server.RewardsScalingBenchmark posts=100000 active_posts=50000
+ * Come SocialBenchmark, va eseguito in una cartella di prova.
+ */
+public class RewardsScalingBenchmark {
+    private static final long SEED = 598896;
+
+    public static void main(String[] args) throws Exception {
+        SocialGraphGenerator generator = new SocialGraphGenerator();
+        int active_posts = 20000;
+        int cycles = 20;
+        int max_threads = Runtime.getRuntime().availableProcessors();
+
+        for(String arg : args) {
+            try {
+                if(generator.parse(arg)) continue;
+                String[] kv = arg.split("=", 2);
+                if(kv.length == 2 && kv[0].equals("active_posts")) active_posts = Integer.parseInt(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("cycles")) cycles = Integer.parseInt(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("max_threads")) max_threads = Integer.parseInt(kv[1]);
+                else {
+                    System.err.println("[!] Parametro sconosciuto: " + arg);
+                    return;
+                }
+            } catch(NumberFormatException e) {
+                System.err.println("[!] Valore non valido per il parametro: " + arg);
+                return;
+            }
+        }
+
+        ConfigManager config = new ConfigManager(true);
+        SocialManager social = new SocialManager(config);
+        RewardsManager rewards = new RewardsManager(config, social);
+
+        System.out.println("> Generazione del social: " + generator);
+        int first_post = social.last_post_id.get();
+        generator.populate(social);
+        rewards.loadPendingActivity();
+        rewards.runRewardsCycle(); // assegna i premi dei voti e commenti creati dal generatore, che sono nel registro
+        social.getWalletList().clear();
+        int num_active = Math.min(active_posts, generator.posts);
+
+        ArrayList<Integer> thread_counts = new ArrayList<>();
+        for(int t = 1; t < max_threads; t *= 2) {
+            thread_counts.add(t);
+        }
+        thread_counts.add(max_threads);
+
+        // il ciclo di controllo usa sempre lo stesso numero, così il numero di iterazioni dei post non cambia
+        int check_cycle = social.getRewardsLog().getCycle() + 1000;
+        double reference = 0;
+        double single_thread_ms = 0;
+
+        System.out.println("> Post con attivita' per ciclo: " + num_active + ", cicli misurati: " + cycles);
+        System.out.println();
+        System.out.printf("%8s %14s %10s %22s %10s%n", "thread", "ms/ciclo", "speedup", "premio di controllo", "identico");
+        for(int t : thread_counts) {
+            rewards.setRewardsThreads(t);
+
+            social.getRewardsLog().setCycle(check_cycle);
+            recordActivity(social, generator, first_post, num_active, new Random(SEED));
+            double total = rewards.runRewardsCycle();
+            social.getWalletList().clear();
+            if(t == 1) reference = total;
+
+            Random random = new Random(SEED + t);
+            for(int i = 0; i < 3; i++) { // riscaldamento
+                recordActivity(social, generator, first_post, num_active, random);
+                rewards.runRewardsCycle();
+                social.getWalletList().clear();
+            }
+            long elapsed = 0;
+            for(int i = 0; i < cycles; i++) {
+                recordActivity(social, generator, first_post, num_active, random);
+                long start = System.nanoTime();
+                rewards.runRewardsCycle();
+                elapsed += System.nanoTime() - start;
+                social.getWalletList().clear(); // altrimenti le transazioni dei premi crescono senza limite
+            }
+
+            double ms = elapsed / (cycles * 1e6);
+            if(t == 1) single_thread_ms = ms;
+            System.out.printf("%8d %14.3f %10.2f %22.10f %10s%n", t, ms, single_thread_ms / ms, total, (Double.compare(total, reference) == 0) ? "si" : "NO");
+        }
+        System.out.println();
+        System.out.println("> Benchmark completato.");
+    }
+
+    /**
+     * Registra voti e commenti su num_active post a caso, come farebbero ratePost e commentPost
+     */
+    private static void recordActivity(SocialManager social, SocialGraphGenerator generator, int first_post, int num_active, Random random) {
+        RewardsEventLog log = social.getRewardsLog();
+        for(int i = 0; i < num_active; i++) {
+            int post_id = first_post + random.nextInt(generator.posts);
+            ArrayList<String> followers = generator.getFollowers(social.getPost(post_id).getAuthor());
+            if(followers.isEmpty()) continue;
+            log.recordVote(post_id, followers.get(random.nextInt(followers.size())), random.nextBoolean() ? 1 : -1);
+            log.recordComment(post_id, followers.get(random.nextInt(followers.size())));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.server.entities.WinSomePost;
+import it.pantani.winsome.shared.ConfigManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark delle operazioni più frequenti del SocialManager (e del calcolo dei premi) su un social sintetico di
+ * dimensione configurabile. Ogni operazione è misurata prima con un solo thread e poi con più thread insieme, per
+ * vedere anche il costo della contesa. Serve come riferimento prima e dopo le modifiche alle strutture dati.
+ * I parametri sono passati come "nome=valore", per esempio:
+ *   java ... it.pantani.winsome.server.SocialBenchmark users=100000 posts=500000 threads=8 only=getFeed,ratePost
+ * Parametri del grafo: vedi SocialGraphGenerator. Parametri della misura: threads (thread della modalità con contesa),
+ * warmup e time (durata in millisecondi di riscaldamento e misura), active_posts (post con attività in ogni ciclo
+ * dei premi), only (elenco delle operazioni da misurare, separate da virgola).
+ * Per verificare che il costo del feed non dipenda dal numero totale di post basta far crescere insieme utenti e post,
+ * così il feed di ogni utente resta della stessa dimensione mentre i post totali aumentano di 100 volte:
+ *   java ... it.pantani.winsome.server.SocialBenchmark users=1000 posts=5000 only=getFeed,getFeedPage
+ *   java ... it.pantani.winsome.server.SocialBenchmark users=100000 posts=500000 only=getFeed,getFeedPage
+ * Il social usa il file di configurazione della cartella "data" in cui viene lanciato (creandolo se non esiste),
+ * quindi va eseguito in una cartella di prova e non in quella del server.
+ */
+public class SocialBenchmark {
+    public static void main(String[] args) throws Exception {
+        SocialGraphGenerator generator = new SocialGraphGenerator();
+        int threads = Runtime.getRuntime().availableProcessors();
+        long warmup = 1000;
+        long time = 3000;
+        int active_posts = 1000;
+        List<String> only = null;
+
+        for(String arg : args) {
+            try {
+                if(generator.parse(arg)) continue;
+                String[] kv = arg.split("=", 2);
+                if(kv.length == 2 && kv[0].equals("threads")) threads = Integer.parseInt(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("warmup")) warmup = Long.parseLong(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("time")) time = Long.parseLong(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("active_posts")) active_posts = Integer.parseInt(kv[1]);
+                else if(kv.length == 2 && kv[0].equals("only")) only = Arrays.asList(kv[1].split(","));
+                else {
+                    System.err.println("[!] Parametro sconosciuto: " + arg);
+                    return;
+                }
+            } catch(NumberFormatException e) {
+                System.err.println("[!] Valore non valido per il parametro: " + arg);
+                return;
+            }
+        }
+
+        ConfigManager config = new ConfigManager(true);
+        SocialManager social = new SocialManager(config);
+        RewardsManager rewards = new RewardsManager(config, social);
+
+        System.out.println("> Generazione del social: " + generator);
+        long inizio = System.currentTimeMillis();
+        int first_post = social.last_post_id.get();
+        generator.populate(social);
+        rewards.loadPendingActivity();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.println("> Generazione completata in " + (System.currentTimeMillis() - inizio) + "ms, heap in uso: " + ((rt.totalMemory() - rt.freeMemory()) / (1024 * 1024)) + "MB");
+
+        int users = generator.users;
+        int posts = generator.posts;
+        int num_active = Math.min(active_posts, posts);
+
+        Map<String, BenchmarkRunner.Operation> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("getFeed", r -> social.getFeed(SocialGraphGenerator.username(r.nextInt(users))));
+        benchmarks.put("getBlog", r -> social.getBlog(SocialGraphGenerator.username(r.nextInt(users))));
+        // prima pagina (20 post) del feed e del blog, come "showfeed 20" e "blog 20"
+        benchmarks.put("getFeedPage", r -> social.getFeedPage(SocialGraphGenerator.username(r.nextInt(users)), 20, Integer.MAX_VALUE));
+        benchmarks.put("getBlogPage", r -> social.getBlogPage(SocialGraphGenerator.username(r.nextInt(users)), 20, Integer.MAX_VALUE));
+        // la stessa pagina del feed letta dalle timeline (timeline_fanout), create alla prima lettura di ogni utente
+        TimelineService timelines = new TimelineService(social, 500, 5000);
+        benchmarks.put("timelineFeedPage", r -> timelines.getFeedPage(SocialGraphGenerator.username(r.nextInt(users)), 20, Integer.MAX_VALUE));
+        benchmarks.put("isPostNotInFeed", r -> social.isPostNotInFeed(first_post + r.nextInt(posts), SocialGraphGenerator.username(r.nextInt(users))));
+        benchmarks.put("getUsersWithSimilarTags", r -> social.getUsersWithSimilarTags(social.getUser(SocialGraphGenerator.username(r.nextInt(users))).getTags_list()));
+        benchmarks.put("getPostFormatted", r -> social.getPostFormatted(first_post + r.nextInt(posts), true, true, true, true, true, true));
+        benchmarks.put("ratePost", r -> {
+            // vota un post a caso per conto di un follower dell'autore, che quindi ha il post nel feed; quando il
+            // follower lo aveva già votato l'operazione termina con un'eccezione, come farebbe con un client
+            int post_id = first_post + r.nextInt(posts);
+            WinSomePost p = social.getPost(post_id);
+            ArrayList<String> followers = generator.getFollowers(p.getAuthor());
+            if(followers.isEmpty()) return null;
+            social.ratePost(followers.get(r.nextInt(followers.size())), post_id, r.nextBoolean() ? 1 : -1);
+            return post_id;
+        });
+        benchmarks.put("rewardsCycle", r -> {
+            // un ciclo dei premi con attività su num_active post: voti e commenti sono registrati direttamente nel
+            // registro del ciclo, come farebbero ratePost e commentPost
+            RewardsEventLog log = social.getRewardsLog();
+            for(int i = 0; i < num_active; i++) {
+                int post_id = first_post + r.nextInt(posts);
+                ArrayList<String> followers = generator.getFollowers(social.getPost(post_id).getAuthor());
+                if(followers.isEmpty()) continue;
+                log.recordVote(post_id, followers.get(r.nextInt(followers.size())), r.nextBoolean() ? 1 : -1);
+                log.recordComment(post_id, followers.get(r.nextInt(followers.size())));
+            }
+            double gain = rewards.runRewardsCycle();
+            social.getWalletList().clear(); // altrimenti le transazioni dei premi crescono senza limite durante la misura
+            return gain;
+        });
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, time);
+        int[] modes = (threads > 1) ? new int[] { 1, threads } : new int[] { 1 };
+
+        System.out.println();
+        System.out.printf("%-26s %8s %16s %14s%n", "operazione", "thread", "op/s", "us/op");
+        for(Map.Entry<String, BenchmarkRunner.Operation> b : benchmarks.entrySet()) {
+            if(only != null && !only.contains(b.getKey())) continue;
+            for(int t : modes) {
+                BenchmarkRunner.Result res = runner.run(b.getKey(), t, b.getValue());
+                System.out.printf("%-26s %8d %16.1f %14.3f%n", res.name, res.threads, res.getThroughput(), res.getAverageMicros());
+            }
+        }
+        System.out.println();
+        System.out.println("> Benchmark completato (" + runner.getSink() + ").");
+    }
+}
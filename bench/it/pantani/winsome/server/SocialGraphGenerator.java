@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.server.entities.WinSomePost;
+import it.pantani.winsome.server.entities.WinSomeUser;
+import it.pantani.winsome.server.exceptions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Costruisce un social sintetico per i benchmark. Utenti, tag, relazioni, post, voti, commenti e rewin sono generati
+ * con un seme fisso, quindi due esecuzioni con gli stessi parametri producono lo stesso grafo. Gli utenti si chiamano
+ * "user0", "user1"... e i tag "tag0", "tag1"...
+ */
+class SocialGraphGenerator {
+    private static final long SEED = 598896;
+    private static final String PASSWORD = "benchmark"; // le password non vengono mai verificate nei benchmark
+
+    int users = 10000;
+    int tags = 200;
+    int tags_per_user = 3;
+    int follows_per_user = 50;
+    int posts = 50000;
+    int votes_per_post = 10;
+    int comments_per_post = 5;
+    int rewins_per_post = 1;
+
+    // follower di ogni utente generato, per indice dell'utente
+    private final ArrayList<ArrayList<String>> followers = new ArrayList<>();
+
+    /**
+     * Imposta un parametro a partire da una stringa "nome=valore"
+     * @param arg il parametro
+     * @return vero se il parametro è del generatore, falso altrimenti
+     * @throws NumberFormatException se il valore non è un numero
+     */
+    boolean parse(String arg) {
+        String[] kv = arg.split("=", 2);
+        if(kv.length != 2) return false;
+        switch(kv[0]) {
+            case "users": users = Integer.parseInt(kv[1]); break;
+            case "tags": tags = Integer.parseInt(kv[1]); break;
+            case "tags_per_user": tags_per_user = Integer.parseInt(kv[1]); break;
+            case "follows_per_user": follows_per_user = Integer.parseInt(kv[1]); break;
+            case "posts": posts = Integer.parseInt(kv[1]); break;
+            case "votes_per_post": votes_per_post = Integer.parseInt(kv[1]); break;
+            case "comments_per_post": comments_per_post = Integer.parseInt(kv[1]); break;
+            case "rewins_per_post": rewins_per_post = Integer.parseInt(kv[1]); break;
+            default: return false;
+        }
+        return true;
+    }
+
+    /**
+     * Riempie il social con il grafo sintetico. Voti, commenti e rewin sono dati dai follower dell'autore, così
+     * sono operazioni che il social accetterebbe anche da un client.
+     * @param social il social da riempire (vuoto)
+     */
+    void populate(SocialManager social) {
+        Random random = new Random(SEED);
+
+        for(int i = 0; i < users; i++) {
+            ArrayList<String> user_tags = new ArrayList<>();
+            while(user_tags.size() < Math.min(tags_per_user, tags)) {
+                String t = "tag" + random.nextInt(tags);
+                if(!user_tags.contains(t)) user_tags.add(t);
+            }
+            social.addUser(new WinSomeUser(username(i), PASSWORD, user_tags));
+        }
+
+        for(int i = 0; i < users; i++) {
+            followers.add(new ArrayList<>());
+        }
+        for(int i = 0; i < users; i++) {
+            int n = Math.min(follows_per_user, users - 1);
+            for(int added = 0; added < n; ) {
+                int j = random.nextInt(users);
+                if(j == i) continue;
+                try {
+                    social.followUser(username(i), username(j));
+                    followers.get(j).add(username(i));
+                    added++;
+                } catch(InvalidOperationException ignored) { // già seguito, ne scelgo un altro
+                } catch(UserNotFoundException | SameUserException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        for(int i = 0; i < posts; i++) {
+            String author = username(random.nextInt(users));
+            int post_id;
+            try {
+                post_id = social.createPost(author, "Titolo " + i, "Contenuto del post numero " + i);
+            } catch(UserNotFoundException | InvalidOperationException e) {
+                throw new IllegalStateException(e);
+            }
+
+            ArrayList<String> followers = getFollowers(author);
+            if(followers.isEmpty()) continue;
+            WinSomePost p = social.getPost(post_id);
+            for(int v = 0; v < votes_per_post; v++) {
+                String voter = followers.get(random.nextInt(followers.size()));
+                p.addVote(social.getUserId(voter), random.nextBoolean() ? 1 : -1, System.currentTimeMillis());
+            }
+            for(int c = 0; c < comments_per_post; c++) {
+                p.addComment(followers.get(random.nextInt(followers.size())), "Commento " + c);
+            }
+            for(int r = 0; r < rewins_per_post; r++) {
+                try {
+                    social.rewinPost(followers.get(random.nextInt(followers.size())), post_id);
+                } catch(InvalidOperationException ignored) { // rewin già fatto dallo stesso utente
+                } catch(NotInFeedException | PostNotFoundException | UserNotFoundException | SameUserException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        // voti e commenti sono stati aggiunti direttamente ai post: li converto nella forma dei file json e li ripasso
+        // al social come farebbe il caricamento dei dati, così anche i commenti usano gli username canonici
+        HashMap<Integer, WinSomePost> loaded = new HashMap<>();
+        for(WinSomePost p : social.getPostList().values()) {
+            loaded.put(p.getPostID(), p.copy(social::getUsername));
+        }
+        social.setPostList(loaded);
+    }
+
+    /**
+     * Fornisce i follower di un utente generato come lista, per poterne scegliere uno a caso in tempo costante. Le
+     * relazioni non cambiano durante i benchmark, quindi la lista resta uguale a quella del social.
+     * @param username il nome dell'utente generato
+     * @return la lista dei suoi follower
+     */
+    ArrayList<String> getFollowers(String username) {
+        return followers.get(Integer.parseInt(username.substring("user".length())));
+    }
+
+    /**
+     * @param i l'indice dell'utente
+     * @return il nome dell'utente sintetico con quell'indice
+     */
+    static String username(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * @return la descrizione dei parametri, da stampare insieme ai risultati
+     */
+    public String toString() {
+        return "users=" + users + " tags=" + tags + " tags_per_user=" + tags_per_user + " follows_per_user=" + follows_per_user +
+                " posts=" + posts + " votes_per_post=" + votes_per_post + " comments_per_post=" + comments_per_post +
+                " rewins_per_post=" + rewins_per_post;
+    }
+}
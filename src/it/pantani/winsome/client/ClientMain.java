@@ -14,13 +14,13 @@ import it.pantani.winsome.shared.rmi.WinSomeCallbackInterface;
 import it.pantani.winsome.shared.rmi.WinSomeServiceInterface;
 
 import javax.naming.ConfigurationException;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -29,6 +29,8 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 import java.util.Scanner;
 
 /**
@@ -40,6 +42,9 @@ import java.util.Scanner;
  * finito con successo per poter registrare il client al callback. Register e logout fanno controlli simili.
  */
 public class ClientMain {
+    // comandi con una parte gestita dal client, che non possono essere inviati con "script"
+    private static final List<String> CLIENT_SIDE_COMMANDS = List.of("register", "login", "logout", "listfollowers", "help", "script", "stopclient");
+
     public static ConfigManager config;
 
     public static String server_address;
@@ -50,6 +55,7 @@ public class ClientMain {
     public static String server_rmi_callback_registry_name;
     public static String multicast_server_address;
     public static int multicast_server_port;
+    public static String client_protocol;
 
     public static ArrayList<String> followersList = new ArrayList<>();
 
@@ -80,6 +86,7 @@ public class ClientMain {
         System.out.println("> Nome registry RMI callback client: " + server_rmi_callback_registry_name);
         System.out.println("> Indirizzo multicast notifiche: " + multicast_server_address);
         System.out.println("> Porta multicast notifiche: " + multicast_server_port);
+        System.out.println("> Protocollo di comunicazione: " + client_protocol);
 
         // preparo il collegamento col server
         Socket socket;
@@ -134,10 +141,9 @@ public class ClientMain {
                 return;
             }
 
-            // preparo i reader e writer dopo il primo collegamento al server
+            // preparo il canale delle richieste dopo il primo collegamento al server
             try {
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                RequestChannel channel = new RequestChannel(socket, client_protocol.equals("binary"));
 
                 connLost = false;
                 // ciclo per ogni richiesta fatta dall'utente
@@ -170,9 +176,7 @@ public class ClientMain {
                     // una volta effettuata la divisione tra tipo operazione e argomenti, gestisco propriamente la richiesta
                     switch (request) {
                         case "stopclient": {
-                            socket.close();
-                            out.close();
-                            in.close();
+                            channel.close();
                             break loopesterno; // per terminare tutta l'esecuzione
                         }
                         case "register": {
@@ -193,8 +197,7 @@ public class ClientMain {
                             break;
                         }
                         case "login": {
-                            Utils.send(out, raw_request);
-                            String response = Utils.receive(in);
+                            String response = channel.request(raw_request);
                             if (response.equalsIgnoreCase(Utils.SOCIAL_LOGIN_SUCCESS)) { // se il login ha successo registro il client per il callback
                                 username = arguments[0];
                                 // registrazione callback per le notifiche riguardo l'aggiornamento della lista follower locale
@@ -223,8 +226,7 @@ public class ClientMain {
                             break;
                         }
                         case "logout": {
-                            Utils.send(out, raw_request);
-                            String response = Utils.receive(in);
+                            String response = channel.request(raw_request);
                             // SE sono connesso ad un server & SE il logout ha successo ALLORA rimuovo il client dalla lista del callback
                             if (server != null && response.equals(Utils.SOCIAL_LOGOUT_SUCCESS)) {
                                 System.out.println("> Logout dell'utente '" + username + "' effettuato");
@@ -254,6 +256,39 @@ public class ClientMain {
                             System.out.print("\n");
                             break;
                         }
+                        case "script": { // invia al server tutti i comandi di un file, senza attendere ogni risposta
+                            if(arguments.length != 1) {
+                                System.err.println("[!] Comando errato, usa: script <file>");
+                                break;
+                            }
+                            List<String> commands;
+                            try {
+                                commands = Files.readAllLines(Path.of(arguments[0]));
+                            } catch(IOException | InvalidPathException e) {
+                                System.err.println("[!] Impossibile leggere il file '" + arguments[0] + "'. Motivo: " + e.getLocalizedMessage());
+                                break;
+                            }
+                            commands.removeIf(c -> c.trim().isEmpty());
+                            // i comandi gestiti anche lato client (login, logout...) vanno eseguiti a mano
+                            String local = null;
+                            for(String c : commands) {
+                                if(CLIENT_SIDE_COMMANDS.contains(c.split(" ")[0])) {
+                                    local = c;
+                                    break;
+                                }
+                            }
+                            if(local != null) {
+                                System.err.println("[!] Il comando '" + local + "' non puo' essere usato in uno script.");
+                                break;
+                            }
+
+                            List<String> responses = channel.requestAll(commands);
+                            for(int i = 0; i < commands.size(); i++) {
+                                System.out.println("> " + commands.get(i));
+                                System.out.println("[Server]> " + responses.get(i));
+                            }
+                            break;
+                        }
                         case "help": { // mostra una lista dei comandi disponibili del client
                             System.out.println("> LISTA COMANDI:");
                             System.out.println("login <username> <password>        - Effettua il login al social WinSome");
@@ -261,18 +296,19 @@ public class ClientMain {
                             System.out.println("listfollowers                      - Mostra una lista dei propri followers");
                             System.out.println("listusers                          - Mostra utenti con almeno un tag in comune");
                             System.out.println("listfollowing                      - Mostra una lista degli utenti che si segue");
-                            System.out.println("blog                               - Mostra tutti post nel proprio blog");
-                            System.out.println("showfeed                           - Mostra tutti i post nel tuo feed");
+                            System.out.println("blog [<n> [<prima del post>]]      - Mostra i post nel proprio blog, anche n alla volta");
+                            System.out.println("showfeed [<n> [<prima del post>]]  - Mostra i post nel tuo feed, anche n alla volta");
                             System.out.println("wallet                             - Mostra il tuo bilancio e transazioni");
                             System.out.println("walletbtc                          - Mostra il tuo bilancio in Bitcoin");
-                            System.out.println("follow <utente>                    - Fa seguire un utente");
-                            System.out.println("unfollow <utente>                  - Fa smettere di seguire un utente");
+                            System.out.println("follow <utente> [<utente> ...]     - Fa seguire uno o piu' utenti");
+                            System.out.println("unfollow <utente> [<utente> ...]   - Fa smettere di seguire uno o piu' utenti");
                             System.out.println("rewin <id post>                    - Effettua il rewin di un post");
                             System.out.println("post \"<titolo>\" \"<contenuto>\"      - Crea un post");
-                            System.out.println("rate <id post> <+1/-1>             - Valuta un post nel proprio feed");
+                            System.out.println("rate <id post> [...] <+1/-1>       - Valuta uno o piu' post nel proprio feed");
                             System.out.println("showpost <id post>                 - Mostra un post");
                             System.out.println("comment <id post> <testo>          - Commenta un post nel proprio feed");
                             System.out.println("delete <id post>                   - Elimina un proprio post");
+                            System.out.println("script <file>                      - Invia al server tutti i comandi di un file");
                             System.out.println("help                               - Mostra questa schermata");
                             break;
                         }
@@ -291,13 +327,11 @@ public class ClientMain {
                         case "comment":
                         case "delete":
                         case "post": {
-                            Utils.send(out, raw_request);
-                            System.out.println("[Server]> " + Utils.receive(in));
+                            System.out.println("[Server]> " + channel.request(raw_request));
                             break;
                         }
                         default: {
-                            Utils.send(out, raw_request);
-                            System.out.println("[Server]> " + Utils.receive(in));
+                            System.out.println("[Server]> " + channel.request(raw_request));
                         }
                     }
                 }
@@ -413,5 +447,11 @@ public class ClientMain {
         if(multicast_server_port <= 0 || multicast_server_port >= 65535) {
             throw new ConfigurationException("valore 'multicast_server_port' non valido (" + multicast_server_port + " non e' una porta valida)");
         }
+
+        // controllo il protocollo da usare con il server (i config creati prima dell'opzione usano quello testuale)
+        client_protocol = Objects.requireNonNullElse(config.getPreference("client_protocol"), "text");
+        if(!client_protocol.equals("text") && !client_protocol.equals("binary")) {
+            throw new ConfigurationException("valore 'client_protocol' non valido (" + client_protocol + " non e' 'text' o 'binary')");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.client;
+
+import it.pantani.winsome.shared.BinaryProtocol;
+import it.pantani.winsome.shared.Utils;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Canale di comunicazione del client con il server. Nasconde il protocollo usato sulla connessione: quello testuale
+ * di Utils.send/Utils.receive oppure quello binario (BinaryProtocol), che viene negoziato alla creazione del canale.
+ * Con requestAll() più richieste vengono inviate di seguito senza attendere ogni risposta (pipelining).
+ */
+public class RequestChannel {
+    // richieste inviate e non ancora risposte: oltre questo numero si attende una risposta prima di inviarne altre,
+    // altrimenti client e server potrebbero bloccarsi entrambi in scrittura con i buffer del socket pieni
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final Socket socket;
+    private final boolean binary;
+
+    private PrintWriter textOut;
+    private BufferedReader textIn;
+    private OutputStream binaryOut;
+    private InputStream binaryIn;
+    private int nextRequestId;
+
+    /**
+     * Prepara il canale su una connessione appena aperta
+     * @param socket la connessione col server
+     * @param binary se vero richiede al server il protocollo binario
+     * @throws IOException se la negoziazione del protocollo binario fallisce
+     */
+    public RequestChannel(Socket socket, boolean binary) throws IOException {
+        this.socket = socket;
+        this.binary = binary;
+        this.nextRequestId = 0;
+        if(binary) {
+            binaryOut = new BufferedOutputStream(socket.getOutputStream());
+            binaryIn = new BufferedInputStream(socket.getInputStream());
+            BinaryProtocol.negotiate(binaryIn, binaryOut);
+        } else {
+            textOut = new PrintWriter(socket.getOutputStream(), true);
+            textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+    }
+
+    /**
+     * Invia una richiesta al server e ne attende la risposta
+     * @param raw_request la richiesta, scritta come nel protocollo testuale
+     * @return la risposta del server
+     * @throws IOException se la connessione col server si interrompe
+     */
+    public String request(String raw_request) throws IOException {
+        return requestAll(Collections.singletonList(raw_request)).get(0);
+    }
+
+    /**
+     * Invia più richieste al server senza attendere la risposta di ognuna prima di inviare la successiva, e ne
+     * raccoglie le risposte. Con il protocollo binario ogni risposta è associata alla sua richiesta tramite l'id; con
+     * quello testuale, che non ha id, tramite l'ordine (il server risponde nell'ordine delle richieste).
+     * @param raw_requests le richieste, scritte come nel protocollo testuale
+     * @return le risposte del server, nello stesso ordine delle richieste
+     * @throws IOException se la connessione col server si interrompe o una risposta non corrisponde a nessuna richiesta
+     */
+    public List<String> requestAll(List<String> raw_requests) throws IOException {
+        int n = raw_requests.size();
+        String[] replies = new String[n];
+        int first_id = nextRequestId;
+        nextRequestId += n;
+
+        int sent = 0;
+        int received = 0;
+        while(received < n) {
+            while(sent < n && sent - received < MAX_IN_FLIGHT) {
+                if(binary) {
+                    binaryOut.write(BinaryProtocol.encodeRequest(first_id + sent, raw_requests.get(sent)));
+                } else {
+                    Utils.send(textOut, raw_requests.get(sent));
+                }
+                sent++;
+            }
+            if(binary) binaryOut.flush();
+
+            if(binary) {
+                BinaryProtocol.Reply reply = BinaryProtocol.readReply(binaryIn);
+                int index = reply.requestId - first_id;
+                if(index < 0 || index >= sent || replies[index] != null) {
+                    throw new IOException("risposta del server a una richiesta sconosciuta (" + reply.requestId + ")");
+                }
+                replies[index] = reply.text;
+            } else {
+                replies[received] = Utils.receive(textIn);
+            }
+            received++;
+        }
+
+        return List.of(replies);
+    }
+
+    /**
+     * Chiude la connessione col server
+     * @throws IOException se la chiusura fallisce
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+}
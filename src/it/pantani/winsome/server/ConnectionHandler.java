@@ -9,19 +9,27 @@ package it.pantani.winsome.server;
 import it.pantani.winsome.server.entities.*;
 import it.pantani.winsome.server.exceptions.*;
 import it.pantani.winsome.server.rmi.WinSomeCallback;
+import it.pantani.winsome.shared.BinaryProtocol;
 import it.pantani.winsome.shared.ConfigManager;
 import it.pantani.winsome.shared.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,6 +55,9 @@ public class ConnectionHandler implements Runnable {
 
     private PrintWriter out = null;
     private BufferedReader in = null;
+    private OutputStream binaryOut = null; // usato al posto di out se il client ha scelto il protocollo binario
+    private int requestId = 0; // id della richiesta binaria in elaborazione, riportato nella risposta
+    private final Consumer<String> replyHandler;
 
     /**
      * Costruttore della classe ConnectionHandler. Si occupa di inizializzare i valori clientSocket, clientSession e chCode.
@@ -54,9 +65,22 @@ public class ConnectionHandler implements Runnable {
      * @param chCode codice assegnato nel main a questo ConnectionHandler
      */
     public ConnectionHandler(Socket clientSocket, int chCode, ConfigManager config, SocialManager social) {
+        this(clientSocket, chCode, config, social, null);
+    }
+
+    /**
+     * Costruttore usato dal server NIO. In questo caso il ConnectionHandler non legge e non scrive direttamente sul
+     * socket: le richieste gli vengono passate una alla volta con handleRequest() e le risposte sono consegnate a
+     * replyHandler, che si occupa di accodarle sul canale del client.
+     * @param clientSocket socket del client (ottenuto dal SocketChannel)
+     * @param chCode codice assegnato a questo ConnectionHandler
+     * @param replyHandler chi riceve le risposte da inviare al client
+     */
+    public ConnectionHandler(Socket clientSocket, int chCode, ConfigManager config, SocialManager social, Consumer<String> replyHandler) {
         this.clientSocket = clientSocket;
         this.clientSession = null;
         this.chCode = chCode;
+        this.replyHandler = replyHandler;
 
         this.config = config;
         this.social = social;
@@ -66,19 +90,67 @@ public class ConnectionHandler implements Runnable {
      * Metodo eseguito dal threadpool.
      */
     public void run() {
+        // aggiorno i contatori mostrati dal comando "stats"
+        ServerMain.startedHandlers.incrementAndGet();
+        ServerMain.maxActiveHandlers.accumulateAndGet(ServerMain.activeHandlers.incrementAndGet(), Math::max);
+        try {
+            serve();
+        } finally {
+            ServerMain.activeHandlers.decrementAndGet();
+            ServerMain.completedHandlers.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ascolta e gestisce le richieste del client fino alla chiusura della connessione.
+     */
+    private void serve() {
+        BufferedInputStream binaryIn = null;
         try {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            // se il client inizia con il primo byte di BinaryProtocol.HELLO vuole il protocollo binario, altrimenti
+            // quel byte fa già parte della prima richiesta testuale e va rimesso nello stream
+            BufferedInputStream raw_in = new BufferedInputStream(clientSocket.getInputStream());
+            raw_in.mark(1);
+            if(raw_in.read() == BinaryProtocol.HELLO[0]) {
+                byte[] hello = raw_in.readNBytes(BinaryProtocol.HELLO.length - 1);
+                if(hello.length == BinaryProtocol.HELLO.length - 1 && hello[0] == BinaryProtocol.HELLO[1] && hello[1] == BinaryProtocol.HELLO[2] && hello[2] == BinaryProtocol.HELLO[3]) {
+                    binaryOut = new BufferedOutputStream(clientSocket.getOutputStream());
+                    binaryOut.write(BinaryProtocol.HELLO);
+                    binaryOut.flush();
+                    binaryIn = raw_in;
+                }
+            } else {
+                raw_in.reset();
+                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(raw_in));
+            }
         } catch(IOException e) {
             e.printStackTrace();
         }
 
         // se gli stream di input e output sono nulli dò errore subito e termino
-        if(out == null || in == null) {
+        if((out == null || in == null) && binaryIn == null) {
             System.err.println("[CH #" + chCode + "]> Errore durante instaurazione connessione.");
+            try {
+                clientSocket.close();
+            } catch(IOException ignored) { }
+            closeConnection();
             return;
         } else {
-            System.out.println("[CH #" + chCode + "]> Sto gestendo il socket: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+            System.out.println("[CH #" + chCode + "]> Sto gestendo il socket: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + ((binaryIn != null) ? " (protocollo binario)" : ""));
+        }
+
+        if(binaryIn != null) {
+            try {
+                while(true) {
+                    handleBinaryRequest(BinaryProtocol.readFrame(binaryIn));
+                    // se il client ha già inviato altre richieste (pipelining) rimando l'invio, così le risposte
+                    // partono insieme; altrimenti invio subito, prima di bloccarmi sulla lettura
+                    if(binaryIn.available() == 0) binaryOut.flush();
+                }
+            } catch(IOException ignored) { }
+            closeConnection();
+            return;
         }
 
         String raw_request;
@@ -87,181 +159,7 @@ public class ConnectionHandler implements Runnable {
                 // leggo la richiesta del client
                 raw_request = Utils.receive(in);
                 if(raw_request != null) { // se è valida allora mi preparo a gestirla
-                    // divido la richiesta in operazione e argomenti
-                    String[] temp = raw_request.split(" ");
-                    String request = temp[0];
-                    String[] arguments = new String[temp.length-1];
-                    System.arraycopy(temp, 1, arguments, 0, temp.length - 1);
-
-                    // stampo la richiesta in console (se è una richiesta di login non mostro la password)
-                    System.out.print("[" + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + "]> ");
-                    if(arguments.length == 2 && request.equals("login")) {
-                        System.out.println(request + " " + arguments[0] + " ******");
-                    } else {
-                        System.out.println(raw_request);
-                    }
-
-                    // gestisco la richiesta in maniera appropriata
-                    switch (request) {
-                        case "login": {
-                            if (arguments.length != 2) {
-                                Utils.send(out, "comando errato, usa: login <username> <password>");
-                                break;
-                            }
-                            login(arguments[0], arguments[1]);
-                            break;
-                        }
-                        case "logout": {
-                            if(clientSession == null) {
-                                Utils.send(out, "non hai effettuato il login");
-                                break;
-                            }
-                            logout(clientSession.getUsername());
-                            break;
-                        }
-                        case "listusers": {
-                            listusers();
-                            break;
-                        }
-                        case "listfollowing": {
-                            listfollowing();
-                            break;
-                        }
-                        case "follow": {
-                            if (arguments.length != 1) {
-                                Utils.send(out, "comando errato, usa: follow <username>");
-                                break;
-                            }
-                            follow(arguments[0]);
-                            break;
-                        }
-                        case "unfollow": {
-                            if (arguments.length != 1) {
-                                Utils.send(out, "comando errato, usa: unfollow <username>");
-                                break;
-                            }
-                            unfollow(arguments[0]);
-                            break;
-                        }
-                        case "post": {
-                            // se il numero di parentesi non è pari allora restituisco un errore
-                            if(raw_request.chars().filter(ch -> ch == '"').count() % 2 != 0) {
-                                Utils.send(out, "comando errato, usa: post \"<titolo>\" \"<contenuto>\"");
-                                break;
-                            }
-
-                            // ottengo i valori tra parentesi
-                            Pattern p = Pattern.compile("\"([^\"]*)\"");
-                            Matcher m = p.matcher(raw_request);
-                            ArrayList<String> text = new ArrayList<>();
-                            while(m.find()) {
-                                text.add(m.group(1));
-                            }
-
-                            // se i parametri forniti non sono nè 1 nè 2 allora restituisco errore
-                            if(text.size() != 1 && text.size() != 2) {
-                                Utils.send(out, "comando errato, usa: post \"<titolo>\" \"<contenuto>\"");
-                                break;
-                            }
-
-                            // il titolo del post non deve essere vuoto
-                            if(text.get(0).trim().length() == 0) {
-                                Utils.send(out, "comando errato, il titolo del post non puo' essere vuoto");
-                                break;
-                            }
-
-                            // scelta progettuale: il post deve avere sia titolo che contenuto obbligatoriamente
-                            post(text);
-                            break;
-                        }
-                        case "blog": {
-                            blog();
-                            break;
-                        }
-                        case "rewin": {
-                            if(arguments.length != 1) {
-                                Utils.send(out, "comando errato, usa: rewin <id post>");
-                                break;
-                            }
-                            try {
-                                rewinPost(Integer.parseInt(arguments[0]));
-                            } catch(NumberFormatException e) {
-                                Utils.send(out, "comando errato, usa: rewin <id post>");
-                            }
-                            break;
-                        }
-                        case "rate": {
-                            if(arguments.length != 2) {
-                                Utils.send(out, "comando errato, usa: rate <id post> <+1/-1>");
-                                break;
-                            }
-                            try {
-                                rate(Integer.parseInt(arguments[0]), Integer.parseInt(arguments[1]));
-                            } catch(NumberFormatException e) {
-                                Utils.send(out, "comando errato, usa: rate <id post> <+1/-1>");
-                            }
-                            break;
-                        }
-                        case "showfeed": {
-                            showfeed();
-                            break;
-                        }
-                        case "showpost": {
-                            if(arguments.length != 1) {
-                                Utils.send(out, "comando errato, usa: showpost <id post>");
-                                break;
-                            }
-                            try {
-                                showpost(Integer.parseInt(arguments[0]));
-                            } catch(NumberFormatException e) {
-                                Utils.send(out, "comando errato, usa: showpost <id post>");
-                            }
-                            break;
-                        }
-                        case "comment": {
-                            if(arguments.length < 2) {
-                                Utils.send(out, "comando errato, usa: comment <id post> <testo>");
-                                break;
-                            }
-                            // ottenimento commento
-                            StringBuilder comment = new StringBuilder();
-                            for(int i = 2; i < temp.length; i++) {
-                                comment.append(temp[i]).append(" ");
-                            }
-                            comment.deleteCharAt(comment.length()-1);
-                            // aggiunta del commento
-                            try {
-                                addComment(Integer.parseInt(arguments[0]), comment.toString());
-                            } catch(NumberFormatException e) {
-                                Utils.send(out, "comando errato, usa: comment <id post> <testo>");
-                            }
-                            break;
-                        }
-                        case "delete": {
-                            if(arguments.length != 1) {
-                                Utils.send(out, "comando errato, usa: delete <id post>");
-                                break;
-                            }
-                            try {
-                                deletePost(Integer.parseInt(arguments[0]));
-                            } catch(NumberFormatException e) {
-                                Utils.send(out, "comando errato, usa: delete <id post>");
-                            }
-                            break;
-                        }
-                        case "wallet": {
-                            getWallet();
-                            break;
-                        }
-                        case "walletbtc": {
-                            getWalletInBitcoin();
-                            break;
-                        }
-                        default: {
-                            invalidcmd();
-                            break;
-                        }
-                    }
+                    handleRequest(raw_request);
                 } else {
                     break;
                 }
@@ -271,6 +169,384 @@ public class ConnectionHandler implements Runnable {
         }
 
         // se esco dal while vuol dire che la connessione è terminata (con una IOException)
+        closeConnection();
+    }
+
+    /**
+     * Elabora una singola richiesta del client e invia la risposta. E' usato sia dal ciclo di run() sia dal server
+     * NIO, che riceve i dati dal canale e chiama questo metodo per ogni richiesta completa.
+     * @param raw_request la richiesta così come è stata inviata dal client
+     */
+    void handleRequest(String raw_request) {
+        social.takeLogFailure(); // una scrittura fallita prima di questa richiesta non la riguarda
+        // divido la richiesta in operazione e argomenti
+        String[] temp = raw_request.split(" ");
+        String request = temp[0];
+        String[] arguments = new String[temp.length-1];
+        System.arraycopy(temp, 1, arguments, 0, temp.length - 1);
+
+        // stampo la richiesta in console (se è una richiesta di login non mostro la password)
+        System.out.print("[" + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + "]> ");
+        if(arguments.length == 2 && request.equals("login")) {
+            System.out.println(request + " " + arguments[0] + " ******");
+        } else {
+            System.out.println(raw_request);
+        }
+
+        // gestisco la richiesta in maniera appropriata
+        switch (request) {
+            case "login": {
+                if (arguments.length != 2) {
+                    reply("comando errato, usa: login <username> <password>");
+                    break;
+                }
+                login(arguments[0], arguments[1]);
+                break;
+            }
+            case "logout": {
+                if(clientSession == null) {
+                    reply("non hai effettuato il login");
+                    break;
+                }
+                logout(clientSession.getUsername());
+                break;
+            }
+            case "listusers": {
+                listusers();
+                break;
+            }
+            case "listfollowing": {
+                listfollowing();
+                break;
+            }
+            case "follow": {
+                if (arguments.length < 1) {
+                    reply("comando errato, usa: follow <username> [<username> ...]");
+                    break;
+                }
+                follow(arguments);
+                break;
+            }
+            case "unfollow": {
+                if (arguments.length < 1) {
+                    reply("comando errato, usa: unfollow <username> [<username> ...]");
+                    break;
+                }
+                unfollow(arguments);
+                break;
+            }
+            case "post": {
+                // se il numero di parentesi non è pari allora restituisco un errore
+                if(raw_request.chars().filter(ch -> ch == '"').count() % 2 != 0) {
+                    reply("comando errato, usa: post \"<titolo>\" \"<contenuto>\"");
+                    break;
+                }
+
+                // ottengo i valori tra parentesi
+                Pattern p = Pattern.compile("\"([^\"]*)\"");
+                Matcher m = p.matcher(raw_request);
+                ArrayList<String> text = new ArrayList<>();
+                while(m.find()) {
+                    text.add(m.group(1));
+                }
+
+                // se i parametri forniti non sono nè 1 nè 2 allora restituisco errore
+                if(text.size() != 1 && text.size() != 2) {
+                    reply("comando errato, usa: post \"<titolo>\" \"<contenuto>\"");
+                    break;
+                }
+
+                // il titolo del post non deve essere vuoto
+                if(text.get(0).trim().length() == 0) {
+                    reply("comando errato, il titolo del post non puo' essere vuoto");
+                    break;
+                }
+
+                // scelta progettuale: il post deve avere sia titolo che contenuto obbligatoriamente
+                post(text);
+                break;
+            }
+            case "blog": {
+                int[] page = parsePage(arguments);
+                if(page == null) {
+                    reply("comando errato, usa: blog [<numero post> [<prima del post con id>]]");
+                    break;
+                }
+                blog(page[0], page[1]);
+                break;
+            }
+            case "rewin": {
+                if(arguments.length != 1) {
+                    reply("comando errato, usa: rewin <id post>");
+                    break;
+                }
+                try {
+                    rewinPost(Integer.parseInt(arguments[0]));
+                } catch(NumberFormatException e) {
+                    reply("comando errato, usa: rewin <id post>");
+                }
+                break;
+            }
+            case "rate": {
+                // l'ultimo argomento è il voto, quelli precedenti sono gli id dei post da votare
+                if(arguments.length < 2) {
+                    reply("comando errato, usa: rate <id post> [<id post> ...] <+1/-1>");
+                    break;
+                }
+                try {
+                    int[] post_ids = new int[arguments.length - 1];
+                    for(int i = 0; i < post_ids.length; i++) {
+                        post_ids[i] = Integer.parseInt(arguments[i]);
+                    }
+                    rate(post_ids, Integer.parseInt(arguments[arguments.length - 1]));
+                } catch(NumberFormatException e) {
+                    reply("comando errato, usa: rate <id post> [<id post> ...] <+1/-1>");
+                }
+                break;
+            }
+            case "showfeed": {
+                int[] page = parsePage(arguments);
+                if(page == null) {
+                    reply("comando errato, usa: showfeed [<numero post> [<prima del post con id>]]");
+                    break;
+                }
+                showfeed(page[0], page[1]);
+                break;
+            }
+            case "showpost": {
+                if(arguments.length != 1) {
+                    reply("comando errato, usa: showpost <id post>");
+                    break;
+                }
+                try {
+                    showpost(Integer.parseInt(arguments[0]));
+                } catch(NumberFormatException e) {
+                    reply("comando errato, usa: showpost <id post>");
+                }
+                break;
+            }
+            case "comment": {
+                if(arguments.length < 2) {
+                    reply("comando errato, usa: comment <id post> <testo>");
+                    break;
+                }
+                // ottenimento commento
+                StringBuilder comment = new StringBuilder();
+                for(int i = 2; i < temp.length; i++) {
+                    comment.append(temp[i]).append(" ");
+                }
+                comment.deleteCharAt(comment.length()-1);
+                // aggiunta del commento
+                try {
+                    addComment(Integer.parseInt(arguments[0]), comment.toString());
+                } catch(NumberFormatException e) {
+                    reply("comando errato, usa: comment <id post> <testo>");
+                }
+                break;
+            }
+            case "delete": {
+                if(arguments.length != 1) {
+                    reply("comando errato, usa: delete <id post>");
+                    break;
+                }
+                try {
+                    deletePost(Integer.parseInt(arguments[0]));
+                } catch(NumberFormatException e) {
+                    reply("comando errato, usa: delete <id post>");
+                }
+                break;
+            }
+            case "wallet": {
+                getWallet();
+                break;
+            }
+            case "walletbtc": {
+                getWalletInBitcoin();
+                break;
+            }
+            default: {
+                invalidcmd();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Elabora una singola richiesta ricevuta con il protocollo binario (vedi BinaryProtocol) e invia la risposta. Gli
+     * argomenti sono letti direttamente dal frame, senza dividere stringhe o usare espressioni regolari, e le
+     * operazioni sono le stesse della richiesta testuale equivalente. Le richieste di una connessione sono elaborate
+     * una alla volta e nell'ordine di arrivo, perché ognuna può dipendere dalla sessione creata o chiusa da quelle
+     * precedenti (login e logout).
+     * @param frame il contenuto del frame: codice dell'operazione, id della richiesta e argomenti
+     */
+    void handleBinaryRequest(ByteBuffer frame) {
+        social.takeLogFailure(); // una scrittura fallita prima di questa richiesta non la riguarda
+        byte op = frame.get();
+        try {
+            requestId = BinaryProtocol.getVarint(frame);
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+            requestId = 0;
+            reply("richiesta non valida");
+            return;
+        }
+        if(op == BinaryProtocol.OP_TEXT) { // richiesta testuale incapsulata
+            handleRequest(BinaryProtocol.remainingString(frame));
+            return;
+        }
+
+        System.out.print("[" + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + "]> ");
+        try {
+            switch(op) {
+                case BinaryProtocol.OP_LOGIN: {
+                    String username = BinaryProtocol.getString(frame);
+                    String password = BinaryProtocol.getString(frame);
+                    System.out.println("login " + username + " ******");
+                    login(username, password);
+                    break;
+                }
+                case BinaryProtocol.OP_LOGOUT: {
+                    System.out.println("logout");
+                    if(clientSession == null) {
+                        reply("non hai effettuato il login");
+                        break;
+                    }
+                    logout(clientSession.getUsername());
+                    break;
+                }
+                case BinaryProtocol.OP_LISTUSERS: System.out.println("listusers"); listusers(); break;
+                case BinaryProtocol.OP_LISTFOLLOWING: System.out.println("listfollowing"); listfollowing(); break;
+                case BinaryProtocol.OP_FOLLOW: {
+                    String username = BinaryProtocol.getString(frame);
+                    System.out.println("follow " + username);
+                    follow(new String[] { username });
+                    break;
+                }
+                case BinaryProtocol.OP_UNFOLLOW: {
+                    String username = BinaryProtocol.getString(frame);
+                    System.out.println("unfollow " + username);
+                    unfollow(new String[] { username });
+                    break;
+                }
+                case BinaryProtocol.OP_FOLLOW_MANY:
+                case BinaryProtocol.OP_UNFOLLOW_MANY: {
+                    String[] usernames = new String[BinaryProtocol.getCount(frame)];
+                    for(int i = 0; i < usernames.length; i++) {
+                        usernames[i] = BinaryProtocol.getString(frame);
+                    }
+                    boolean follow = (op == BinaryProtocol.OP_FOLLOW_MANY);
+                    System.out.println((follow ? "follow " : "unfollow ") + String.join(" ", usernames));
+                    if(usernames.length == 0) {
+                        reply("comando errato, usa: " + (follow ? "follow" : "unfollow") + " <username> [<username> ...]");
+                    } else if(follow) {
+                        follow(usernames);
+                    } else {
+                        unfollow(usernames);
+                    }
+                    break;
+                }
+                case BinaryProtocol.OP_POST: {
+                    ArrayList<String> text = new ArrayList<>(2);
+                    text.add(BinaryProtocol.getString(frame));
+                    text.add(BinaryProtocol.getString(frame));
+                    System.out.println("post \"" + text.get(0) + "\" \"" + text.get(1) + "\"");
+                    if(text.get(0).trim().length() == 0) {
+                        reply("comando errato, il titolo del post non puo' essere vuoto");
+                        break;
+                    }
+                    post(text);
+                    break;
+                }
+                case BinaryProtocol.OP_BLOG: System.out.println("blog"); blog(Integer.MAX_VALUE, Integer.MAX_VALUE); break;
+                case BinaryProtocol.OP_BLOG_PAGE:
+                case BinaryProtocol.OP_SHOWFEED_PAGE: {
+                    int limit = BinaryProtocol.getVarint(frame);
+                    int before = BinaryProtocol.getVarint(frame);
+                    boolean blog = (op == BinaryProtocol.OP_BLOG_PAGE);
+                    System.out.println((blog ? "blog " : "showfeed ") + limit + " " + before);
+                    if(limit <= 0 || before < 0) {
+                        reply("comando errato, usa: " + (blog ? "blog" : "showfeed") + " [<numero post> [<prima del post con id>]]");
+                    } else if(blog) {
+                        blog(limit, before);
+                    } else {
+                        showfeed(limit, before);
+                    }
+                    break;
+                }
+                case BinaryProtocol.OP_REWIN: {
+                    int post_id = BinaryProtocol.getVarint(frame);
+                    System.out.println("rewin " + post_id);
+                    rewinPost(post_id);
+                    break;
+                }
+                case BinaryProtocol.OP_RATE: {
+                    int post_id = BinaryProtocol.getVarint(frame);
+                    int vote = BinaryProtocol.getSignedVarint(frame);
+                    System.out.println("rate " + post_id + " " + vote);
+                    rate(new int[] { post_id }, vote);
+                    break;
+                }
+                case BinaryProtocol.OP_RATE_MANY: {
+                    int vote = BinaryProtocol.getSignedVarint(frame);
+                    int[] post_ids = new int[BinaryProtocol.getCount(frame)];
+                    StringBuilder log = new StringBuilder("rate");
+                    for(int i = 0; i < post_ids.length; i++) {
+                        post_ids[i] = BinaryProtocol.getVarint(frame);
+                        log.append(" ").append(post_ids[i]);
+                    }
+                    System.out.println(log.append(" ").append(vote));
+                    if(post_ids.length == 0) {
+                        reply("comando errato, usa: rate <id post> [<id post> ...] <+1/-1>");
+                        break;
+                    }
+                    rate(post_ids, vote);
+                    break;
+                }
+                case BinaryProtocol.OP_SHOWFEED: System.out.println("showfeed"); showfeed(Integer.MAX_VALUE, Integer.MAX_VALUE); break;
+                case BinaryProtocol.OP_SHOWPOST: {
+                    int post_id = BinaryProtocol.getVarint(frame);
+                    System.out.println("showpost " + post_id);
+                    showpost(post_id);
+                    break;
+                }
+                case BinaryProtocol.OP_COMMENT: {
+                    int post_id = BinaryProtocol.getVarint(frame);
+                    String text = BinaryProtocol.getString(frame);
+                    System.out.println("comment " + post_id + " " + text);
+                    addComment(post_id, text);
+                    break;
+                }
+                case BinaryProtocol.OP_DELETE: {
+                    int post_id = BinaryProtocol.getVarint(frame);
+                    System.out.println("delete " + post_id);
+                    deletePost(post_id);
+                    break;
+                }
+                case BinaryProtocol.OP_WALLET: System.out.println("wallet"); getWallet(); break;
+                case BinaryProtocol.OP_WALLETBTC: System.out.println("walletbtc"); getWalletInBitcoin(); break;
+                default: {
+                    System.out.println("(operazione binaria " + op + ")");
+                    invalidcmd();
+                    break;
+                }
+            }
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("(richiesta binaria non valida)");
+            reply("richiesta non valida");
+        }
+    }
+
+    /**
+     * @return l'id della richiesta binaria in elaborazione, da riportare nella risposta
+     */
+    int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Libera le risorse associate al client quando la connessione termina: rimuove il socket dalla lista, l'eventuale
+     * sessione e la registrazione al callback RMI.
+     */
+    void closeConnection() {
         ServerMain.socketsList.remove(clientSocket); // rimuovo il socket del client dalla lista
         if(clientSession != null) {
             ServerMain.sessionsList.remove(clientSession.getUsername()); // se l'utente era loggato, ne rimuovo la sessione
@@ -280,11 +556,30 @@ public class ConnectionHandler implements Runnable {
         System.out.println("[CH #" + chCode + "]> Collegamento col client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + " terminato.");
     }
 
+    /**
+     * Invia una risposta al client, direttamente sullo stream oppure tramite il replyHandler se la connessione è
+     * gestita dal server NIO. Se una modifica fatta dalla richiesta non è stata scritta nel write-ahead log la risposta
+     * è sostituita da un errore, così il client non la considera confermata.
+     * @param message la risposta da inviare
+     */
+    private void reply(String message) {
+        if(social.takeLogFailure()) message = "errore interno: impossibile salvare la modifica su disco";
+        if(replyHandler != null) {
+            replyHandler.accept(message);
+        } else if(binaryOut != null) {
+            try {
+                binaryOut.write(BinaryProtocol.encodeReply(requestId, message)); // inviata da serve() dopo la richiesta
+            } catch(IOException ignored) { } // la connessione è caduta, se ne accorgerà la prossima lettura
+        } else {
+            Utils.send(out, message);
+        }
+    }
+
     /**
      * Eseguito se il server non conosce come gestire la richiesta del client.
      */
     private void invalidcmd() {
-        Utils.send(out, "comando non riconosciuto");
+        reply("comando non riconosciuto");
     }
 
     /**
@@ -295,7 +590,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void login(String username, String password) {
         if(clientSession != null) {
-            Utils.send(out, "sei gia' collegato con l'account '" + clientSession.getUsername() + "'");
+            reply("sei gia' collegato con l'account '" + clientSession.getUsername() + "'");
             return;
         }
         
@@ -307,22 +602,22 @@ public class ConnectionHandler implements Runnable {
                 WinSomeSession wss = ServerMain.sessionsList.get(username);
                 if(wss != null) {
                     if(wss.getSessionSocket() == clientSocket) {
-                        Utils.send(out, "hai gia' fatto il login in data " + getFormattedDate(wss.getTimestamp()));
+                        reply("hai gia' fatto il login in data " + getFormattedDate(wss.getTimestamp()));
                     } else {
-                        Utils.send(out, "questo utente e' collegato e ha fatto il login in data " + getFormattedDate(wss.getTimestamp()));
+                        reply("questo utente e' collegato e ha fatto il login in data " + getFormattedDate(wss.getTimestamp()));
                     }
                     return;
                 }
-                wss = new WinSomeSession(clientSocket, username);
+                wss = new WinSomeSession(clientSocket, u.getUsername()); // istanza canonica dell'username
                 ServerMain.sessionsList.put(username, wss);
                 clientSession = wss;
 
-                Utils.send(out, Utils.SOCIAL_LOGIN_SUCCESS);
+                reply(Utils.SOCIAL_LOGIN_SUCCESS);
             } else {
-                Utils.send(out, "password errata");
+                reply("password errata");
             }
         } else {
-            Utils.send(out, "utente non trovato");
+            reply("utente non trovato");
         }
     }
 
@@ -341,15 +636,15 @@ public class ConnectionHandler implements Runnable {
                 if (wss.getSessionSocket() == clientSocket) { // deve corrispondere il socket della sessione
                     ServerMain.sessionsList.remove(username);
                     clientSession = null;
-                    Utils.send(out, Utils.SOCIAL_LOGOUT_SUCCESS);
+                    reply(Utils.SOCIAL_LOGOUT_SUCCESS);
                 } else {
-                    Utils.send(out, "non hai effettuato il login"); // se un altro client prova a fare logout
+                    reply("non hai effettuato il login"); // se un altro client prova a fare logout
                 }
             } else {
-                Utils.send(out, "non hai effettuato il login");
+                reply("non hai effettuato il login");
             }
         } else {
-            Utils.send(out, "utente non trovato");
+            reply("utente non trovato");
         }
     }
 
@@ -359,14 +654,14 @@ public class ConnectionHandler implements Runnable {
      */
     private void listusers() {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         String current_user = clientSession.getUsername();
 
         Set<String> current_user_tags = social.getUser(current_user).getTags_list();
         if(current_user_tags.size() == 0) {
-            Utils.send(out, "non hai tag impostati, quindi non ci sono utenti con tag in comune con te");
+            reply("non hai tag impostati, quindi non ci sono utenti con tag in comune con te");
             return;
         }
 
@@ -374,7 +669,7 @@ public class ConnectionHandler implements Runnable {
         ArrayList<WinSomeUser> usersWithTag = social.getUsersWithSimilarTags(current_user_tags);
         usersWithTag.removeIf(u -> Objects.equals(u.getUsername(), current_user));
         if(usersWithTag.size() == 0) { // se dopo la rimozione ci sono 0 utenti allora restituisco questo errore
-            Utils.send(out, "nessun utente ha almeno un tag in comune con te :(");
+            reply("nessun utente ha almeno un tag in comune con te :(");
             return;
         }
         StringBuilder output = new StringBuilder();
@@ -389,7 +684,7 @@ public class ConnectionHandler implements Runnable {
             output.deleteCharAt(output.length()-1);
             output.append("\n");
         }
-        Utils.send(out, output.toString());
+        reply(output.toString());
     }
 
     /**
@@ -398,13 +693,13 @@ public class ConnectionHandler implements Runnable {
      */
     private void listfollowing() {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
 
         ArrayList<String> following = social.getFollowing(clientSession.getUsername());
         if(following.size() == 0) {
-            Utils.send(out, "non segui alcun utente");
+            reply("non segui alcun utente");
             return;
         }
 
@@ -413,69 +708,90 @@ public class ConnectionHandler implements Runnable {
         for(String u : following) {
             output.append("* ").append(u).append("\n");
         }
-        Utils.send(out, output.toString());
+        reply(output.toString());
     }
 
     /**
-     * Fa seguire all'utente attualmente loggato l'utente username. Se l'operazione ha successo, notifico username
-     * che ha ora un nuovo follower
-     * @param username l'utente che avrà un nuovo follower
+     * Fa seguire all'utente attualmente loggato uno o più utenti, con un'unica operazione del social. Per ogni
+     * utente che ha ora un nuovo follower invio la notifica. Se gli utenti sono più di uno, ogni riga della risposta
+     * inizia con l'utente a cui si riferisce.
+     * @param usernames gli utenti che avranno un nuovo follower
      */
-    private void follow(String username) {
+    private void follow(String[] usernames) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
-        
-        username = username.toLowerCase();
+
+        String[] users = new String[usernames.length];
+        for(int i = 0; i < users.length; i++) {
+            users[i] = usernames[i].toLowerCase();
+        }
         String current_user = clientSession.getUsername();
 
-        try {
-            social.followUser(current_user, username);
-            Utils.send(out, "ora segui '" + username + "'");
-            try {
-                WinSomeCallback.notifyFollowerUpdate(username, "+" + current_user);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+        Throwable[] results = social.followUsers(current_user, users);
+        StringBuilder output = new StringBuilder();
+        for(int i = 0; i < users.length; i++) {
+            if(i > 0) output.append("\n");
+            if(users.length > 1) output.append("'").append(users[i]).append("': ");
+            Throwable e = results[i];
+            if(e == null) {
+                output.append("ora segui '").append(users[i]).append("'");
+                try {
+                    WinSomeCallback.notifyFollowerUpdate(users[i], "+" + current_user);
+                } catch (RemoteException re) {
+                    re.printStackTrace();
+                }
+            } else if(e instanceof UserNotFoundException) {
+                output.append("quell'utente non esiste");
+            } else if(e instanceof SameUserException) {
+                output.append("non puoi seguire te stesso");
+            } else {
+                output.append("segui gia' quell'utente");
             }
-        } catch(UserNotFoundException e) {
-            Utils.send(out, "quell'utente non esiste");
-        } catch(SameUserException e) {
-            Utils.send(out, "non puoi seguire te stesso");
-        } catch(InvalidOperationException e) {
-            Utils.send(out, "segui gia' quell'utente");
         }
+        reply(output.toString());
     }
 
     /**
-     * Fa smettere di seguire username all'utente attualmente connesso. Se l'operazione ha successo, notifico username
-     * che ha perso un follower.
-     * @param username l'utente che perderà un follower
+     * Fa smettere di seguire all'utente attualmente connesso uno o più utenti, con un'unica operazione del social.
+     * Per ogni utente che ha perso un follower invio la notifica. La risposta è come quella di follow().
+     * @param usernames gli utenti che perderanno un follower
      */
-    private void unfollow(String username) {
+    private void unfollow(String[] usernames) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
-        
-        username = username.toLowerCase();
+
+        String[] users = new String[usernames.length];
+        for(int i = 0; i < users.length; i++) {
+            users[i] = usernames[i].toLowerCase();
+        }
         String current_user = clientSession.getUsername();
 
-        try {
-            social.unfollowUser(current_user, username);
-            Utils.send(out, "non segui piu' '" + username + "'");
-            try {
-                WinSomeCallback.notifyFollowerUpdate(username, "-" + current_user);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+        Throwable[] results = social.unfollowUsers(current_user, users);
+        StringBuilder output = new StringBuilder();
+        for(int i = 0; i < users.length; i++) {
+            if(i > 0) output.append("\n");
+            if(users.length > 1) output.append("'").append(users[i]).append("': ");
+            Throwable e = results[i];
+            if(e == null) {
+                output.append("non segui piu' '").append(users[i]).append("'");
+                try {
+                    WinSomeCallback.notifyFollowerUpdate(users[i], "-" + current_user);
+                } catch (RemoteException re) {
+                    re.printStackTrace();
+                }
+            } else if(e instanceof UserNotFoundException) {
+                output.append("quell'utente non esiste");
+            } else if(e instanceof SameUserException) {
+                output.append("non puoi smettere di seguire te stesso");
+            } else {
+                output.append("non segui quell'utente");
             }
-        } catch(UserNotFoundException e) {
-            Utils.send(out, "quell'utente non esiste");
-        } catch(SameUserException e) {
-            Utils.send(out, "non puoi smettere di seguire te stesso");
-        } catch(InvalidOperationException e) {
-            Utils.send(out, "non segui quell'utente");
         }
+        reply(output.toString());
     }
 
     /**
@@ -486,7 +802,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void post(ArrayList<String> arguments_list) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         String current_user = clientSession.getUsername();
@@ -498,35 +814,44 @@ public class ConnectionHandler implements Runnable {
 
         try {
             int new_post_id = social.createPost(current_user, post_title, post_content);
-            Utils.send(out, "post pubblicato (#" + new_post_id + ")");
+            reply("post pubblicato (#" + new_post_id + ")");
         } catch(InvalidOperationException e) {
-            Utils.send(out, "titolo o contenuto del post troppo lungo");
+            reply("titolo o contenuto del post troppo lungo");
         } catch(UserNotFoundException e) {
-            Utils.send(out, "utente non trovato");
+            reply("utente non trovato");
         }
     }
 
     /**
      * Mostra all'utente la lista dei propri post e di quelli rewinnati da lui. Se il blog è vuoto è stampato subito
-     * un errore.
+     * un errore. Si può chiedere una pagina alla volta, partendo dai post più recenti: se ci sono post più vecchi,
+     * la risposta termina con il comando per ottenere la pagina successiva.
+     * @param limit il numero massimo di post da mostrare (Integer.MAX_VALUE per tutti)
+     * @param before si mostrano solo i post con id minore di questo (Integer.MAX_VALUE per partire dal più recente)
      */
-    private void blog() {
+    private void blog(int limit, int before) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         String current_user = clientSession.getUsername();
 
-        ArrayList<WinSomePost> user_posts = social.getBlog(current_user);
+        // chiedo un post in più per sapere se ce ne sono altri dopo questa pagina
+        List<WinSomePost> user_posts = social.getBlogPage(current_user, pageFetchSize(limit), before);
+        boolean more = user_posts.size() > limit;
+        if(more) user_posts = user_posts.subList(1, user_posts.size());
         if(user_posts.size() == 0) {
-            Utils.send(out, "il tuo blog e' vuoto, pubblica qualcosa!");
+            reply((before == Integer.MAX_VALUE) ? "il tuo blog e' vuoto, pubblica qualcosa!" : "non ci sono altri post nel tuo blog");
             return;
         }
         StringBuilder ret = new StringBuilder("BLOG DI " + current_user + ":\n");
         for(WinSomePost p : user_posts) {
             ret.append(social.getPostFormatted(p.getPostID(), true, true, true, true, true, true));
         }
-        Utils.send(out, ret.toString());
+        if(more) {
+            ret.append("altri post: blog ").append(limit).append(" ").append(user_posts.get(0).getPostID()).append("\n");
+        }
+        reply(ret.toString());
     }
 
     /**
@@ -536,7 +861,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void rewinPost(int post_id) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
@@ -544,74 +869,85 @@ public class ConnectionHandler implements Runnable {
 
         try {
             social.rewinPost(current_user, post_id);
-            Utils.send(out, "rewin del post #" + post_id + " effettuato!");
+            reply("rewin del post #" + post_id + " effettuato!");
         } catch(InvalidOperationException e) {
-            Utils.send(out, "hai gia' fatto il rewin di questo post");
+            reply("hai gia' fatto il rewin di questo post");
         } catch(NotInFeedException e) {
-            Utils.send(out, "questo post non e' nel tuo feed");
+            reply("questo post non e' nel tuo feed");
         } catch(PostNotFoundException e) {
-            Utils.send(out, "impossibile trovare post con id #" + post_id);
+            reply("impossibile trovare post con id #" + post_id);
         } catch(SameUserException e) {
-            Utils.send(out, "non puoi fare il rewin su un tuo post");
+            reply("non puoi fare il rewin su un tuo post");
         } catch(UserNotFoundException e) {
             e.printStackTrace();
-            Utils.send(out, "errore interno");
+            reply("errore interno");
         }
     }
 
     /**
-     * Fa valutare all'utente attualmente connesso il post post_id con voto vote. Questa operazione ha successo solo se:
-     * il voto è +1/-1 (da specifica), non è già stato espresso, il post è nel feed dell'utente e non è dello stesso utente
-     * che lo pubblica.
-     * @param post_id l'id del post da votare
+     * Fa valutare all'utente attualmente connesso uno o più post con voto vote, con un'unica operazione del social.
+     * Il voto a un post ha successo solo se: il voto è +1/-1 (da specifica), non è già stato espresso, il post è nel
+     * feed dell'utente e non è dello stesso utente che lo pubblica. Se i post sono più di uno, ogni riga della
+     * risposta inizia con l'id del post a cui si riferisce.
+     * @param post_ids gli id dei post da votare
      * @param vote il valore del voto
      */
-    private void rate(int post_id, int vote) {
+    private void rate(int[] post_ids, int vote) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
-        
+        if(vote != 1 && vote != -1) { // vale per tutti i post, quindi lo segnalo una volta sola
+            reply("voto non valido");
+            return;
+        }
+
         String current_user = clientSession.getUsername();
 
-        try {
-            social.ratePost(current_user, post_id, vote);
-            if(vote == 1) {
-                Utils.send(out, "hai messo +1 al post #" + post_id);
+        Throwable[] results = social.ratePosts(current_user, post_ids, vote);
+        StringBuilder output = new StringBuilder();
+        for(int i = 0; i < post_ids.length; i++) {
+            if(i > 0) output.append("\n");
+            if(post_ids.length > 1) output.append("#").append(post_ids[i]).append(": ");
+            Throwable e = results[i];
+            if(e == null) {
+                output.append((vote == 1) ? "hai messo +1 al post #" : "hai messo -1 al post #").append(post_ids[i]);
+            } else if(e instanceof PostNotFoundException) {
+                output.append("impossibile trovare post con id #").append(post_ids[i]);
+            } else if(e instanceof InvalidOperationException) {
+                output.append("hai gia' votato questo post");
+            } else if(e instanceof SameUserException) {
+                output.append("non puoi votare un tuo stesso post");
+            } else if(e instanceof NotInFeedException) {
+                output.append("questo post non e' nel tuo feed");
             } else {
-                Utils.send(out, "hai messo -1 al post #" + post_id);
+                e.printStackTrace();
+                output.append("errore interno");
             }
-        } catch(InvalidVoteException e) {
-            Utils.send(out, "voto non valido");
-        } catch(PostNotFoundException e) {
-            Utils.send(out, "impossibile trovare post con id #" + post_id);
-        } catch(InvalidOperationException e) {
-            Utils.send(out, "hai gia' votato questo post");
-        } catch(SameUserException e) {
-            Utils.send(out, "non puoi votare un tuo stesso post");
-        } catch(NotInFeedException e) {
-            Utils.send(out, "questo post non e' nel tuo feed");
-        } catch(UserNotFoundException e) {
-            e.printStackTrace();
-            Utils.send(out, "errore interno");
         }
+        reply(output.toString());
     }
 
     /**
      * Mostra all'utente il proprio feed, composto dai post contenuti nei blog degli utenti che segue. Notare come nel
-     * feed possano esserci anche propri post, se chi li ha nel proprio feed li ha rewinnati.
+     * feed possano esserci anche propri post, se chi li ha nel proprio feed li ha rewinnati. Come per blog(), si può
+     * chiedere una pagina alla volta.
+     * @param limit il numero massimo di post da mostrare (Integer.MAX_VALUE per tutti)
+     * @param before si mostrano solo i post con id minore di questo (Integer.MAX_VALUE per partire dal più recente)
      */
-    private void showfeed() {
+    private void showfeed(int limit, int before) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
         String current_user = clientSession.getUsername();
 
-        ArrayList<WinSomePost> feed = social.getFeed(current_user);
+        List<WinSomePost> feed = social.getFeedPage(current_user, pageFetchSize(limit), before);
+        boolean more = feed.size() > limit;
+        if(more) feed = feed.subList(1, feed.size());
         if(feed.size() == 0) {
-            Utils.send(out, "feed vuoto");
+            reply((before == Integer.MAX_VALUE) ? "feed vuoto" : "non ci sono altri post nel feed");
             return;
         }
 
@@ -620,7 +956,38 @@ public class ConnectionHandler implements Runnable {
         for(WinSomePost p : feed) {
             output.append(social.getPostFormatted(p.getPostID(), false, false, true, false, false, false));
         }
-        Utils.send(out, output.toString());
+        if(more) {
+            output.append("altri post: showfeed ").append(limit).append(" ").append(feed.get(0).getPostID()).append("\n");
+        }
+        reply(output.toString());
+    }
+
+    /**
+     * Legge gli argomenti opzionali di blog e showfeed: il numero di post della pagina e l'id del post prima del
+     * quale la pagina termina (il cursore indicato nella risposta alla pagina precedente).
+     * @param arguments gli argomenti della richiesta
+     * @return numero di post e cursore (Integer.MAX_VALUE se non indicati), null se gli argomenti non sono validi
+     */
+    private static int[] parsePage(String[] arguments) {
+        if(arguments.length > 2) return null;
+        int[] ret = { Integer.MAX_VALUE, Integer.MAX_VALUE };
+        try {
+            for(int i = 0; i < arguments.length; i++) {
+                ret[i] = Integer.parseInt(arguments[i]);
+            }
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        if(ret[0] <= 0 || ret[1] < 0) return null;
+        return ret;
+    }
+
+    /**
+     * @param limit il numero di post di una pagina
+     * @return il numero di post da chiedere al social: uno in più, per sapere se esiste una pagina successiva
+     */
+    private static int pageFetchSize(int limit) {
+        return (limit == Integer.MAX_VALUE) ? limit : limit + 1;
     }
 
     /**
@@ -629,17 +996,17 @@ public class ConnectionHandler implements Runnable {
      */
     private void showpost(int post_id) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
         WinSomePost p = social.getPost(post_id);
 
         if(p == null) {
-            Utils.send(out, "impossibile trovare post con id #" + post_id);
+            reply("impossibile trovare post con id #" + post_id);
             return;
         }
-        Utils.send(out, social.getPostFormatted(p.getPostID(), true, true, true, true, true, true));
+        reply(social.getPostFormatted(p.getPostID(), true, true, true, true, true, true));
     }
 
     /**
@@ -650,7 +1017,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void addComment(int post_id, String text) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
@@ -658,13 +1025,13 @@ public class ConnectionHandler implements Runnable {
 
         try {
             social.commentPost(current_user, post_id, text);
-            Utils.send(out, "commento pubblicato");
+            reply("commento pubblicato");
         } catch(PostNotFoundException e) {
-            Utils.send(out, "impossibile trovare post con id #" + post_id);
+            reply("impossibile trovare post con id #" + post_id);
         } catch(SameUserException e) {
-            Utils.send(out, "non puoi commentare sotto un tuo stesso post");
+            reply("non puoi commentare sotto un tuo stesso post");
         } catch(NotInFeedException e) {
-            Utils.send(out, "questo post non e' nel tuo feed");
+            reply("questo post non e' nel tuo feed");
         }
     }
 
@@ -675,7 +1042,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void deletePost(int post_id) {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
@@ -683,11 +1050,11 @@ public class ConnectionHandler implements Runnable {
 
         try {
             social.deletePost(current_user, post_id);
-            Utils.send(out, "post #" + post_id + " eliminato");
+            reply("post #" + post_id + " eliminato");
         } catch(PostNotFoundException e) {
-            Utils.send(out, "impossibile trovare post con id #" + post_id);
+            reply("impossibile trovare post con id #" + post_id);
         } catch(InvalidOperationException e) {
-            Utils.send(out, "non puoi eliminare un post che non e' tuo");
+            reply("non puoi eliminare un post che non e' tuo");
         }
     }
 
@@ -698,7 +1065,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void getWallet() {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         
@@ -724,7 +1091,7 @@ public class ConnectionHandler implements Runnable {
             }
         }
 
-        Utils.send(out, output.toString());
+        reply(output.toString());
     }
 
     /**
@@ -733,7 +1100,7 @@ public class ConnectionHandler implements Runnable {
      */
     private void getWalletInBitcoin() {
         if(isNotLogged()) {
-            Utils.send(out, "non hai effettuato il login");
+            reply("non hai effettuato il login");
             return;
         }
         int precision = Integer.parseInt(config.getPreference("currency_decimal_places"));
@@ -754,7 +1121,7 @@ public class ConnectionHandler implements Runnable {
         output += "Tasso di conversione: " + social.getFormattedValue(conversionRate) + " (aggiornato al " + getFormattedDate(calcTimeStart) + ")\n";
         output += "Bilancio in Bitcoin: " + social.getFormattedValue(moneyInBitcoin) + "\n";
 
-        Utils.send(out, output);
+        reply(output);
     }
 
     // metodi per rendere più chiaro il codice
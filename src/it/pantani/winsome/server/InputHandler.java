@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static it.pantani.winsome.shared.Utils.getFormattedDate;
@@ -29,13 +30,13 @@ import static it.pantani.winsome.shared.Utils.getFormattedDate;
 public class InputHandler implements Runnable {
     private final ConfigManager config;
     private final SocialManager social;
-    private final ThreadPoolExecutor pool;
+    private final ExecutorService pool;
 
     private volatile boolean stop;
 
     String default_reason_transaction;
 
-    public InputHandler(ConfigManager config, SocialManager social, ThreadPoolExecutor pool) throws ConfigurationException {
+    public InputHandler(ConfigManager config, SocialManager social, ExecutorService pool) throws ConfigurationException {
         this.config = config;
         this.social = social;
         this.pool = pool;
@@ -177,12 +178,7 @@ public class InputHandler implements Runnable {
         for(Socket x : ServerMain.socketsList) {
             if(x.getPort() == client_port) {
                 found_client = true;
-                try {
-                    x.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                ServerMain.socketsList.remove(x);
+                closeClient(x);
             }
         }
 
@@ -195,15 +191,22 @@ public class InputHandler implements Runnable {
 
     private void kickAllClients() {
         for(Socket x : ServerMain.socketsList) {
+            closeClient(x);
+        }
+
+        System.out.println("> Connessione a tutti client chiusa.");
+    }
+
+    private void closeClient(Socket x) {
+        // in modalità nio la chiusura deve passare dal reactor, altrimenti la sessione dell'utente resterebbe attiva
+        if(ServerMain.nioServer == null || !ServerMain.nioServer.disconnect(x)) {
             try {
                 x.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            ServerMain.socketsList.remove(x);
         }
-
-        System.out.println("> Connessione a tutti client chiusa.");
+        ServerMain.socketsList.remove(x);
     }
 
     private void listClients() {
@@ -328,7 +331,7 @@ public class InputHandler implements Runnable {
 
         String reason = config.getPreference("default_reason_transaction");
         if(reason == null) reason = "SYSTEM";
-        double newBalance = social.getWalletByUsername(user).changeBalance(edit, reason);
+        double newBalance = social.addTransaction(user, edit, reason);
         System.out.println("> L'utente '" + user + "' ha ora un bilancio di " + social.getFormattedCurrency(newBalance));
     }
 
@@ -340,11 +343,20 @@ public class InputHandler implements Runnable {
         System.out.println("Utenti registrati: " + social.getUserCount());
         System.out.println("Utente col maggior numero di wincoin: " + getRicherUser());
         System.out.println("Socket attualmente in uso: " + ServerMain.socketsList.size());
-        System.out.println("Numero di thread schedulati: " + pool.getTaskCount() + " (stima)");
-        System.out.println("Numero di thread in attivita': " + pool.getActiveCount() + " (stima)");
-        System.out.println("Numero di thread completati: " + pool.getCompletedTaskCount() + " (stima)");
-        System.out.println("Numero attuale di thread nel pool: " + pool.getPoolSize());
-        System.out.println("Numero massimo raggiunto di thread attivi contemporaneamente: " + pool.getLargestPoolSize());
+        if(pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) pool;
+            System.out.println("Numero di thread schedulati: " + tpe.getTaskCount() + " (stima)");
+            System.out.println("Numero di thread in attivita': " + tpe.getActiveCount() + " (stima)");
+            System.out.println("Numero di thread completati: " + tpe.getCompletedTaskCount() + " (stima)");
+            System.out.println("Numero attuale di thread nel pool: " + tpe.getPoolSize());
+            System.out.println("Numero massimo raggiunto di thread attivi contemporaneamente: " + tpe.getLargestPoolSize());
+        } else { // virtual thread: non c'è un pool, uso i contatori dei connectionhandler
+            System.out.println("Numero di virtual thread avviati: " + ServerMain.startedHandlers.get());
+            System.out.println("Numero di virtual thread in attivita': " + ServerMain.activeHandlers.get());
+            System.out.println("Numero di virtual thread completati: " + ServerMain.completedHandlers.get());
+            System.out.println("Numero massimo raggiunto di virtual thread attivi contemporaneamente: " + ServerMain.maxActiveHandlers.get());
+            System.out.println("Numero di thread di piattaforma attivi: " + Thread.activeCount() + " (stima)");
+        }
         System.out.println("==============[Statistiche memoria heap in MB]==============");
         System.out.println(((instance.totalMemory() - instance.freeMemory()) / mb) + " in uso su " + (instance.totalMemory() / mb) + " totali | " + instance.maxMemory() / mb + " totali JVM");
     }
@@ -359,6 +371,7 @@ public class InputHandler implements Runnable {
                 // chiudendolo da qui, nel main sarà lanciata una IOException che mi permetterà di uscire dal ciclo infinito
                 ServerMain.serverSocket.close();
             } catch (IOException ignored) { }
+            if(ServerMain.nioServer != null) ServerMain.nioServer.stopExecution(); // in modalità nio sveglio il selector che accetta le connessioni
         }
     }
 
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.shared.BinaryProtocol;
+import it.pantani.winsome.shared.ConfigManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stato di una singola connessione gestita dal server NIO. Accumula i byte letti dal canale finché non ottiene una
+ * richiesta completa secondo lo stesso protocollo di Utils.send/Utils.receive (una riga con la lunghezza in byte e poi
+ * il contenuto) oppure, se il client lo ha richiesto all'inizio della connessione, secondo il BinaryProtocol; la
+ * accoda e la fa elaborare dal pool di worker. Le richieste di uno stesso client sono elaborate
+ * sempre una alla volta e nell'ordine di arrivo; le risposte sono accodate e scritte dal reactor quando il canale è
+ * pronto in scrittura.
+ */
+class NioConnection {
+    private static final int READ_BUFFER_SIZE = 4096; // dimensione iniziale del buffer di lettura
+    private static final int MAX_READ_BUFFER_SIZE = 16 * 1024 * 1024; // oltre questa dimensione la richiesta è rifiutata
+    private static final int MAX_GATHERED_REPLIES = 64; // risposte scritte con una sola operazione sul canale
+
+    // protocollo della connessione, deciso dai primi byte inviati dal client
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_TEXT = 1;
+    private static final int PROTOCOL_BINARY = 2;
+
+    private final SocketChannel channel;
+    private final NioServer server;
+    private final NioReactor reactor;
+    private final ExecutorService workers;
+    private final ConnectionHandler handler;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer;
+    private int pendingLength; // lunghezza del corpo della richiesta in arrivo, -1 se si attende ancora la riga con la lunghezza
+    private volatile int protocol;
+
+    private final ConcurrentLinkedQueue<Runnable> requests; // richieste da elaborare, già associate al metodo che le gestisce
+    private final ConcurrentLinkedQueue<ByteBuffer> replies;
+    private final ByteBuffer[] gathered; // usato solo dal reactor in onWritable()
+    private final AtomicBoolean scheduled; // vero se un worker sta già elaborando le richieste di questa connessione
+    private final AtomicBoolean closed;
+
+    /**
+     * Inizializza lo stato della connessione e il ConnectionHandler che elaborerà le richieste del client.
+     * @param channel il canale del client
+     * @param server il server NIO che ha accettato la connessione
+     * @param reactor il reactor che gestisce il canale
+     * @param workers il pool di thread che elabora le richieste
+     * @param chCode codice assegnato a questa connessione, usato nelle stampe
+     * @param config il file di configurazione
+     * @param social l'oggetto social
+     */
+    NioConnection(SocketChannel channel, NioServer server, NioReactor reactor, ExecutorService workers, int chCode, ConfigManager config, SocialManager social) {
+        this.channel = channel;
+        this.server = server;
+        this.reactor = reactor;
+        this.workers = workers;
+        this.handler = new ConnectionHandler(channel.socket(), chCode, config, social, this::reply);
+
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.pendingLength = -1;
+        this.protocol = PROTOCOL_UNKNOWN;
+
+        this.requests = new ConcurrentLinkedQueue<>();
+        this.replies = new ConcurrentLinkedQueue<>();
+        this.gathered = new ByteBuffer[MAX_GATHERED_REPLIES];
+        this.scheduled = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Fornisce il canale del client
+     * @return il canale del client
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Fornisce il reactor che gestisce questa connessione
+     * @return il reactor della connessione
+     */
+    NioReactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * Imposta la chiave ottenuta registrando il canale sul selector del reactor
+     * @param key la chiave del canale
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Chiamato dal reactor quando il canale ha dati da leggere. Legge tutto quello che è disponibile ed estrae le
+     * richieste complete. Se il client ha chiuso la connessione, la chiude anche lato server.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch(IOException e) {
+            read = -1;
+        }
+        if(read < 0) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        while(parseRequest()) ;
+        readBuffer.compact();
+
+        // se il buffer è pieno la richiesta non ci sta, quindi lo ingrandisco (entro un limite)
+        if(!readBuffer.hasRemaining()) {
+            if(readBuffer.capacity() >= MAX_READ_BUFFER_SIZE) {
+                System.err.println("[NIO]> Richiesta troppo grande da " + channel.socket().getInetAddress() + ":" + channel.socket().getPort() + ", chiudo la connessione.");
+                close();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    /**
+     * Prova ad estrarre una richiesta completa dal buffer di lettura (che deve essere in modalità lettura).
+     * @return vero se è stata estratta una richiesta, falso se servono altri dati
+     */
+    private boolean parseRequest() {
+        if(protocol == PROTOCOL_UNKNOWN) {
+            if(!readBuffer.hasRemaining()) return false;
+            if(readBuffer.get(readBuffer.position()) != BinaryProtocol.HELLO[0]) {
+                protocol = PROTOCOL_TEXT;
+            } else {
+                if(readBuffer.remaining() < BinaryProtocol.HELLO.length) return false;
+                for(byte b : BinaryProtocol.HELLO) {
+                    if(readBuffer.get() != b) {
+                        System.err.println("[NIO]> Richiesta di protocollo non valida da " + channel.socket().getInetAddress() + ":" + channel.socket().getPort() + ", chiudo la connessione.");
+                        close();
+                        return false;
+                    }
+                }
+                protocol = PROTOCOL_BINARY;
+                replies.add(ByteBuffer.wrap(BinaryProtocol.HELLO.clone())); // conferma del protocollo
+                reactor.requestWrite(this);
+            }
+        }
+        if(protocol == PROTOCOL_BINARY) return parseBinaryRequest();
+
+        if(pendingLength < 0) {
+            // cerco la fine della riga che contiene la lunghezza
+            int start = readBuffer.position();
+            int end = -1;
+            for(int i = start; i < readBuffer.limit(); i++) {
+                if(readBuffer.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if(end == -1) return false;
+
+            int lineEnd = end;
+            if(lineEnd > start && readBuffer.get(lineEnd - 1) == '\r') lineEnd--;
+            String line = decode(start, lineEnd - start);
+            readBuffer.position(end + 1);
+
+            try {
+                pendingLength = Integer.parseInt(line);
+            } catch(NumberFormatException e) {
+                // come Utils.receive, se la prima riga non è una lunghezza la considero già la richiesta
+                enqueue(line);
+                return true;
+            }
+            if(pendingLength < 0) {
+                pendingLength = -1;
+                return true;
+            }
+        }
+
+        if(readBuffer.remaining() < pendingLength) return false;
+        String request = decode(readBuffer.position(), pendingLength);
+        readBuffer.position(readBuffer.position() + pendingLength);
+        pendingLength = -1;
+        enqueue(request);
+        return true;
+    }
+
+    /**
+     * Prova ad estrarre un frame completo del protocollo binario dal buffer di lettura (in modalità lettura). Il
+     * frame viene copiato, perché il buffer di lettura sarà riusato per i dati successivi.
+     * @return vero se è stato estratto un frame, falso se servono altri dati
+     */
+    private boolean parseBinaryRequest() {
+        if(pendingLength < 0) {
+            if(readBuffer.remaining() < BinaryProtocol.HEADER_LENGTH) return false;
+            pendingLength = readBuffer.getInt();
+            if(pendingLength < 1 || pendingLength > BinaryProtocol.MAX_FRAME_LENGTH) {
+                System.err.println("[NIO]> Frame non valido da " + channel.socket().getInetAddress() + ":" + channel.socket().getPort() + ", chiudo la connessione.");
+                close();
+                return false;
+            }
+        }
+
+        if(readBuffer.remaining() < pendingLength) return false;
+        ByteBuffer frame = ByteBuffer.allocate(pendingLength);
+        int limit = readBuffer.limit();
+        readBuffer.limit(readBuffer.position() + pendingLength);
+        frame.put(readBuffer).flip();
+        readBuffer.limit(limit);
+        pendingLength = -1;
+        requests.add(() -> handler.handleBinaryRequest(frame));
+        schedule();
+        return true;
+    }
+
+    /**
+     * Converte in stringa una porzione del buffer di lettura usando la stessa codifica del client
+     * @param offset posizione del primo byte
+     * @param length numero di byte
+     * @return la stringa decodificata
+     */
+    private String decode(int offset, int length) {
+        return new String(readBuffer.array(), readBuffer.arrayOffset() + offset, length, Charset.defaultCharset());
+    }
+
+    /**
+     * Accoda una richiesta e, se nessun worker sta già lavorando per questa connessione, ne schedula uno.
+     * @param request la richiesta completa ricevuta dal client
+     */
+    private void enqueue(String request) {
+        requests.add(() -> handler.handleRequest(request));
+        schedule();
+    }
+
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(this::processRequests);
+            } catch(RejectedExecutionException e) {
+                scheduled.set(false); // il pool è in chiusura
+            }
+        }
+    }
+
+    /**
+     * Eseguito da un worker: elabora in ordine tutte le richieste accodate. Dopo aver rilasciato il flag controlla di
+     * nuovo la coda, per non perdere una richiesta arrivata nel frattempo.
+     */
+    private void processRequests() {
+        Runnable request;
+        do {
+            while((request = requests.poll()) != null) {
+                if(closed.get()) return;
+                request.run();
+            }
+            scheduled.set(false);
+        } while(!requests.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Chiamato dal ConnectionHandler (su un worker) per inviare una risposta. La risposta viene codificata come
+     * farebbe Utils.send (o come frame del protocollo binario) e accodata, poi si chiede al reactor di scriverla.
+     * @param message la risposta da inviare
+     */
+    private void reply(String message) {
+        if(protocol == PROTOCOL_BINARY) {
+            replies.add(ByteBuffer.wrap(BinaryProtocol.encodeReply(handler.getRequestId(), message)));
+            reactor.requestWrite(this);
+            return;
+        }
+        byte[] body = message.getBytes(Charset.defaultCharset());
+        byte[] header = (body.length + System.lineSeparator()).getBytes(Charset.defaultCharset());
+
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + body.length);
+        buffer.put(header).put(body).flip();
+        replies.add(buffer);
+        reactor.requestWrite(this);
+    }
+
+    /**
+     * Eseguito dal reactor: se ci sono risposte da inviare si mette in ascolto dell'evento di scrittura.
+     */
+    void enableWrite() {
+        if(key != null && key.isValid() && !replies.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Chiamato dal reactor quando il canale è pronto in scrittura. Scrive quante più risposte possibili, raccogliendo
+     * in una sola scrittura quelle accodate di seguito (per esempio le risposte a richieste inviate in pipelining);
+     * quando la coda è vuota smette di ascoltare l'evento di scrittura.
+     */
+    void onWritable() {
+        try {
+            while(true) {
+                int n = 0;
+                for(ByteBuffer buffer : replies) { // solo il reactor toglie elementi, quindi sono i primi della coda
+                    gathered[n++] = buffer;
+                    if(n == MAX_GATHERED_REPLIES) break;
+                }
+                if(n == 0) break;
+                channel.write(gathered, 0, n);
+                boolean full = false;
+                for(int i = 0; i < n; i++) {
+                    if(gathered[i].hasRemaining()) {
+                        full = true; // il buffer del socket è pieno, riprovo al prossimo evento
+                        break;
+                    }
+                    replies.poll();
+                }
+                Arrays.fill(gathered, 0, n, null);
+                if(full) return;
+            }
+        } catch(IOException e) {
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // una risposta potrebbe essere stata accodata dopo il controllo del while
+        if(!replies.isEmpty()) enableWrite();
+    }
+
+    /**
+     * Chiude la connessione e libera le risorse del ConnectionHandler. Può essere chiamato più volte, ma la chiusura
+     * avviene una volta sola.
+     */
+    void close() {
+        if(!closed.compareAndSet(false, true)) return;
+
+        if(key != null) key.cancel();
+        try {
+            channel.close();
+        } catch(IOException ignored) { }
+        server.connectionClosed(channel.socket());
+        handler.closeConnection();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread di I/O del server NIO. Ogni reactor ha il suo selector e gestisce un sottoinsieme delle connessioni: legge le
+ * richieste e scrive le risposte, ma non le elabora (quello lo fa il pool di worker). Le operazioni sul selector
+ * richieste da altri thread (registrazione di un nuovo canale, abilitazione della scrittura, chiusura) vengono
+ * accodate ed eseguite dal reactor stesso, così solo lui tocca le chiavi.
+ */
+class NioReactor implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+
+    private volatile boolean stop = false;
+
+    /**
+     * Apre il selector del reactor
+     * @throws IOException se non è possibile aprire il selector
+     */
+    NioReactor() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Ciclo del reactor: attende eventi sui canali registrati e li smista alle rispettive connessioni.
+     */
+    public void run() {
+        while(!stop) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                if(key.isValid() && key.isReadable()) connection.onReadable();
+                if(key.isValid() && key.isWritable()) connection.onWritable();
+            }
+        }
+
+        // chiusura di tutte le connessioni rimaste
+        for(SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch(IOException ignored) { }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registra una nuova connessione su questo reactor
+     * @param connection la connessione da registrare
+     */
+    void register(NioConnection connection) {
+        submit(() -> {
+            try {
+                connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+            } catch(ClosedChannelException e) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Chiede al reactor di abilitare la scrittura sul canale della connessione (ci sono risposte in coda)
+     * @param connection la connessione con risposte da inviare
+     */
+    void requestWrite(NioConnection connection) {
+        submit(connection::enableWrite);
+    }
+
+    /**
+     * Chiede al reactor di chiudere una connessione
+     * @param connection la connessione da chiudere
+     */
+    void requestClose(NioConnection connection) {
+        submit(connection::close);
+    }
+
+    /**
+     * Termina il ciclo del reactor, che chiude tutte le connessioni ancora registrate.
+     */
+    public void stopExecution() {
+        stop = true;
+        selector.wakeup();
+    }
+}
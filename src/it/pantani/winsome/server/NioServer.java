@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.shared.ConfigManager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Server basato su selector, alternativo al modello "un thread per connessione". Il ServerSocketChannel non bloccante
+ * accetta le connessioni e le distribuisce (round robin) su un numero fisso di NioReactor, che si occupano di tutto
+ * l'I/O; le richieste vere e proprie sono elaborate dal pool di worker tramite i soliti ConnectionHandler. In questo
+ * modo il numero di thread non cresce con il numero di client collegati. Il protocollo è lo stesso della modalità
+ * classica, quindi il client non deve sapere come è configurato il server.
+ */
+public class NioServer implements Runnable {
+    private final ConfigManager config;
+    private final SocialManager social;
+    private final ExecutorService workers;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final NioReactor[] reactors;
+    private final Thread[] reactorThreads;
+
+    // associa il socket di ogni client alla sua connessione, serve per poterla chiudere dall'InputHandler
+    private final ConcurrentHashMap<Socket, NioConnection> connections;
+
+    private volatile boolean stop = false;
+
+    /**
+     * Apre il canale del server sulla porta specificata e prepara i reactor (che non vengono ancora avviati).
+     * @param server_port la porta su cui mettersi in ascolto
+     * @param reactor_threads numero di thread reactor per l'I/O
+     * @param workers pool di thread che elabora le richieste
+     * @param config il file di configurazione
+     * @param social l'oggetto social
+     * @throws IOException se non è possibile aprire il canale o i selector
+     */
+    public NioServer(int server_port, int reactor_threads, ExecutorService workers, ConfigManager config, SocialManager social) throws IOException {
+        this.config = config;
+        this.social = social;
+        this.workers = workers;
+        this.connections = new ConcurrentHashMap<>();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(server_port));
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        reactors = new NioReactor[reactor_threads];
+        reactorThreads = new Thread[reactor_threads];
+        for(int i = 0; i < reactor_threads; i++) {
+            reactors[i] = new NioReactor();
+            reactorThreads[i] = new Thread(reactors[i], "nio-reactor-" + i);
+        }
+    }
+
+    /**
+     * Fornisce il socket del server. Chiuderlo (come fa il comando "stopserver") chiude anche il canale.
+     * @return il socket associato al canale del server
+     */
+    public ServerSocket getServerSocket() {
+        return serverChannel.socket();
+    }
+
+    /**
+     * Avvia i reactor e accetta le connessioni fino a quando non viene chiamato stopExecution() o il canale del
+     * server viene chiuso.
+     */
+    public void run() {
+        for(Thread t : reactorThreads) {
+            t.start();
+        }
+
+        // contatore delle connessioni, solo a scopo informativo e di debug
+        int i = 1;
+        int next = 0;
+        while(!stop && serverChannel.isOpen()) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid() || !key.isAcceptable()) continue;
+
+                    SocketChannel client;
+                    while((client = serverChannel.accept()) != null) {
+                        client.configureBlocking(false);
+                        client.socket().setTcpNoDelay(true);
+
+                        NioReactor reactor = reactors[next];
+                        next = (next + 1) % reactors.length;
+
+                        NioConnection connection = new NioConnection(client, this, reactor, workers, i, config, social);
+                        ServerMain.socketsList.add(client.socket());
+                        connections.put(client.socket(), connection);
+                        System.out.println("[CH #" + i + "]> Sto gestendo il socket: " + client.socket().getInetAddress() + ":" + client.socket().getPort());
+                        reactor.register(connection);
+                        i++;
+                    }
+                }
+            } catch(IOException e) {
+                if(stop || !serverChannel.isOpen()) break; // canale chiuso da "stopserver"
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            acceptSelector.close();
+            serverChannel.close();
+        } catch(IOException ignored) { }
+    }
+
+    /**
+     * Chiude la connessione di un client, come farebbe la chiusura del socket in modalità classica. La chiusura vera
+     * e propria è eseguita dal reactor che gestisce la connessione, che libera anche la sessione dell'utente.
+     * @param socket il socket del client da disconnettere
+     * @return vero se il socket apparteneva ad una connessione gestita da questo server
+     */
+    public boolean disconnect(Socket socket) {
+        NioConnection connection = connections.remove(socket);
+        if(connection == null) return false;
+        connection.getReactor().requestClose(connection);
+        return true;
+    }
+
+    /**
+     * Rimuove una connessione terminata dalla mappa delle connessioni attive
+     * @param socket il socket della connessione terminata
+     */
+    void connectionClosed(Socket socket) {
+        connections.remove(socket);
+    }
+
+    /**
+     * Ferma l'accettazione di nuove connessioni e termina i reactor, che chiudono le connessioni ancora aperte.
+     */
+    public void stopExecution() {
+        stop = true;
+        acceptSelector.wakeup();
+        for(NioReactor r : reactors) {
+            r.stopExecution();
+        }
+        for(Thread t : reactorThreads) {
+            try {
+                t.join();
+            } catch(InterruptedException ignored) { }
+        }
+    }
+}
@@ -8,6 +8,7 @@ package it.pantani.winsome.server;
 
 import it.pantani.winsome.shared.ConfigManager;
 import it.pantani.winsome.server.utils.JsonManager;
+import it.pantani.winsome.server.utils.WriteAheadLog;
 
 import javax.naming.ConfigurationException;
 import java.io.IOException;
@@ -16,12 +17,17 @@ import java.io.IOException;
  * Classe che implementa il salvataggio dei dati persistenti in modo periodico. Per evitare che un arresto improvviso
  * faccia perdere tutti i dati al server, questo thread salva periodicamente i dati in memoria. Inoltre, al termine
  * del server (col comando "stopserver") questo metodo esegue un ultimo salvataggio prima di terminare.
+ * Ogni salvataggio cattura prima uno snapshot dei dati (sospendendo le modifiche solo per copiare quello che è
+ * cambiato dal salvataggio precedente) e poi lo scrive su disco senza bloccare le richieste dei client. Se il
+ * write-ahead log è attivo il salvataggio fa anche da checkpoint: la cattura passa ad un nuovo segmento del registro
+ * e, salvato lo snapshot, i segmenti precedenti vengono cancellati perché il loro contenuto è ormai nei file json.
  */
 public class PeriodicSaveManager implements Runnable {
     private final ConfigManager config;
     private final JsonManager jsonmngr;
     private final SocialManager social;
     private final RewardsManager rewards;
+    private final WriteAheadLog wal;
 
     private volatile boolean stop;
 
@@ -34,13 +40,15 @@ public class PeriodicSaveManager implements Runnable {
      * @param json da salvare
      * @param social da salvare
      * @param rewards da salvare
+     * @param wal il write-ahead log di cui cancellare i segmenti salvati, null se disattivato
      * @throws ConfigurationException se la preferenza fornita non è valida
      */
-    public PeriodicSaveManager(ConfigManager config, JsonManager json, SocialManager social, RewardsManager rewards) throws ConfigurationException {
+    public PeriodicSaveManager(ConfigManager config, JsonManager json, SocialManager social, RewardsManager rewards, WriteAheadLog wal) throws ConfigurationException {
         this.config = config;
         this.jsonmngr = json;
         this.social = social;
         this.rewards = rewards;
+        this.wal = wal;
         stop = false;
 
         // validazione preferenze
@@ -63,14 +71,17 @@ public class PeriodicSaveManager implements Runnable {
 
             try {
                 inizio = System.currentTimeMillis();
-                jsonmngr.saveAll(social);
-                social.savePersistentData();
-                rewards.savePersistentData();
+                SocialSnapshot snapshot = social.captureSnapshot();
+                jsonmngr.saveAll(snapshot);
+                social.savePersistentData(snapshot);
+                rewards.savePersistentData(snapshot);
+                if(wal != null) wal.deleteSegmentsBefore(snapshot.getWalSegment());
                 if(!stop) System.out.println("[SDM]> Salvataggio periodico dati completato, ha richiesto " + (System.currentTimeMillis() - inizio) + "ms."); // se il server è in fase di stop non c'è bisogno di questa stampa
             } catch(IOException e) {
                 e.printStackTrace();
             }
         }
+        if(wal != null) wal.close();
         System.out.println("> Periodic save manager chiuso.");
     }
 
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Registro delle attività (voti e commenti) avvenute sui post dall'ultimo calcolo dei premi. Il SocialManager vi
+ * aggiunge un evento ogni volta che un voto o un commento viene accettato; il RewardsManager, ad ogni ciclo, chiude
+ * il registro corrente (sostituendolo con uno vuoto) e calcola i premi dei soli post che compaiono in quello chiuso.
+ * Così il costo di un ciclo dipende dall'attività nell'intervallo e non dal numero totale di post, voti e commenti.
+ * Il registro tiene anche il contatore dei cicli effettuati, usato per ricavare il numero di iterazioni di un post.
+ */
+class RewardsEventLog {
+    // gli eventi sono registrati con il lock in lettura (più thread insieme), la chiusura del ciclo prende quello in
+    // scrittura: in questo modo nessun evento può finire in un registro già consegnato al RewardsManager
+    private final ReentrantReadWriteLock lock;
+    private ConcurrentHashMap<Integer, PostActivity> current;
+    private int cycle;
+    // ultimo ciclo i cui premi sono stati applicati ai portafogli e sua data (0 se nessuno): cycle viene incrementato
+    // appena il ciclo si chiude, questi solo quando i premi sono stati assegnati
+    private int appliedCycle;
+    private long lastCycleTime;
+
+    RewardsEventLog() {
+        this.lock = new ReentrantReadWriteLock();
+        this.current = new ConcurrentHashMap<>();
+        this.cycle = 0;
+        this.appliedCycle = 0;
+        this.lastCycleTime = 0;
+    }
+
+    /**
+     * Registra un voto appena aggiunto ad un post
+     * @param post_id l'id del post votato
+     * @param username l'utente che ha votato
+     * @param value il valore del voto
+     */
+    void recordVote(int post_id, String username, int value) {
+        lock.readLock().lock();
+        try {
+            current.computeIfAbsent(post_id, k -> new PostActivity()).addVote(username, value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registra un commento appena aggiunto ad un post
+     * @param post_id l'id del post commentato
+     * @param username l'autore del commento
+     */
+    void recordComment(int post_id, String username) {
+        lock.readLock().lock();
+        try {
+            current.computeIfAbsent(post_id, k -> new PostActivity()).addCommenter(username);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Chiude il ciclo corrente: incrementa il contatore dei cicli e sostituisce il registro con uno vuoto.
+     * @return le attività registrate durante il ciclo appena chiuso, per id del post
+     */
+    ConcurrentHashMap<Integer, PostActivity> closeCycle() {
+        lock.writeLock().lock();
+        try {
+            ConcurrentHashMap<Integer, PostActivity> closed = current;
+            current = new ConcurrentHashMap<>();
+            cycle++;
+            return closed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Riesegue la chiusura di un ciclo letta dal write-ahead log: il contatore dei cicli e l'ultimo ciclo applicato
+     * avanzano fino a quelli del record (se non li hanno già superati).
+     * @param cycle il numero del ciclo
+     * @param time la data del ciclo in tempo UNIX
+     */
+    void replayCycle(int cycle, long time) {
+        lock.writeLock().lock();
+        try {
+            this.cycle = Math.max(this.cycle, cycle);
+            markApplied(cycle, time);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Segna un ciclo come applicato, cioè con i premi già aggiunti ai portafogli
+     * @param cycle il numero del ciclo
+     * @param time la data del ciclo in tempo UNIX
+     */
+    void markApplied(int cycle, long time) {
+        lock.writeLock().lock();
+        try {
+            this.appliedCycle = Math.max(this.appliedCycle, cycle);
+            this.lastCycleTime = Math.max(this.lastCycleTime, time);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fornisce la data dell'ultimo ciclo applicato
+     * @return la data in tempo UNIX, 0 se non è stato applicato alcun ciclo
+     */
+    long getLastCycleTime() {
+        lock.readLock().lock();
+        try {
+            return lastCycleTime;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fornisce il numero dell'ultimo ciclo applicato
+     * @return il numero del ciclo
+     */
+    int getAppliedCycle() {
+        lock.readLock().lock();
+        try {
+            return appliedCycle;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fornisce il numero di cicli di calcolo dei premi effettuati finora
+     * @return il numero di cicli effettuati
+     */
+    int getCycle() {
+        lock.readLock().lock();
+        try {
+            return cycle;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Imposta il numero di cicli effettuati, letto dal file di configurazione all'avvio
+     * @param cycle il numero di cicli effettuati
+     */
+    void setCycle(int cycle) {
+        lock.writeLock().lock();
+        try {
+            this.cycle = cycle;
+            this.appliedCycle = cycle;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Attività di un singolo post durante un ciclo. Voti e commentatori sono mantenuti nell'ordine di arrivo, lo
+     * stesso in cui il RewardsManager li trovava scorrendo il post.
+     */
+    static class PostActivity {
+        private final LinkedHashMap<String, Integer> votes = new LinkedHashMap<>();
+        private final LinkedHashSet<String> commenters = new LinkedHashSet<>();
+
+        synchronized void addVote(String username, int value) {
+            votes.putIfAbsent(username, value);
+        }
+
+        synchronized void addCommenter(String username) {
+            commenters.add(username);
+        }
+
+        /**
+         * Fornisce la somma dei valori dei voti ricevuti durante il ciclo
+         * @return la somma dei voti
+         */
+        synchronized int getVotesSum() {
+            int sum = 0;
+            for(int v : votes.values()) {
+                sum += v;
+            }
+            return sum;
+        }
+
+        /**
+         * Fornisce gli utenti che hanno votato il post durante il ciclo
+         * @return l'insieme dei votanti
+         */
+        synchronized Set<String> getVoters() {
+            return votes.keySet();
+        }
+
+        /**
+         * Fornisce gli utenti che hanno commentato il post durante il ciclo
+         * @return l'insieme dei commentatori
+         */
+        synchronized Set<String> getCommenters() {
+            return commenters;
+        }
+    }
+}
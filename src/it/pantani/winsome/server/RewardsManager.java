@@ -7,7 +7,7 @@
 package it.pantani.winsome.server;
 
 import it.pantani.winsome.server.entities.WinSomePost;
-import it.pantani.winsome.server.entities.WinSomeVote;
+import it.pantani.winsome.server.entities.WinSomeTransaction;
 import it.pantani.winsome.shared.ConfigManager;
 
 import javax.naming.ConfigurationException;
@@ -16,9 +16,13 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Gestisce calcolo, assegnazione e l'invio delle notifiche dei premi in valuta agli autori e curatori di post.
@@ -43,6 +47,11 @@ public class RewardsManager implements Runnable {
 
     private volatile boolean stop = false;
 
+    // numero di post oltre il quale un compito del calcolo dei premi viene diviso in due
+    private static final int POSTS_PER_TASK = 64;
+    // thread su cui è diviso il calcolo dei premi di un ciclo
+    private ForkJoinPool rewards_pool;
+
     /**
      * Questo costruttore si occupa di gestire anche eventuali errori di configurazione nel file.
      * @param config L'oggetto che contiene tutte le proprietà ricevute in input dal file di configurazione
@@ -57,9 +66,9 @@ public class RewardsManager implements Runnable {
     }
 
     /**
-     * Inizia il calcolo, per ogni singolo post, dei premi all'autore e curatore. Il controllo dei voti e commenti è
-     * effettuato solo su post e commenti che hanno una data di invio (dateSent) superiore (quindi inviati dopo) a
-     * quella dell'ultimo controllo.
+     * Inizia il calcolo periodico dei premi all'autore e curatore. Ad ogni ciclo sono considerati solo i post che hanno
+     * ricevuto voti o commenti dall'ultimo controllo, presi dal registro delle attività del social. Prima di avviare il
+     * thread va chiamato loadPendingActivity(), dopo aver caricato i dati di persistenza.
      */
     public void run() {
         try {
@@ -72,16 +81,10 @@ public class RewardsManager implements Runnable {
             byte[] buffer_array;
             DatagramPacket packet;
 
-            ConcurrentHashMap<Integer, WinSomePost> postsList;
             // il controllo dei premi è eseguito all'infinito fino a quando il server non viene spento
             while(!stop) {
-                postsList = social.getPostList(); // ottengo tutti i post
-                if(postsList.size() != 0) {
-                    double gain, total_gain = 0;
-                    for(WinSomePost p : postsList.values()) { // per ogni post calcolo il guadagno
-                        gain = calculateReward(p);
-                        total_gain += gain;
-                    }
+                if(social.getPostList().size() != 0) {
+                    double total_gain = runRewardsCycle();
                     if (total_gain != 0) { // se il guadagno di tutti i post non è 0, allora invio un messaggio a tutti i client
                         buffer_array = social.getFormattedCurrency(total_gain).getBytes(StandardCharsets.UTF_8);
 
@@ -95,7 +98,6 @@ public class RewardsManager implements Runnable {
                         socketServer.send(packet);
                         System.out.println("[RW]> Inviata notifica su " + multicast_address + ":" + multicast_port + " riguardo il premio di " + social.getFormattedCurrency(total_gain));
                     }
-                    last_rewards_check = System.currentTimeMillis(); // aggiorno ultimo controllo
                 }
 
                 // aspetto rewards_check_timeout millisecondi prima di effettuare di nuovo il controllo
@@ -103,35 +105,151 @@ public class RewardsManager implements Runnable {
                     Thread.sleep(rewards_check_timeout);
                 } catch(InterruptedException ignored) { }
             }
+            rewards_pool.shutdown();
             System.out.println("> Rewards manager chiuso.");
         } catch(IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Esegue un ciclo di calcolo dei premi: chiude il registro delle attività del social e assegna i premi dei post
+     * che vi compaiono. I post senza attività nel ciclo avrebbero un guadagno nullo, quindi non vengono nemmeno
+     * visitati; il loro numero di iterazioni avanza comunque perché è ricavato dal contatore dei cicli.
+     * I premi dei singoli post sono calcolati in parallelo sui thread di rewards_pool; i risultati sono poi uniti in
+     * ordine di id del post, quindi il totale (anche nelle cifre meno significative) e le transazioni non dipendono da
+     * quanti thread sono stati usati né da come i post sono stati divisi tra loro.
+     * @return il premio totale assegnato in questo ciclo
+     */
+    public synchronized double runRewardsCycle() {
+        RewardsEventLog log = social.getRewardsLog();
+        ConcurrentHashMap<Integer, RewardsEventLog.PostActivity> activity = log.closeCycle();
+        last_rewards_check = System.currentTimeMillis(); // aggiorno ultimo controllo
+        int cycle = log.getCycle();
+
+        // ordino i post per id, così la somma dei guadagni non dipende dall'ordine della mappa
+        int[] post_ids = activity.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        PostRewards[] results = new PostRewards[post_ids.length];
+        rewards_pool.invoke(new RewardsTask(post_ids, activity, cycle, results, 0, post_ids.length));
+
+        // premi raggruppati per destinatario, applicati ai portafogli tutti insieme alla fine del ciclo
+        double total_gain = 0;
+        LinkedHashMap<String, ArrayList<WinSomeTransaction>> rewards = new LinkedHashMap<>();
+        for(PostRewards res : results) {
+            if(res == null) continue; // il post è stato cancellato nel frattempo
+            total_gain += res.gain;
+            for(int i = 0; i < res.usernames.size(); i++) {
+                rewards.computeIfAbsent(res.usernames.get(i), k -> new ArrayList<>()).add(res.transactions.get(i));
+            }
+        }
+        social.applyRewards(cycle, last_rewards_check, rewards);
+        return total_gain;
+    }
+
+    /**
+     * Imposta il numero di thread su cui è diviso il calcolo dei premi (usato dai benchmark per confrontare tempi con
+     * un numero diverso di core). Non va chiamato durante un ciclo.
+     * @param threads il numero di thread
+     */
+    synchronized void setRewardsThreads(int threads) {
+        if(rewards_pool != null) rewards_pool.shutdown();
+        rewards_pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Calcola i premi di un intervallo dei post del ciclo, dividendolo in due finché contiene più di POSTS_PER_TASK
+     * post. Ogni post scrive il proprio risultato nella sua posizione di results, quindi i compiti non condividono
+     * nulla.
+     */
+    @SuppressWarnings("serial") // i compiti non vengono mai serializzati
+    private class RewardsTask extends RecursiveAction {
+        private final int[] post_ids;
+        private final ConcurrentHashMap<Integer, RewardsEventLog.PostActivity> activity;
+        private final int cycle;
+        private final PostRewards[] results;
+        private final int from;
+        private final int to;
+
+        RewardsTask(int[] post_ids, ConcurrentHashMap<Integer, RewardsEventLog.PostActivity> activity, int cycle, PostRewards[] results, int from, int to) {
+            this.post_ids = post_ids;
+            this.activity = activity;
+            this.cycle = cycle;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > POSTS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RewardsTask(post_ids, activity, cycle, results, from, mid),
+                        new RewardsTask(post_ids, activity, cycle, results, mid, to));
+                return;
+            }
+            for(int i = from; i < to; i++) {
+                WinSomePost p = social.getPost(post_ids[i]);
+                if(p == null) continue; // il post è stato cancellato nel frattempo
+                results[i] = calculateReward(p, activity.get(post_ids[i]), cycle);
+            }
+        }
+    }
+
+    /**
+     * Premio di un post in un ciclo e transazioni da assegnare ad autore e curatori
+     */
+    private static class PostRewards {
+        private double gain;
+        private final ArrayList<String> usernames = new ArrayList<>();
+        private final ArrayList<WinSomeTransaction> transactions = new ArrayList<>();
+
+        /**
+         * Aggiunge un premio a quelli da applicare alla fine del ciclo
+         * @param username il destinatario del premio
+         * @param edit il valore del premio
+         * @param reason la causale della transazione
+         */
+        private void addReward(String username, double edit, String reason) {
+            usernames.add(username);
+            transactions.add(new WinSomeTransaction(edit, reason));
+        }
+    }
+
+    /**
+     * Da chiamare all'avvio, dopo il caricamento dei dati di persistenza e prima di avviare il thread: recupera i voti
+     * e commenti inviati dopo l'ultimo controllo dei premi.
+     */
+    public void loadPendingActivity() {
+        // se il write-ahead log conteneva cicli successivi all'ultimo salvataggio, l'ultimo controllo è quello
+        RewardsEventLog log = social.getRewardsLog();
+        last_rewards_check = Math.max(last_rewards_check, log.getLastCycleTime());
+        log.markApplied(log.getCycle(), last_rewards_check);
+        social.rebuildRewardsLog(last_rewards_check);
+    }
+
     /**
      * Metodo che si occupa di calcolare il premio in valuta winsome di un singolo post
      * @param p il post di cui devo effettuare il calcolo
-     * @return il premio in valuta winsome relativo a quel post che andrà spartito tra autore e curatori
+     * @param activity i voti e commenti ricevuti dal post durante il ciclo
+     * @param cycle il numero del ciclo corrente
+     * @return il premio in valuta winsome relativo a quel post che andrà spartito tra autore e curatori, insieme alle
+     * transazioni che lo spartiscono
      */
-    private double calculateReward(WinSomePost p) {
+    private PostRewards calculateReward(WinSomePost p, RewardsEventLog.PostActivity activity, int cycle) {
         double gain;
-        int numIteration = p.addIteration(); // ottengo l'iterazione del post a cui sono
+        // ottengo l'iterazione del post a cui sono (almeno 1, nel caso il contatore dei cicli salvato fosse rimasto
+        // indietro rispetto ai post, per esempio dopo una chiusura non corretta del server)
+        int numIteration = Math.max(1, p.getNumIterations(cycle));
 
-        double first_log = 0;
-        ConcurrentHashMap<String, WinSomeVote> votes_list = p.getVoteList(last_rewards_check);
-        for(WinSomeVote v : votes_list.values()) {
-            first_log += v.getVote();
-        }
+        double first_log = activity.getVotesSum();
         if(first_log <= 0) first_log = 0; // parte "max" della formula
         first_log++;
         first_log = Math.log(first_log);
         // prima parte pronta
 
         double second_log = 0;
-        ArrayList<String> users_commenting = p.getUsersCommenting(last_rewards_check);
+        Set<String> users_commenting = activity.getCommenters();
         for(String user : users_commenting) {
-            int total_comments_by_user = p.findCommentsByUser(user).size();
+            int total_comments_by_user = p.getNumCommentsByUser(user);
             second_log += (2/(1+Math.pow(Math.E, -(total_comments_by_user-1))));
         }
         second_log++;
@@ -140,25 +258,29 @@ public class RewardsManager implements Runnable {
 
         gain = (first_log + second_log)/numIteration;
 
-        if(gain != 0) updateBalance(p.getPostID(), gain, votes_list, users_commenting);
-        return gain;
+        PostRewards ret = new PostRewards();
+        ret.gain = gain;
+        if(gain != 0) updateBalance(ret, p, gain, activity.getVoters(), users_commenting);
+        return ret;
     }
 
     /**
-     * Aggiorna i bilanci dei vari utenti che hanno partecipato al post
-     * @param post_id id del post di abbiamo calcolato il guadagno
+     * Prepara le transazioni che aggiornano i bilanci dei vari utenti che hanno partecipato al post
+     * @param rewards dove aggiungere le transazioni
+     * @param p il post di cui abbiamo calcolato il guadagno
      * @param gain il guadagno del post da spartire tra autore e curatori
-     * @param votes_list la lista dei voti del post (ricevuta invece di calcolata perché nel frattempo potrebbero essere cambiati
-     * @param users_commenting la lista dei commenti del post (ricevuta invece di calcolata perché nel frattempo potrebbero essere cambiati
+     * @param voters gli utenti che hanno votato il post durante il ciclo
+     * @param users_commenting gli utenti che hanno commentato il post durante il ciclo
      */
-    private void updateBalance(int post_id, double gain, ConcurrentHashMap<String, WinSomeVote> votes_list, ArrayList<String> users_commenting) {
+    private void updateBalance(PostRewards rewards, WinSomePost p, double gain, Set<String> voters, Set<String> users_commenting) {
         String updated_reason;
+        int post_id = p.getPostID();
 
         // curatori
         Set<String> curators = new LinkedHashSet<>();
         updated_reason = curator_reward_reason.replace("{post}", String.valueOf(post_id));
 
-        curators.addAll(votes_list.keySet());
+        curators.addAll(voters);
 
         curators.addAll(users_commenting);
 
@@ -166,14 +288,14 @@ public class RewardsManager implements Runnable {
 
         double gain_per_curator = (gain*(percentage_reward_curator*0.01))/curators.size();
         for(String c : curators) {
-            social.getWalletByUsername(c).changeBalance(gain_per_curator, updated_reason);
+            rewards.addReward(c, gain_per_curator, updated_reason);
         }
 
         // autore
         updated_reason = author_reward_reason.replace("{post}", String.valueOf(post_id));
 
         double gain_per_author = gain*(percentage_reward_author*0.01);
-        social.getWalletByUsername(social.getPost(post_id).getAuthor()).changeBalance((float)gain_per_author, updated_reason);
+        rewards.addReward(p.getAuthor(), (float)gain_per_author, updated_reason);
     }
 
     /**
@@ -190,10 +312,13 @@ public class RewardsManager implements Runnable {
     /**
      * Permette di salvare il dato sull'ultimo controllo dei premi in memoria persistente. Si è preferito tenere
      * questo metodo nella classe RewardsManager invece che nel main o nel SocialManager per cercare di tenere più
-     * separati possibili i compiti delle singole classi.
+     * separati possibili i compiti delle singole classi. I valori sono quelli dello snapshot, così sono coerenti con
+     * i portafogli salvati insieme a loro.
+     * @param snapshot lo snapshot appena salvato
      */
-    public void savePersistentData() {
-        config.forceSavePreference("last_rewards_check", String.valueOf(last_rewards_check));
+    public void savePersistentData(SocialSnapshot snapshot) {
+        config.forceSavePreference("last_rewards_check", String.valueOf(snapshot.getLastRewardsCheck()));
+        config.forceSavePreference("rewards_cycle_count", String.valueOf(snapshot.getRewardsCycle()));
     }
 
     /**
@@ -243,6 +368,19 @@ public class RewardsManager implements Runnable {
             throw new ConfigurationException("valore 'last_rewards_check' non valido (" + last_rewards_check + " non puo' essere negativo)");
         }
 
+        // controllo numero di cicli di calcolo dei premi effettuati (anche questo non dovrebbe essere modificato; se
+        // manca, come nei config generati dalle versioni precedenti, parto da 0)
+        int rewards_cycle_count;
+        try {
+            rewards_cycle_count = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("rewards_cycle_count"), "0"));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("valore 'rewards_cycle_count' non valido (" + e.getLocalizedMessage() + ")");
+        }
+        if(rewards_cycle_count < 0) {
+            throw new ConfigurationException("valore 'rewards_cycle_count' non valido (" + rewards_cycle_count + " non puo' essere negativo)");
+        }
+        social.getRewardsLog().setCycle(rewards_cycle_count);
+
         // controllo percentuale autore e curatore del premio in valuta winsome
         try {
             percentage_reward_author = Integer.parseInt(config.getPreference("percentage_reward_author"));
@@ -264,5 +402,18 @@ public class RewardsManager implements Runnable {
         if(curator_reward_reason == null) {
             throw new ConfigurationException("valore 'curator_reward_reason' non valido (non e' presente nel file di configurazione)");
         }
+
+        // controllo numero di thread del calcolo dei premi (se manca, come nei config generati dalle versioni
+        // precedenti, uso un thread per core)
+        int rewards_threads;
+        try {
+            rewards_threads = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("rewards_threads"), String.valueOf(Runtime.getRuntime().availableProcessors())));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("valore 'rewards_threads' non valido (" + e.getLocalizedMessage() + ")");
+        }
+        if(rewards_threads <= 0) {
+            throw new ConfigurationException("valore 'rewards_threads' non valido (" + rewards_threads + " dovrebbe essere maggiore di 0)");
+        }
+        rewards_pool = new ForkJoinPool(rewards_threads);
     }
 }
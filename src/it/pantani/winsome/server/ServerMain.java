@@ -13,6 +13,7 @@ import it.pantani.winsome.server.rmi.WinSomeService;
 import it.pantani.winsome.shared.rmi.WinSomeServiceInterface;
 import it.pantani.winsome.shared.ConfigManager;
 import it.pantani.winsome.server.utils.JsonManager;
+import it.pantani.winsome.server.utils.WriteAheadLog;
 
 import javax.naming.ConfigurationException;
 import java.io.IOException;
@@ -23,14 +24,19 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Classe del server del social WinSome. Da sola questa classe inizializza solo alcune strutture dati utilizzate dalla
  * classe ConnectionHandler. Oltre a quello, si occupa di leggere il file di configurazione, controllare alcune preferenze
  * (solo quelle che usa questa classe) e inizializzare tutte le altre classi del server tra cui: SocialManager, RewardsManager,
  * JSONManager, InputHandler (per l'input amministratore del server). Avvia anche le interfacce RMI e inizializza il ThreadPoolExecutor,
- * che contiene tutti i connectionhandler; ogni connectionhandler gestisce una singola connessione. Il server si arresta
+ * che contiene tutti i connectionhandler; ogni connectionhandler gestisce una singola connessione. In alternativa, impostando
+ * "server_io_mode" a "nio", le connessioni sono gestite da un NioServer con pochi thread di I/O e il pool esegue solo
+ * l'elaborazione delle richieste, mentre con "virtual" ogni connectionhandler gira su un virtual thread (Java 21+). Il server si arresta
  * completamente in due modi: CTRL+C (arresto forzato, no salvataggio dati di persistenza) oppure con il comando "stopserver"
  * e poi rispondendo "S" al prompt (in questo modo i dati persistenti sono salvati).
  */
@@ -40,13 +46,21 @@ public class ServerMain {
     public static SocialManager social;
     public static RewardsManager rewards;
     public static PeriodicSaveManager psmngr;
+    public static WriteAheadLog wal; // null se il write-ahead log è disattivato
 
     // utilizzati dal connectionhandler
     // mantengono la lista di socket connessi e la lista delle sessioni di tutti gli utenti collegati
     public static final ConcurrentLinkedQueue<Socket> socketsList = new ConcurrentLinkedQueue<>();
     public static final ConcurrentHashMap<String, WinSomeSession> sessionsList = new ConcurrentHashMap<>();
 
+    // contatori dei connectionhandler, usati dal comando "stats" quando il pool non è un ThreadPoolExecutor (virtual thread)
+    public static final AtomicLong startedHandlers = new AtomicLong();
+    public static final AtomicLong completedHandlers = new AtomicLong();
+    public static final AtomicInteger activeHandlers = new AtomicInteger();
+    public static final AtomicInteger maxActiveHandlers = new AtomicInteger();
+
     public static ServerSocket serverSocket;
+    public static NioServer nioServer; // null se il server non è in modalità nio
 
     private static int server_port;
     private static int rmi_server_port;
@@ -54,6 +68,10 @@ public class ServerMain {
     private static int rmi_callback_client_port;
     private static String rmi_callback_client_registry_name;
     private static int max_timeout_pool_shutdown;
+    private static String server_io_mode;
+    private static int nio_reactor_threads;
+    private static int nio_worker_threads;
+    private static boolean wal_enabled;
 
     public static void main(String[] args) {
         // leggo il file di configurazione (o lo creo se non esiste)
@@ -90,8 +108,6 @@ public class ServerMain {
             System.err.println("[!] Inizializzazione fallita. Motivo: " + e.getLocalizedMessage());
             return;
         }
-        Thread r_manager = new Thread(rewards);
-        r_manager.start();
 
         // carico i dati di persistenza
         System.out.println("> Caricamento dati da json...");
@@ -99,8 +115,37 @@ public class ServerMain {
         jsonmngr.loadAll(social);
         System.out.println("> Caricamento json completato.");
 
+        // rieseguo le modifiche registrate dopo l'ultimo salvataggio, poi il registro accetta quelle nuove
+        if(wal_enabled) {
+            try {
+                wal = new WriteAheadLog();
+                int replayed = wal.replay(social::replay);
+                System.out.println("> Rieseguite " + replayed + " operazioni dal write-ahead log.");
+                wal.open();
+            } catch(IOException e) {
+                System.err.println("[!] Inizializzazione write-ahead log fallita. Motivo: " + e.getLocalizedMessage());
+                return;
+            }
+            social.setWriteAheadLog(wal);
+            new Thread(wal, "write-ahead-log").start();
+        }
+
+        // il rewards manager parte solo ora, dopo aver recuperato le attività non ancora premiate dai dati caricati
+        rewards.loadPendingActivity();
+        Thread r_manager = new Thread(rewards);
+        r_manager.start();
+
         // preparo il threadpoolexecutor (di tipo cache che genera i thread quando serve e li riusa quando possibile)
-        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        // in modalità nio il pool esegue solo le richieste, quindi ha un numero fisso di thread
+        // in modalità virtual ogni connectionhandler ha il suo virtual thread
+        ExecutorService pool;
+        if(server_io_mode.equals("nio")) {
+            pool = Executors.newFixedThreadPool(nio_worker_threads);
+        } else if(server_io_mode.equals("virtual")) {
+            pool = newVirtualThreadPerTaskExecutor();
+        } else {
+            pool = Executors.newCachedThreadPool();
+        }
 
         // gestisce tutta la parte di comandi inviati dall'amministratore del server per vederne lo stato
         InputHandler ih;
@@ -115,7 +160,7 @@ public class ServerMain {
         // gestisce tutta la parte di salvataggio dati persistente periodica
         System.out.println("> Inizializzazione periodic save manager...");
         try {
-            psmngr = new PeriodicSaveManager(config, jsonmngr, social, rewards);
+            psmngr = new PeriodicSaveManager(config, jsonmngr, social, rewards, wal);
         } catch(ConfigurationException e) {
             System.err.println("[!] Inizializzazione fallita. Motivo: " + e.getLocalizedMessage());
             return;
@@ -154,7 +199,12 @@ public class ServerMain {
 
         // apro il socket del server
         try {
-            serverSocket = new ServerSocket(server_port);
+            if(server_io_mode.equals("nio")) {
+                nioServer = new NioServer(server_port, nio_reactor_threads, pool, config, social);
+                serverSocket = nioServer.getServerSocket();
+            } else {
+                serverSocket = new ServerSocket(server_port);
+            }
         } catch(IOException e) {
             e.printStackTrace();
             return;
@@ -169,7 +219,12 @@ public class ServerMain {
         // contatore dei connection handler, solo a scopo informativo e di debug
         int i = 1;
         // il main non fa altro che accettare le connessioni dei client e assegnarle ad un connection handler del pool
-        while(true) {
+        // (in modalità nio è il NioServer ad accettarle, fino a quando non viene fermato da "stopserver")
+        if(nioServer != null) {
+            System.out.println("> Modalita' nio: " + nio_reactor_threads + " reactor, " + nio_worker_threads + " worker.");
+            nioServer.run();
+        }
+        while(nioServer == null) {
             try {
                 Socket a = serverSocket.accept();
                 socketsList.add(a);
@@ -191,6 +246,7 @@ public class ServerMain {
                 c.close();
             } catch(IOException ignored) { }
         }
+        if(nioServer != null) nioServer.stopExecution();
         System.out.println("> Handler connessioni chiusi.");
 
         // chiusura socket del server
@@ -239,6 +295,28 @@ public class ServerMain {
         System.out.println("> Server terminato.");
     }
 
+    /**
+     * Crea un executor che avvia un nuovo virtual thread per ogni connectionhandler. Il metodo è ottenuto per
+     * riflessione in modo che il server si possa compilare ed eseguire anche con versioni di Java precedenti alla 21
+     * (in quel caso la modalità "virtual" è già rifiutata dalla validazione del config).
+     * Nel percorso eseguito da un connectionhandler le attese lunghe non bloccano il carrier thread: PrintWriter e
+     * BufferedReader dalla 21 usano lock interni invece di synchronized, la mappa del callback RMI è una
+     * ConcurrentHashMap, la richiesta HTTP di walletbtc usa HttpClient invece di URLConnection, e l'attesa della
+     * scrittura su disco del write-ahead log, i lock dei post e degli utenti del social e il lock degli snapshot sono
+     * ReentrantLock. Restano dei blocchi synchronized brevi su dati in memoria (voti e commenti di un post, portafogli,
+     * timeline, dizionario degli utenti, registro dei premi) in cui non si fa I/O e non si attendono altri lock: fino
+     * alla 23 tengono occupato il carrier thread solo per la durata della sezione critica, o dell'attesa del monitor se
+     * un altro thread lo sta usando.
+     * @return l'executor dei virtual thread
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual thread non disponibili", e);
+        }
+    }
+
     /**
      * Verifica che le preferenze specificate nel file di configurazione siano corrette facendo vari controlli. Se
      * anche una sola opzione è errata allora lancia un'eccezione.
@@ -297,5 +375,44 @@ public class ServerMain {
         if (max_timeout_pool_shutdown <= 0) {
             throw new ConfigurationException("valore 'max_timeout_pool_shutdown' non valido (" + max_timeout_pool_shutdown + " dovrebbe essere maggiore di 0)");
         }
+
+        // controllo la modalità di gestione delle connessioni (se manca, come nei config generati dalle versioni
+        // precedenti, uso quella classica con un thread per connessione)
+        server_io_mode = config.getPreference("server_io_mode");
+        if (server_io_mode == null) server_io_mode = "thread";
+        if (!server_io_mode.equals("thread") && !server_io_mode.equals("nio") && !server_io_mode.equals("virtual")) {
+            throw new ConfigurationException("valore 'server_io_mode' non valido (" + server_io_mode + " dovrebbe essere 'thread', 'nio' oppure 'virtual')");
+        }
+        if (server_io_mode.equals("virtual") && Runtime.version().feature() < 21) {
+            throw new ConfigurationException("valore 'server_io_mode' non valido (la modalita' 'virtual' richiede Java 21 o superiore)");
+        }
+
+        if (server_io_mode.equals("nio")) {
+            // controllo il numero di thread reactor (I/O) e di thread worker (elaborazione richieste)
+            try {
+                nio_reactor_threads = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("nio_reactor_threads"), "2"));
+            } catch(NumberFormatException e) {
+                throw new ConfigurationException("valore 'nio_reactor_threads' non valido (" + e.getLocalizedMessage() + ")");
+            }
+            if (nio_reactor_threads <= 0) {
+                throw new ConfigurationException("valore 'nio_reactor_threads' non valido (" + nio_reactor_threads + " dovrebbe essere maggiore di 0)");
+            }
+            try {
+                nio_worker_threads = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("nio_worker_threads"), String.valueOf(Runtime.getRuntime().availableProcessors())));
+            } catch(NumberFormatException e) {
+                throw new ConfigurationException("valore 'nio_worker_threads' non valido (" + e.getLocalizedMessage() + ")");
+            }
+            if (nio_worker_threads <= 0) {
+                throw new ConfigurationException("valore 'nio_worker_threads' non valido (" + nio_worker_threads + " dovrebbe essere maggiore di 0)");
+            }
+        }
+
+        // controllo se registrare le modifiche nel write-ahead log (se manca, come nei config generati dalle versioni
+        // precedenti, il registro è disattivato e i dati sono salvati solo periodicamente)
+        String wal_option = Objects.requireNonNullElse(config.getPreference("wal_enabled"), "false");
+        if(!wal_option.equals("true") && !wal_option.equals("false")) {
+            throw new ConfigurationException("valore 'wal_enabled' non valido (" + wal_option + " dovrebbe essere 'true' oppure 'false')");
+        }
+        wal_enabled = Boolean.parseBoolean(wal_option);
     }
 }
\ No newline at end of file
@@ -6,21 +6,36 @@
 
 package it.pantani.winsome.server;
 
+import it.pantani.winsome.server.entities.CommentLog;
 import it.pantani.winsome.server.entities.WinSomeComment;
 import it.pantani.winsome.server.entities.WinSomePost;
+import it.pantani.winsome.server.entities.WinSomeTransaction;
 import it.pantani.winsome.server.entities.WinSomeUser;
 import it.pantani.winsome.server.entities.WinSomeWallet;
 import it.pantani.winsome.server.exceptions.*;
 import it.pantani.winsome.shared.ConfigManager;
+import it.pantani.winsome.server.utils.IntSet;
 import it.pantani.winsome.server.utils.PasswordManager;
+import it.pantani.winsome.server.utils.PostTable;
+import it.pantani.winsome.server.utils.WriteAheadLog;
 import it.pantani.winsome.shared.Utils;
 
 import javax.naming.ConfigurationException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 import static it.pantani.winsome.shared.Utils.getFormattedDate;
 
@@ -34,11 +49,63 @@ public class SocialManager {
     private final ConfigManager config;
 
     private ConcurrentHashMap<String, WinSomeUser> userList;
-    private ConcurrentHashMap<String, ArrayList<String>> followersList;
-    private ConcurrentHashMap<String, ArrayList<String>> followingList; // ridondanza
-    private ConcurrentHashMap<Integer, WinSomePost> postList;
+    // relazioni in entrambe le direzioni: per ogni utente l'insieme degli id (vedi UserDirectory) degli utenti che lo
+    // seguono o che segue, come insieme hash di interi senza lock (IntSet). Aggiunte e rimozioni non richiedono lock e
+    // verificare se un utente ne segue un altro costa O(1); gli username sono ricavati dagli id solo per i client e per
+    // i file json
+    private ConcurrentHashMap<String, IntSet> followersList;
+    private ConcurrentHashMap<String, IntSet> followingList; // ridondanza di followersList
+    // post indicizzati direttamente dal loro id (vedi PostTable), le letture non usano lock
+    private PostTable postList;
     private ConcurrentHashMap<String, WinSomeWallet> walletList;
 
+    // id e istanze canoniche degli username: relazioni, voti e rewin sono memorizzati con gli id, autori di post e
+    // commenti con l'istanza canonica dell'username
+    private final UserDirectory userDirectory;
+
+    // indici per costruire blog e feed senza scorrere tutti i post: per ogni utente gli id (ordinati) dei post che ha
+    // creato e di quelli di cui ha fatto il rewin. Sono ricostruiti dalla lista dei post al caricamento dei dati.
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> postsByAuthor;
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> rewinsByUser;
+
+    // indice inverso dei tag: per ogni tag gli utenti che lo hanno, per trovare gli utenti con tag in comune senza
+    // scorrere tutti gli utenti. È ricostruito dalla lista degli utenti al caricamento dei dati.
+    private final ConcurrentHashMap<String, Set<WinSomeUser>> usersByTag;
+
+    // feed costruiti in anticipo per chi li legge (vedi TimelineService), null se disattivati
+    private TimelineService timelines;
+
+    // voti e commenti avvenuti dall'ultimo calcolo dei premi, letti dal RewardsManager
+    private final RewardsEventLog rewardsLog;
+
+    // registro delle modifiche, null se disattivato (o finché non sono stati caricati i dati)
+    private WriteAheadLog wal;
+    // per ogni thread: [0] numero di sequenza dell'ultimo record aggiunto al registro, da attendere al termine della
+    // modifica; [1] 1 se la scrittura di un record del thread è fallita e non è ancora stata segnalata, vedi takeLogFailure
+    private final ThreadLocal<long[]> pendingRecord;
+    // lock che ordinano le modifiche ad uno stesso post (o alle relazioni di uno stesso utente) insieme ai loro record
+    // nel registro, vedi postLock e userLock
+    private static final int WRITE_STRIPES = 64;
+    private static final IntSet EMPTY_SET = new IntSet(); // restituito per chi non ha relazioni, mai modificato
+    private final ReentrantLock[] writeStripes;
+
+    // snapshot per il salvataggio periodico: le modifiche prendono il lock in lettura (più modifiche insieme), la
+    // cattura dello snapshot quello in scrittura. Ogni modifica segna le chiavi che ha toccato, così la cattura copia
+    // solo quello che è cambiato dallo snapshot precedente; le copie restano nelle mappe saved* tra un salvataggio e
+    // l'altro e sono usate solo dalla cattura e dal thread di salvataggio.
+    private final ReentrantReadWriteLock snapshotLock;
+    private final Set<String> dirtyUsers;
+    private final Set<String> dirtyWallets;
+    private final Set<String> dirtyFollowers;
+    private final Set<String> dirtyFollowing;
+    private final Set<Integer> dirtyPosts;
+    private final HashMap<String, WinSomeUser> savedUsers;
+    private final HashMap<String, WinSomeWallet> savedWallets;
+    private final HashMap<String, ArrayList<String>> savedFollowers;
+    private final HashMap<String, ArrayList<String>> savedFollowing;
+    private final HashMap<Integer, WinSomePost> savedPosts;
+    private boolean fullSnapshot; // vero se le mappe sono state sostituite (all'avvio) e va copiato tutto
+
     public AtomicInteger last_post_id;
 
     private String currency_name_singular;
@@ -48,6 +115,12 @@ public class SocialManager {
     private int post_max_title_length;
     private int post_max_content_length;
 
+    private boolean wallet_balance_check;
+
+    private boolean timeline_fanout;
+    private int timeline_capacity;
+    private int timeline_max_followers;
+
     /**
      * Questo costruttore inizializza tutte le strutture dati necessarie per il funzionamento del social WinSome.
      * Inoltre valida e salva le preferenze fornite nel file di configurazione, ma solo quelle relative al social, e quindi
@@ -65,9 +138,33 @@ public class SocialManager {
         followersList = new ConcurrentHashMap<>();
         followingList = new ConcurrentHashMap<>();
         walletList = new ConcurrentHashMap<>();
-        postList = new ConcurrentHashMap<>();
+        postList = new PostTable();
+        userDirectory = new UserDirectory();
+        postsByAuthor = new ConcurrentHashMap<>();
+        rewinsByUser = new ConcurrentHashMap<>();
+        usersByTag = new ConcurrentHashMap<>();
+        rewardsLog = new RewardsEventLog();
+        pendingRecord = ThreadLocal.withInitial(() -> new long[2]);
+        writeStripes = new ReentrantLock[WRITE_STRIPES];
+        for(int i = 0; i < WRITE_STRIPES; i++) {
+            writeStripes[i] = new ReentrantLock();
+        }
+
+        snapshotLock = new ReentrantReadWriteLock();
+        dirtyUsers = ConcurrentHashMap.newKeySet();
+        dirtyWallets = ConcurrentHashMap.newKeySet();
+        dirtyFollowers = ConcurrentHashMap.newKeySet();
+        dirtyFollowing = ConcurrentHashMap.newKeySet();
+        dirtyPosts = ConcurrentHashMap.newKeySet();
+        savedUsers = new HashMap<>();
+        savedWallets = new HashMap<>();
+        savedFollowers = new HashMap<>();
+        savedFollowing = new HashMap<>();
+        savedPosts = new HashMap<>();
+        fullSnapshot = true;
 
         validateAndSavePreferences();
+        if(timeline_fanout) timelines = new TimelineService(this, timeline_capacity, timeline_max_followers);
     }
 
     /**
@@ -84,9 +181,28 @@ public class SocialManager {
         if(post_title.length() > post_max_title_length) throw new InvalidOperationException();
         if(post_content.length() > post_max_content_length) throw new InvalidOperationException();
 
-        int idpost = last_post_id.getAndIncrement();
-        postList.putIfAbsent(idpost, new WinSomePost(idpost, username, post_title, post_content));
-        return idpost;
+        beginWrite();
+        try {
+            int idpost = last_post_id.getAndIncrement();
+            ReentrantLock stripe = postLock(idpost);
+            stripe.lock();
+            try {
+                WinSomePost newPost = new WinSomePost(idpost, userDirectory.canonical(username), post_title, post_content);
+                int start_cycle = rewardsLog.getCycle();
+                newPost.setRewardsStartCycle(start_cycle);
+                postList.putIfAbsent(idpost, newPost);
+                dirtyPosts.add(idpost);
+                getIndex(postsByAuthor, username).add(idpost);
+                if(timelines != null) timelines.postAdded(username, idpost);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.POST).putInt(idpost).putString(username).putString(post_title)
+                        .putString(post_content).putLong(newPost.getDateSent()).putInt(start_cycle));
+                return idpost;
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -108,9 +224,26 @@ public class SocialManager {
         if(toRate == null) throw new PostNotFoundException();
         if(toRate.getAuthor().equals(username)) throw new SameUserException();
         if(isPostNotInFeed(post_id, username)) throw new NotInFeedException();
-        if(toRate.findVoteByUser(username) != null) throw new InvalidOperationException();
+        int voter = userDirectory.getId(username);
+        if(voter < 0) throw new UserNotFoundException();
+        if(toRate.findVoteByUser(voter) != null) throw new InvalidOperationException();
 
-        toRate.addVote(username, value);
+        beginWrite();
+        try {
+            ReentrantLock stripe = postLock(post_id);
+            stripe.lock();
+            try {
+                long date = System.currentTimeMillis();
+                if(!toRate.addVote(voter, value, date)) throw new InvalidOperationException();
+                dirtyPosts.add(post_id);
+                rewardsLog.recordVote(post_id, username, value);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.VOTE).putInt(post_id).putString(username).putInt(value).putLong(date));
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -128,7 +261,22 @@ public class SocialManager {
         if(toComment.getAuthor().equals(username)) throw new SameUserException();
         if(isPostNotInFeed(post_id, username)) throw new NotInFeedException();
 
-        toComment.addComment(username, text);
+        beginWrite();
+        try {
+            ReentrantLock stripe = postLock(post_id);
+            stripe.lock();
+            try {
+                WinSomeComment comment = new WinSomeComment(userDirectory.canonical(username), text);
+                toComment.addComment(comment);
+                dirtyPosts.add(post_id);
+                rewardsLog.recordComment(post_id, username);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.COMMENT).putInt(post_id).putString(username).putString(text).putLong(comment.getDateSent()));
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -143,7 +291,21 @@ public class SocialManager {
         if(toDelete == null) throw new PostNotFoundException();
         if(!toDelete.getAuthor().equals(username)) throw new InvalidOperationException();
 
-        postList.remove(post_id);
+        beginWrite();
+        try {
+            ReentrantLock stripe = postLock(post_id);
+            stripe.lock();
+            try {
+                if(!postList.remove(post_id, toDelete)) throw new PostNotFoundException(); // cancellato nel frattempo
+                dirtyPosts.add(post_id);
+                removeFromIndexes(toDelete);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.DELETE).putInt(post_id));
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -168,10 +330,27 @@ public class SocialManager {
      */
     public String getPostFormatted(int post_id, boolean showRewin, boolean showContent, boolean showAuthor, boolean showVotes, boolean showCreationDate, boolean showComments) {
         WinSomePost p = postList.get(post_id);
-        StringBuilder ret;
         if(p == null) return null;
-        ArrayList<WinSomeComment> comments_list = p.getCommentList();
-        ConcurrentLinkedQueue<String> q = p.getRewinUsers();
+
+        // ogni combinazione di opzioni è una vista diversa del post; le viste sono memorizzate nel post e ricreate solo
+        // quando il post riceve un nuovo voto, commento o rewin, così un post visto da molti utenti viene formattato una volta
+        int view = (showRewin ? 1 : 0) | (showContent ? 2 : 0) | (showAuthor ? 4 : 0) | (showVotes ? 8 : 0) | (showCreationDate ? 16 : 0) | (showComments ? 32 : 0);
+        String ret = p.getRenderedView(view);
+        if(ret != null) return ret;
+
+        int version = p.getVersion(); // letta prima di formattare, vedi WinSomePost.setRenderedView
+        ret = formatPost(p, showRewin, showContent, showAuthor, showVotes, showCreationDate, showComments);
+        p.setRenderedView(view, version, ret);
+        return ret;
+    }
+
+    /**
+     * Formatta un post, vedi getPostFormatted
+     */
+    private String formatPost(WinSomePost p, boolean showRewin, boolean showContent, boolean showAuthor, boolean showVotes, boolean showCreationDate, boolean showComments) {
+        StringBuilder ret;
+        CommentLog comments_list = p.getCommentList();
+        IntSet q = p.getRewinUsers();
 
         ret = new StringBuilder("[ Post #" + p.getPostID() + " ]\n");
         if(showRewin && q.size() != 0) { ret.append("* post rewinnato da ").append(q.size()).append(" "); if(q.size() == 1) { ret.append("utente"); } else { ret.append("utenti"); } ret.append(" *\n"); }
@@ -179,10 +358,12 @@ public class SocialManager {
         if(showContent) ret.append("Contenuto: ").append(p.getPostContent()).append("\n");
         if(showAuthor) ret.append("Autore: ").append(p.getAuthor()).append("\n");
         if(showVotes) {
-            ret.append("Voti (").append(p.getTotalVotes()).append("): ").append(p.getNumVotesByValue(1)).append(" ");
-            if(p.getNumVotesByValue(1) == 1) ret.append("positivo"); else ret.append("positivi");
-            ret.append(", ").append(p.getNumVotesByValue(-1)).append(" ");
-            if(p.getNumVotesByValue(-1) == 1) ret.append("negativo"); else ret.append("negativi");
+            int upvotes = p.getNumVotesByValue(1);
+            int downvotes = p.getNumVotesByValue(-1);
+            ret.append("Voti (").append(p.getTotalVotes()).append("): ").append(upvotes).append(" ");
+            if(upvotes == 1) ret.append("positivo"); else ret.append("positivi");
+            ret.append(", ").append(downvotes).append(" ");
+            if(downvotes == 1) ret.append("negativo"); else ret.append("negativi");
             ret.append("\n");
         }
         if(showCreationDate) ret.append("Data: ").append(getFormattedDate(p.getDateSent())).append("\n");
@@ -196,23 +377,36 @@ public class SocialManager {
     }
 
     /**
-     * Restituisce una lista di WinSomeUser che hanno almeno un tag in comune con tags_list
+     * Restituisce una lista di WinSomeUser che hanno almeno un tag in comune con tags_list, ordinata dal numero di tag
+     * in comune (prima chi ne ha di più). La lista è ottenuta unendo gli insiemi dell'indice dei tag, quindi il costo
+     * dipende dal numero di utenti restituiti e non dal numero di utenti registrati.
      * @param tags_list la lista di tags
      * @return lista di utenti che hanno almeno un tag in comune con tags_list
      */
     public ArrayList<WinSomeUser> getUsersWithSimilarTags(Set<String> tags_list) {
-        ArrayList<WinSomeUser> usersWithTag = new ArrayList<>();
-        ArrayList<WinSomeUser> ret;
-
+        // conto i tag in comune di ogni utente trovato
+        HashMap<WinSomeUser, Integer> shared = new HashMap<>();
         for(String t : tags_list) {
-            ret = getUsersByTag(t);
-            for(WinSomeUser u : ret) {
-                if(!usersWithTag.contains(u)) {
-                    usersWithTag.add(u);
-                }
+            Set<WinSomeUser> users = usersByTag.get(t);
+            if(users == null) continue;
+            for(WinSomeUser u : users) {
+                shared.merge(u, 1, Integer::sum);
             }
         }
 
+        // ordino per numero di tag in comune dividendo gli utenti in gruppi (i tag sono pochi, quindi anche i gruppi)
+        ArrayList<ArrayList<WinSomeUser>> byCount = new ArrayList<>();
+        for(int i = 0; i <= tags_list.size(); i++) {
+            byCount.add(new ArrayList<>());
+        }
+        for(Map.Entry<WinSomeUser, Integer> e : shared.entrySet()) {
+            byCount.get(e.getValue()).add(e.getKey());
+        }
+
+        ArrayList<WinSomeUser> usersWithTag = new ArrayList<>(shared.size());
+        for(int i = byCount.size() - 1; i > 0; i--) {
+            usersWithTag.addAll(byCount.get(i));
+        }
         return usersWithTag;
     }
 
@@ -223,13 +417,14 @@ public class SocialManager {
      * @return vero se il post post_id è nel feed di username, falso altrimenti
      */
     boolean isPostInFeed(int post_id, String username) {
-        ArrayList<WinSomePost> user_feed = getFeed(username);
-        for(WinSomePost p : user_feed) {
-            if(p.getPostID() == post_id) {
-                return true;
-            }
-        }
-        return false;
+        WinSomePost p = postList.get(post_id);
+        if(p == null) return false;
+
+        // il post è nel feed se username segue l'autore o almeno uno degli utenti che ne hanno fatto il rewin
+        IntSet following = getFollowingIds(username);
+        if(following.isEmpty()) return false;
+        if(following.contains(userDirectory.getId(p.getAuthor()))) return true;
+        return following.intersects(p.getRewinUsers());
     }
 
     /**
@@ -239,13 +434,7 @@ public class SocialManager {
      * @return vero se il post post_id NON è nel feed di username, falso altrimenti
      */
     boolean isPostNotInFeed(int post_id, String username) {
-        ArrayList<WinSomePost> user_feed = getFeed(username);
-        for(WinSomePost p : user_feed) {
-            if(p.getPostID() == post_id) {
-                return false;
-            }
-        }
-        return true;
+        return !isPostInFeed(post_id, username);
     }
 
     /**
@@ -254,14 +443,9 @@ public class SocialManager {
      * @return la lista di WinSomeUser che hanno il tag passato come argomento
      */
     public ArrayList<WinSomeUser> getUsersByTag(String tag) {
-        ArrayList<WinSomeUser> ret = new ArrayList<>();
-        for(WinSomeUser u : userList.values()) {
-            if(u.getTags_list().contains(tag)) {
-                ret.add(u);
-            }
-        }
-
-        return ret;
+        Set<WinSomeUser> users = usersByTag.get(tag);
+        if(users == null) return new ArrayList<>();
+        return new ArrayList<>(users);
     }
 
     /**
@@ -270,49 +454,104 @@ public class SocialManager {
      * @return la lista di post creati da username
      */
     public ArrayList<WinSomePost> getUserPosts(String username) {
-        ArrayList<WinSomePost> ret = new ArrayList<>();
-
-        for (WinSomePost p : postList.values()) {
-            if(p.getAuthor().equals(username)) {
-                ret.add(p);
-            }
-        }
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
+        addIndexSource(sources, postsByAuthor, username);
 
-        return ret;
+        return mergeIndexes(sources);
     }
 
     /**
-     * Restituisce una lista di post che è riempita con i post nel blog dell'utente username
+     * Restituisce una lista di post che è riempita con i post nel blog dell'utente username, ordinati per id (e quindi
+     * per data di invio). Il blog è ottenuto unendo l'indice dei post dell'utente e quello dei suoi rewin.
      * @param username l'username di cui vedere il blog
      * @return lista di WinSomePost nel blog di username
      */
     public ArrayList<WinSomePost> getBlog(String username) {
-        ArrayList<WinSomePost> blog = new ArrayList<>();
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
+        addIndexSource(sources, postsByAuthor, username);
+        addIndexSource(sources, rewinsByUser, username);
 
-        for (WinSomePost p : postList.values()) {
-            if(p.getAuthor().equals(username) || p.isRewinUserPresent(username)) {
-                blog.add(p);
-            }
-        }
-
-        return blog;
+        return mergeIndexes(sources);
     }
 
     /**
-     * Restituisce una lista di post che è riempita con i post nel feed dell'utente username
+     * Restituisce una lista di post che è riempita con i post nel feed dell'utente username, ordinati per id (e quindi
+     * per data di invio). Invece di costruire il blog di ogni utente seguito, il feed è ottenuto unendo (k-way merge)
+     * gli indici dei post e dei rewin di tutti gli utenti seguiti. Un post presente in più blog compare una volta sola.
      * @param username l'username di cui vedere il feed
      * @return lista di WinSomePost nel feed di username
      */
     public ArrayList<WinSomePost> getFeed(String username) {
-        ArrayList<String> usersFollowedByUser = getFollowing(username);
-        ArrayList<WinSomePost> feed = new ArrayList<>();
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
+
+        for(int id : getFollowingIds(username).toArray()) {
+            String u = userDirectory.getName(id);
+            addIndexSource(sources, postsByAuthor, u);
+            addIndexSource(sources, rewinsByUser, u);
+        }
+
+        return mergeIndexes(sources);
+    }
+
+    /**
+     * Restituisce una pagina del blog dell'utente username: i limit post più recenti con id minore di before (gli
+     * id sono assegnati in ordine di invio, quindi before fa da cursore temporale). Come getFeedPage(), non scorre
+     * il blog completo.
+     * @param username l'username di cui vedere il blog
+     * @param limit il numero massimo di post della pagina
+     * @param before il cursore, escluso (Integer.MAX_VALUE per partire dal post più recente)
+     * @return la pagina, ordinata per id come getBlog()
+     */
+    public ArrayList<WinSomePost> getBlogPage(String username, int limit, int before) {
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
+        addBlogSources(sources, username, before);
+
+        return mergeIndexesDescending(sources, limit);
+    }
+
+    /**
+     * Restituisce una pagina del feed dell'utente username: i limit post più recenti con id minore di before. Se le
+     * timeline sono attive (timeline_fanout) la pagina viene dal TimelineService, altrimenti da readFeedPage().
+     * @param username l'username di cui vedere il feed
+     * @param limit il numero massimo di post della pagina
+     * @param before il cursore, escluso (Integer.MAX_VALUE per partire dal post più recente)
+     * @return la pagina, ordinata per id come getFeed()
+     */
+    public ArrayList<WinSomePost> getFeedPage(String username, int limit, int before) {
+        if(timelines != null) return timelines.getFeedPage(username, limit, before);
+        return readFeedPage(username, limit, before);
+    }
+
+    /**
+     * Come getFeedPage(), ma sempre dagli indici: gli indici dei post e dei rewin degli utenti seguiti sono letti dal
+     * cursore all'indietro e uniti finché la pagina non è piena, quindi il costo dipende dalla dimensione della pagina
+     * e dal numero di utenti seguiti, non dal numero di post nel feed; la memoria usata è limitata dalla dimensione
+     * della pagina.
+     * @param username l'username di cui vedere il feed
+     * @param limit il numero massimo di post della pagina
+     * @param before il cursore, escluso
+     * @return la pagina, ordinata per id come getFeed()
+     */
+    ArrayList<WinSomePost> readFeedPage(String username, int limit, int before) {
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
 
-        for(String u : usersFollowedByUser) {
-            ArrayList<WinSomePost> p = getBlog(u);
-            if(p != null) feed.addAll(p);
+        for(int id : getFollowingIds(username).toArray()) {
+            addBlogSources(sources, userDirectory.getName(id), before);
         }
 
-        return feed;
+        return mergeIndexesDescending(sources, limit);
+    }
+
+    /**
+     * Aggiunge alla lista delle sorgenti da unire con mergeIndexesDescending() i post e i rewin di un utente con id
+     * minore di before
+     * @param sources la lista di sorgenti
+     * @param username l'utente
+     * @param before il cursore, escluso
+     */
+    void addBlogSources(ArrayList<Iterator<Integer>> sources, String username, int before) {
+        addIndexPageSource(sources, postsByAuthor, username, before);
+        addIndexPageSource(sources, rewinsByUser, username, before);
     }
 
     /**
@@ -331,7 +570,24 @@ public class SocialManager {
         if(toRewin == null) throw new PostNotFoundException();
         if(toRewin.getAuthor().equals(username)) throw new SameUserException();
         if(isPostNotInFeed(post_id, username)) throw new NotInFeedException();
-        if(!toRewin.addRewin(username)) throw new InvalidOperationException();
+        int user = userDirectory.getId(username);
+        if(user < 0) throw new UserNotFoundException();
+        beginWrite();
+        try {
+            ReentrantLock stripe = postLock(post_id);
+            stripe.lock();
+            try {
+                if(!toRewin.addRewin(user)) throw new InvalidOperationException();
+                dirtyPosts.add(post_id);
+                getIndex(rewinsByUser, username).add(post_id);
+                if(timelines != null) timelines.rewinAdded(username, post_id);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.REWIN).putInt(post_id).putString(username));
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -345,10 +601,22 @@ public class SocialManager {
     public void followUser(String username, String newFollowing) throws UserNotFoundException, SameUserException, InvalidOperationException {
         if(username.equals(newFollowing)) throw new SameUserException();
         if(!userList.containsKey(newFollowing)) throw new UserNotFoundException();
-        if(followersList.get(newFollowing) != null && followersList.get(newFollowing).contains(username)) throw new InvalidOperationException();
-
-        addFollowing(username, newFollowing);
-        addFollower(newFollowing, username);
+        beginWrite(); // le due liste vanno aggiornate insieme rispetto agli snapshot
+        try {
+            ReentrantLock stripe = userLock(username);
+            stripe.lock();
+            try {
+                // l'aggiunta all'insieme è atomica, quindi due follow contemporanei non possono riuscire entrambi
+                if(!addFollowing(username, newFollowing)) throw new InvalidOperationException();
+
+                addFollower(newFollowing, username);
+                if(timelines != null) timelines.followed(username, newFollowing);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -362,18 +630,102 @@ public class SocialManager {
     public void unfollowUser(String username, String oldFollowing) throws UserNotFoundException, SameUserException, InvalidOperationException {
         if(username.equals(oldFollowing)) throw new SameUserException();
         if(!userList.containsKey(oldFollowing)) throw new UserNotFoundException();
-        if(followersList.get(oldFollowing) == null) throw new InvalidOperationException();
-        if(!followersList.get(oldFollowing).contains(username)) throw new InvalidOperationException();
+        beginWrite();
+        try {
+            ReentrantLock stripe = userLock(username);
+            stripe.lock();
+            try {
+                if(!removeFollowing(username, oldFollowing)) throw new InvalidOperationException();
+
+                removeFollower(oldFollowing, username);
+                if(timelines != null) timelines.unfollowed(username, oldFollowing);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
+    }
 
-        removeFollowing(username, oldFollowing);
-        removeFollower(oldFollowing, username);
+    /**
+     * Lascia lo stesso voto a più post per conto di username. I voti sono un'unica modifica: il write-ahead log viene
+     * atteso una volta sola per tutti, e un voto non valido non impedisce gli altri.
+     * @param username l'username dell'utente
+     * @param post_ids gli id dei post da votare
+     * @param value valore del voto
+     * @return per ogni post (nello stesso ordine) null se il voto è stato registrato, altrimenti l'eccezione che
+     *         avrebbe lanciato ratePost()
+     */
+    public Throwable[] ratePosts(String username, int[] post_ids, int value) {
+        Throwable[] ret = new Throwable[post_ids.length];
+        beginWrite();
+        try {
+            for(int i = 0; i < post_ids.length; i++) {
+                try {
+                    ratePost(username, post_ids[i], value);
+                } catch(UserNotFoundException | InvalidVoteException | PostNotFoundException | InvalidOperationException | SameUserException | NotInFeedException e) {
+                    ret[i] = e;
+                }
+            }
+        } finally {
+            endWrite();
+        }
+        return ret;
+    }
+
+    /**
+     * Fa seguire all'utente username più utenti, con un'unica modifica come in ratePosts()
+     * @param username l'utente che seguirà gli altri
+     * @param newFollowing gli utenti da seguire
+     * @return per ogni utente (nello stesso ordine) null se ora è seguito, altrimenti l'eccezione che avrebbe
+     *         lanciato followUser()
+     */
+    public Throwable[] followUsers(String username, String[] newFollowing) {
+        Throwable[] ret = new Throwable[newFollowing.length];
+        beginWrite();
+        try {
+            for(int i = 0; i < newFollowing.length; i++) {
+                try {
+                    followUser(username, newFollowing[i]);
+                } catch(UserNotFoundException | SameUserException | InvalidOperationException e) {
+                    ret[i] = e;
+                }
+            }
+        } finally {
+            endWrite();
+        }
+        return ret;
+    }
+
+    /**
+     * Fa smettere di seguire all'utente username più utenti, con un'unica modifica come in ratePosts()
+     * @param username l'utente che non seguirà più gli altri
+     * @param oldFollowing gli utenti da non seguire più
+     * @return per ogni utente (nello stesso ordine) null se non è più seguito, altrimenti l'eccezione che avrebbe
+     *         lanciato unfollowUser()
+     */
+    public Throwable[] unfollowUsers(String username, String[] oldFollowing) {
+        Throwable[] ret = new Throwable[oldFollowing.length];
+        beginWrite();
+        try {
+            for(int i = 0; i < oldFollowing.length; i++) {
+                try {
+                    unfollowUser(username, oldFollowing[i]);
+                } catch(UserNotFoundException | SameUserException | InvalidOperationException e) {
+                    ret[i] = e;
+                }
+            }
+        } finally {
+            endWrite();
+        }
+        return ret;
     }
 
     /**
      * Fornisce la lista di tutti i post
      * @return la lista di tutti i post, può essere vuota
      */
-    public ConcurrentHashMap<Integer, WinSomePost> getPostList() {
+    public PostTable getPostList() {
         return postList;
     }
 
@@ -381,7 +733,7 @@ public class SocialManager {
      * Fornisce la lista di tutti i follower
      * @return la lista di tutti i follower, può essere vuota
      */
-    public ConcurrentHashMap<String, ArrayList<String>> getFollowersList() {
+    public ConcurrentHashMap<String, IntSet> getFollowersList() {
         return followersList;
     }
 
@@ -389,7 +741,7 @@ public class SocialManager {
      * Fornisce la lista di tutti gli utenti che gli altri utenti seguono (ridondanza per followers)
      * @return la lista di tutti i following, può essere vuota
      */
-    public ConcurrentHashMap<String, ArrayList<String>> getFollowingList() {
+    public ConcurrentHashMap<String, IntSet> getFollowingList() {
         return followingList;
     }
 
@@ -414,7 +766,22 @@ public class SocialManager {
      * @param user l'utente da aggiungere
      */
     public void addUser(WinSomeUser user) {
-        userList.put(user.getUsername(), user);
+        beginWrite();
+        try {
+            userDirectory.register(user.getUsername());
+            userList.put(user.getUsername(), user);
+            addToTagIndex(user);
+            dirtyUsers.add(user.getUsername());
+
+            WriteAheadLog.RecordWriter record = new WriteAheadLog.RecordWriter(WriteAheadLog.REGISTER).putString(user.getUsername())
+                    .putString(user.getSavedPassword()).putLong(user.getCreationDate()).putInt(user.getTags_list().size());
+            for(String tag : user.getTags_list()) {
+                record.putString(tag);
+            }
+            log(record);
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -423,12 +790,12 @@ public class SocialManager {
      * @param follower il nuovo follower di username
      */
     public void addFollower(String username, String follower) {
-        if (followersList.containsKey(username)) {
-            followersList.get(username).add(follower);
-        } else {
-            ArrayList<String> list = new ArrayList<>();
-            list.add(follower);
-            followersList.put(username, list);
+        beginWrite();
+        try {
+            followersList.computeIfAbsent(userDirectory.canonical(username), k -> new IntSet()).add(userDirectory.idOf(follower));
+            dirtyFollowers.add(username);
+        } finally {
+            endWrite();
         }
     }
 
@@ -436,55 +803,124 @@ public class SocialManager {
      * Aggiunge a username l'utente following tra i propri seguiti
      * @param username l'utente che seguirà un nuovo utente
      * @param following il nuovo utente che username seguirà
+     * @return vero se username non seguiva già following, falso altrimenti
      */
-    public void addFollowing(String username, String following) {
-        if (followingList.containsKey(username)) {
-            followingList.get(username).add(following);
-        } else {
-            ArrayList<String> list = new ArrayList<>();
-            list.add(following);
-            followingList.put(username, list);
+    public boolean addFollowing(String username, String following) {
+        beginWrite();
+        try {
+            ReentrantLock stripe = userLock(username);
+            stripe.lock();
+            try {
+                if(!followingList.computeIfAbsent(userDirectory.canonical(username), k -> new IntSet()).add(userDirectory.idOf(following))) return false;
+                dirtyFollowing.add(username);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.FOLLOW).putString(username).putString(following));
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
         }
     }
 
     /**
-     * Fornisce la lista di follower dell'utente username
+     * Fornisce la lista dei follower dell'utente username, convertendo gli id in username (per i client)
      * @param username l'username di cui si vuole la lista di follower
-     * @return la lista di follower di username, può essere vuota
+     * @return la lista dei follower di username, può essere vuota
      */
     public ArrayList<String> getFollowers(String username) {
-        ArrayList<String> ret = followersList.get(username);
-        if(ret == null) return new ArrayList<>();
-        return ret;
+        return toNames(getFollowerIds(username));
     }
 
     /**
-     * Fornisce la lista di utenti che username segue
+     * Fornisce la lista degli utenti che username segue, convertendo gli id in username (per i client)
      * @param username l'username di cui si vuole la lista di seguiti
-     * @return la lista di seguiti di username, può essere vuota (se non segue nessuno)
+     * @return la lista dei seguiti di username, può essere vuota (se non segue nessuno)
      */
     public ArrayList<String> getFollowing(String username) {
-        ArrayList<String> ret = followingList.get(username);
-        if(ret == null) return new ArrayList<>();
+        return toNames(getFollowingIds(username));
+    }
+
+    /**
+     * Fornisce gli id dei follower dell'utente username, da usare solo in lettura
+     * @param username l'username di cui si vuole l'insieme di follower
+     * @return l'insieme degli id dei follower di username, può essere vuoto
+     */
+    IntSet getFollowerIds(String username) {
+        IntSet ret = followersList.get(username);
+        if(ret == null) return EMPTY_SET;
+        return ret;
+    }
+
+    /**
+     * Fornisce gli id degli utenti che username segue, da usare solo in lettura
+     * @param username l'username di cui si vuole l'insieme di seguiti
+     * @return l'insieme degli id dei seguiti di username, può essere vuoto
+     */
+    IntSet getFollowingIds(String username) {
+        IntSet ret = followingList.get(username);
+        if(ret == null) return EMPTY_SET;
         return ret;
     }
 
+    /**
+     * Fornisce l'id di un utente (vedi UserDirectory)
+     * @param username l'username dell'utente
+     * @return l'id dell'utente, -1 se non è registrato
+     */
+    int getUserId(String username) {
+        return userDirectory.getId(username);
+    }
+
+    /**
+     * Fornisce l'username di un utente dato il suo id
+     * @param id l'id dell'utente
+     * @return l'username dell'utente
+     */
+    String getUsername(int id) {
+        return userDirectory.getName(id);
+    }
+
     /**
      * Rimuove follower dalla lista follower di username
      * @param username l'username di cui aggiornare la lista
      * @param follower il vecchio follower di username
      */
     public void removeFollower(String username, String follower) {
-        followersList.get(username).remove(follower);
+        beginWrite();
+        try {
+            IntSet set = followersList.get(username);
+            int id = userDirectory.getId(follower);
+            if(set != null && id >= 0 && set.remove(id)) dirtyFollowers.add(username);
+        } finally {
+            endWrite();
+        }
     }
 
     /**
      * Rimuove following dalla lista di seguiti di username
      * @param username l'username di cui aggiornare la lista
      * @param following il vecchio seguito di username
+     * @return vero se username seguiva following, falso altrimenti
      */
-    public void removeFollowing(String username, String following) {
-        followingList.get(username).remove(following);
+    public boolean removeFollowing(String username, String following) {
+        beginWrite();
+        try {
+            ReentrantLock stripe = userLock(username);
+            stripe.lock();
+            try {
+                IntSet set = followingList.get(username);
+                int id = userDirectory.getId(following);
+                if(set == null || id < 0 || !set.remove(id)) return false;
+                dirtyFollowing.add(username);
+                log(new WriteAheadLog.RecordWriter(WriteAheadLog.UNFOLLOW).putString(username).putString(following));
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -501,9 +937,36 @@ public class SocialManager {
      * @param username l'utente da rimuovere
      */
     public void removeUser(String username) {
-        userList.remove(username);
-        followersList.remove(username);
-        followingList.remove(username);
+        beginWrite();
+        try {
+            WinSomeUser removed = userList.remove(username);
+            if(removed != null) removeFromTagIndex(removed);
+            int id = userDirectory.getId(username);
+            IntSet followers = followersList.remove(username);
+            IntSet following = followingList.remove(username);
+            // tolgo l'utente anche dalle relazioni degli altri. L'id resta nel dizionario (vedi UserDirectory): voti e
+            // rewin dell'utente restano nei post e se l'username venisse registrato di nuovo riceverebbe lo stesso id
+            if(id >= 0 && followers != null) followers.forEach(f -> removeId(followingList, dirtyFollowing, f, id));
+            if(id >= 0 && following != null) following.forEach(f -> removeId(followersList, dirtyFollowers, f, id));
+            dirtyUsers.add(username);
+            dirtyFollowers.add(username);
+            dirtyFollowing.add(username);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Rimuove un id dall'insieme di relazioni di un utente, segnando l'utente come da salvare
+     * @param lists le relazioni (follower o seguiti)
+     * @param dirty gli utenti le cui relazioni sono da salvare
+     * @param owner l'id dell'utente proprietario dell'insieme
+     * @param id l'id da rimuovere
+     */
+    private void removeId(ConcurrentHashMap<String, IntSet> lists, Set<String> dirty, int owner, int id) {
+        String name = userDirectory.getName(owner);
+        IntSet set = lists.get(name);
+        if(set != null && set.remove(id)) dirty.add(name);
     }
 
     /**
@@ -530,25 +993,604 @@ public class SocialManager {
      * @return il portafoglio dell'utente username, se non c'era viene inizializzato
      */
     public WinSomeWallet getWalletByUsername(String username) {
-        walletList.putIfAbsent(username, new WinSomeWallet(username));
-        return walletList.get(username);
+        WinSomeWallet w = walletList.get(username);
+        if(w != null) return w;
+
+        beginWrite();
+        try {
+            w = walletList.computeIfAbsent(username, WinSomeWallet::new);
+            dirtyWallets.add(username);
+            return w;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Aggiunge una transazione al portafoglio di un utente. Le modifiche ai portafogli vanno fatte con questo metodo
+     * (o con applyRewards) e non direttamente sul portafoglio, altrimenti non finiscono nel write-ahead log.
+     * @param username il proprietario del portafoglio
+     * @param edit il valore della transazione
+     * @param reason la causale della transazione
+     * @return il nuovo bilancio del portafoglio
+     */
+    public double addTransaction(String username, double edit, String reason) {
+        beginWrite();
+        try {
+            WinSomeTransaction transaction = new WinSomeTransaction(edit, reason);
+            double balance = getWalletByUsername(username).addTransaction(transaction);
+            dirtyWallets.add(username);
+            log(new WriteAheadLog.RecordWriter(WriteAheadLog.TRANSACTION).putString(username).putDouble(edit).putString(reason).putLong(transaction.getDate()));
+            return balance;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Applica ai portafogli i premi calcolati in un ciclo del RewardsManager. Le transazioni del ciclo sono registrate
+     * nel write-ahead log con un unico record insieme al numero del ciclo, così dopo un riavvio un ciclo risulta
+     * applicato tutto o per niente. Ogni portafoglio riceve le proprie transazioni del ciclo in un unico gruppo.
+     * @param cycle il numero del ciclo
+     * @param check_time la data (in tempo UNIX) del ciclo
+     * @param rewards le transazioni da applicare, raggruppate per destinatario
+     */
+    void applyRewards(int cycle, long check_time, Map<String, ArrayList<WinSomeTransaction>> rewards) {
+        beginWrite();
+        try {
+            int num_transactions = 0;
+            for(ArrayList<WinSomeTransaction> list : rewards.values()) {
+                num_transactions += list.size();
+            }
+            WriteAheadLog.RecordWriter record = new WriteAheadLog.RecordWriter(WriteAheadLog.REWARDS_CYCLE).putInt(cycle).putLong(check_time).putInt(num_transactions);
+            for(Map.Entry<String, ArrayList<WinSomeTransaction>> e : rewards.entrySet()) {
+                getWalletByUsername(e.getKey()).addTransactions(e.getValue()); // un solo aggiornamento per portafoglio
+                dirtyWallets.add(e.getKey());
+                for(WinSomeTransaction t : e.getValue()) {
+                    record.putString(e.getKey()).putDouble(t.getEdit()).putString(t.getReason()).putLong(t.getDate());
+                }
+            }
+            rewardsLog.markApplied(cycle, check_time);
+            log(record);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Imposta il write-ahead log su cui registrare le modifiche. Va chiamato dopo aver caricato i dati e rieseguito il
+     * registro, così le operazioni rieseguite non vengono registrate una seconda volta.
+     * @param wal il registro delle modifiche
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Registra una modifica nel write-ahead log (se attivo). Va chiamato tra beginWrite() ed endWrite(): l'attesa che
+     * il record sia su disco è fatta da endWrite(). Le modifiche il cui ordine conta al riavvio (quelle ad uno stesso
+     * post o alle relazioni di uno stesso utente) vanno applicate e registrate tenendo postLock() o userLock().
+     * @param record la modifica da registrare
+     */
+    private void log(WriteAheadLog.RecordWriter record) {
+        if(wal == null) return;
+        long[] pending = pendingRecord.get();
+        pending[0] = Math.max(pending[0], wal.append(record));
+    }
+
+    /**
+     * Fornisce il lock da tenere mentre si modifica un post e se ne registra la modifica nel write-ahead log. Le
+     * modifiche sono applicate in memoria senza lock, quindi senza questo due modifiche allo stesso post fatte da thread
+     * diversi potrebbero finire nel registro in ordine diverso da quello in cui sono state applicate (per esempio un
+     * voto prima del post stesso, o la cancellazione prima della creazione) e al riavvio verrebbero rieseguite in modo
+     * sbagliato. I post sono divisi tra WRITE_STRIPES lock, quindi modifiche a post diversi restano quasi sempre
+     * indipendenti. Va preso dopo beginWrite().
+     * @param post_id l'id del post da modificare
+     * @return il lock del post
+     */
+    private ReentrantLock postLock(int post_id) {
+        return writeStripes[Math.floorMod(post_id, WRITE_STRIPES)];
+    }
+
+    /**
+     * Come postLock(), per le modifiche ai seguiti di un utente (follow e unfollow)
+     * @param username l'utente di cui si modificano i seguiti
+     * @return il lock dell'utente
+     */
+    private ReentrantLock userLock(String username) {
+        return writeStripes[Math.floorMod(username.hashCode(), WRITE_STRIPES)];
+    }
+
+    /**
+     * Da chiamare prima di ogni modifica ai dati: impedisce che uno snapshot venga catturato a metà della modifica.
+     * Più modifiche possono essere in corso contemporaneamente e le chiamate possono essere annidate.
+     */
+    private void beginWrite() {
+        snapshotLock.readLock().lock();
+    }
+
+    /**
+     * Da chiamare (in un finally) al termine di ogni modifica iniziata con beginWrite(). Al termine della modifica
+     * più esterna attende che i record registrati nel write-ahead log siano su disco; l'attesa avviene dopo aver
+     * lasciato il lock, così non ritarda la cattura degli snapshot. Se la scrittura fallisce lo segna per
+     * takeLogFailure().
+     */
+    private void endWrite() {
+        snapshotLock.readLock().unlock();
+        if(snapshotLock.getReadHoldCount() != 0) return;
+
+        long[] pending = pendingRecord.get();
+        if(pending[0] != 0) {
+            long seq = pending[0];
+            pending[0] = 0;
+            if(!wal.awaitDurable(seq)) pending[1] = 1;
+        }
+    }
+
+    /**
+     * Indica se le modifiche fatte dal thread corrente dall'ultima chiamata sono state applicate in memoria ma non
+     * registrate su disco dal write-ahead log, perché la sua scrittura è fallita. Chi risponde ad un client lo usa per
+     * non confermargli una modifica che andrebbe persa con una chiusura improvvisa del server (resta comunque in
+     * memoria e finisce nel prossimo salvataggio).
+     * @return vero se almeno una modifica non è stata registrata su disco
+     */
+    public boolean takeLogFailure() {
+        long[] pending = pendingRecord.get();
+        boolean failed = pending[1] != 0;
+        pending[1] = 0;
+        return failed;
+    }
+
+    /**
+     * Cattura uno snapshot coerente dei dati da salvare. Per il tempo della cattura le modifiche sono sospese; vengono
+     * però copiati solo utenti, post, portafogli e liste di follower modificati dallo snapshot precedente, quindi la
+     * sospensione dipende dalle modifiche avvenute nell'intervallo e non dalla quantità di dati. Se il write-ahead log
+     * è attivo si passa anche ad un nuovo segmento, in modo che quelli precedenti contengano esattamente le modifiche
+     * comprese nello snapshot. Lo snapshot restituito va salvato prima di catturarne un altro, perché le mappe
+     * sono riusate dalla cattura successiva.
+     * @return lo snapshot da salvare
+     * @throws IOException se non è possibile creare il nuovo segmento del write-ahead log
+     */
+    public SocialSnapshot captureSnapshot() throws IOException {
+        snapshotLock.writeLock().lock();
+        try {
+            if(fullSnapshot) {
+                savedUsers.clear();
+                savedWallets.clear();
+                savedFollowers.clear();
+                savedFollowing.clear();
+                savedPosts.clear();
+                dirtyUsers.addAll(userList.keySet());
+                dirtyWallets.addAll(walletList.keySet());
+                dirtyFollowers.addAll(followersList.keySet());
+                dirtyFollowing.addAll(followingList.keySet());
+                postList.ids().forEach(dirtyPosts::add);
+                fullSnapshot = false;
+            }
+
+            copyDirty(dirtyUsers, userList::get, savedUsers, u -> u); // gli utenti sono immutabili
+            copyDirty(dirtyWallets, walletList::get, savedWallets, WinSomeWallet::copy);
+            copyDirty(dirtyFollowers, followersList::get, savedFollowers, this::toNames);
+            copyDirty(dirtyFollowing, followingList::get, savedFollowing, this::toNames);
+            copyDirty(dirtyPosts, postList::get, savedPosts, p -> p.copy(userDirectory::getName));
+
+            int segment = (wal != null) ? wal.rotate() : 0;
+            return new SocialSnapshot(savedUsers, savedWallets, savedFollowers, savedFollowing, savedPosts, last_post_id.get(),
+                    rewardsLog.getAppliedCycle(), rewardsLog.getLastCycleTime(), segment);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Aggiorna le copie di una struttura con i soli elementi modificati, rimuovendo quelli che non esistono più
+     * @param dirty le chiavi modificate, svuotato al termine
+     * @param live ricerca di un elemento nella struttura in uso dal social (null se non esiste)
+     * @param saved le copie da aggiornare
+     * @param copier funzione che crea la copia di un elemento
+     */
+    private static <K, V, C> void copyDirty(Set<K> dirty, Function<K, V> live, HashMap<K, C> saved, Function<V, C> copier) {
+        for(K key : dirty) {
+            V value = live.apply(key);
+            if(value == null) {
+                saved.remove(key);
+            } else {
+                saved.put(key, copier.apply(value));
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Riesegue un record del write-ahead log. Il registro può contenere modifiche già presenti nei file json (quelle
+     * fatte durante il salvataggio), quindi ogni operazione controlla di non essere già stata applicata.
+     * @param type il tipo del record
+     * @param record il contenuto del record
+     * @throws IOException se il contenuto del record non è valido
+     */
+    public void replay(byte type, WriteAheadLog.RecordReader record) throws IOException {
+        switch(type) {
+            case WriteAheadLog.REGISTER: {
+                String username = record.getString();
+                String password = record.getString();
+                long date = record.getLong();
+                int num_tags = record.getInt();
+                ArrayList<String> tags = new ArrayList<>();
+                for(int i = 0; i < num_tags; i++) {
+                    tags.add(record.getString());
+                }
+                WinSomeUser user = new WinSomeUser(username, password, tags, date);
+                if(userList.putIfAbsent(username, user) == null) {
+                    userDirectory.register(username);
+                    addToTagIndex(user);
+                }
+                break;
+            }
+            case WriteAheadLog.FOLLOW: {
+                String username = userDirectory.canonical(record.getString());
+                String following = userDirectory.canonical(record.getString());
+                if(followingList.computeIfAbsent(username, k -> new IntSet()).add(userDirectory.idOf(following))) {
+                    addFollower(following, username);
+                }
+                break;
+            }
+            case WriteAheadLog.UNFOLLOW: {
+                String username = record.getString();
+                String following = record.getString();
+                IntSet set = followingList.get(username);
+                if(set != null && set.remove(userDirectory.idOf(following))) {
+                    removeFollower(following, username);
+                }
+                break;
+            }
+            case WriteAheadLog.POST: {
+                int post_id = record.getInt();
+                WinSomePost p = new WinSomePost(post_id, userDirectory.canonical(record.getString()), record.getString(), record.getString(), record.getLong());
+                p.setRewardsStartCycle(record.getInt());
+                if(postList.putIfAbsent(post_id, p)) {
+                    getIndex(postsByAuthor, p.getAuthor()).add(post_id);
+                }
+                if(last_post_id.get() <= post_id) last_post_id.set(post_id + 1);
+                break;
+            }
+            case WriteAheadLog.VOTE: {
+                WinSomePost p = postList.get(record.getInt());
+                int voter = userDirectory.idOf(record.getString());
+                int value = record.getInt();
+                long date = record.getLong();
+                if(p != null) p.addVote(voter, value, date);
+                break;
+            }
+            case WriteAheadLog.COMMENT: {
+                WinSomePost p = postList.get(record.getInt());
+                String username = userDirectory.canonical(record.getString());
+                String text = record.getString();
+                long date = record.getLong();
+                if(p == null) break;
+                for(WinSomeComment c : p.findCommentsByUser(username)) {
+                    if(c.getDateSent() == date && c.getContent().equals(text)) return; // già presente
+                }
+                p.addComment(new WinSomeComment(username, text, date));
+                break;
+            }
+            case WriteAheadLog.REWIN: {
+                int post_id = record.getInt();
+                String username = userDirectory.canonical(record.getString());
+                WinSomePost p = postList.get(post_id);
+                if(p != null && p.addRewin(userDirectory.idOf(username))) {
+                    getIndex(rewinsByUser, username).add(post_id);
+                }
+                break;
+            }
+            case WriteAheadLog.DELETE: {
+                WinSomePost p = postList.remove(record.getInt());
+                if(p != null) removeFromIndexes(p);
+                break;
+            }
+            case WriteAheadLog.TRANSACTION: {
+                String username = record.getString();
+                replayTransaction(username, new WinSomeTransaction(record.getDouble(), record.getString(), record.getLong()));
+                break;
+            }
+            case WriteAheadLog.REWARDS_CYCLE: {
+                int cycle = record.getInt();
+                long check_time = record.getLong();
+                int num_transactions = record.getInt();
+                for(int i = 0; i < num_transactions; i++) {
+                    String username = record.getString();
+                    replayTransaction(username, new WinSomeTransaction(record.getDouble(), record.getString(), record.getLong()));
+                }
+                rewardsLog.replayCycle(cycle, check_time);
+                break;
+            }
+            default:
+                throw new IOException("tipo di record sconosciuto (" + type + ")");
+        }
+    }
+
+    /**
+     * Aggiunge una transazione rieseguita dal write-ahead log, se il portafoglio non la contiene già
+     * @param username il proprietario del portafoglio
+     * @param transaction la transazione da aggiungere
+     */
+    private void replayTransaction(String username, WinSomeTransaction transaction) {
+        WinSomeWallet w = getWalletByUsername(username);
+        for(WinSomeTransaction t : w.getTransactions()) {
+            if(t.getDate() == transaction.getDate() && t.getEdit() == transaction.getEdit() && Objects.equals(t.getReason(), transaction.getReason())) return;
+        }
+        w.addTransaction(transaction);
     }
 
     // i seguenti 5 metodi servono al JsonManager per impostare i valori a quelli ottenuti dai file di persistenza all'avvio del server
-    public void setPostList(ConcurrentHashMap<Integer, WinSomePost> postList) {
-        this.postList = postList;
+    public void setPostList(Map<Integer, WinSomePost> postList) {
+        PostTable table = new PostTable();
+        for(WinSomePost p : postList.values()) {
+            table.putIfAbsent(p.getPostID(), p.copy(userDirectory::idOf, userDirectory::canonical)); // username letti dal file -> id e istanze canoniche
+        }
+        this.postList = table;
+        rebuildPostIndexes();
+        fullSnapshot = true;
     }
     public void setUserList(ConcurrentHashMap<String, WinSomeUser> userList) {
         this.userList = userList;
+        userDirectory.clear();
+        for(WinSomeUser u : userList.values()) {
+            userDirectory.register(u.getUsername());
+        }
+        rebuildTagIndex();
+        fullSnapshot = true;
     }
     public void setFollowersList(ConcurrentHashMap<String, ArrayList<String>> followersList) {
-        this.followersList = followersList;
+        this.followersList = toSets(followersList);
+        fullSnapshot = true;
     }
     public void setFollowingList(ConcurrentHashMap<String, ArrayList<String>> followingList) {
-        this.followingList = followingList;
+        this.followingList = toSets(followingList);
+        fullSnapshot = true;
     }
     public void setWalletList(ConcurrentHashMap<String, WinSomeWallet> walletList) {
         this.walletList = walletList;
+        fullSnapshot = true;
+        if(!wallet_balance_check) return;
+
+        // verifico che il bilancio salvato di ogni portafoglio corrisponda alla somma delle sue transazioni
+        for(WinSomeWallet w : walletList.values()) {
+            if(!w.verifyBalance()) {
+                System.out.println("> Bilancio del portafoglio di '" + w.getUsername() + "' non coerente con le transazioni, ricalcolato.");
+            }
+        }
+    }
+
+    /**
+     * Fornisce il registro delle attività usato dal RewardsManager
+     * @return il registro delle attività dall'ultimo calcolo dei premi
+     */
+    RewardsEventLog getRewardsLog() {
+        return rewardsLog;
+    }
+
+    /**
+     * Da chiamare all'avvio, dopo il caricamento dei dati: riempie il registro delle attività con i voti e i commenti
+     * inviati dopo l'ultimo calcolo dei premi (che altrimenti andrebbero persi al riavvio) e converte il contatore di
+     * iterazioni dei post salvati dalle versioni precedenti.
+     * @param last_rewards_check la data (in tempo UNIX) dell'ultimo calcolo dei premi
+     */
+    void rebuildRewardsLog(long last_rewards_check) {
+        int cycle = rewardsLog.getCycle();
+        // i post sono indipendenti tra loro (e ognuno viene visitato da un solo thread, quindi l'ordine dei suoi voti
+        // resta quello originale): la tabella viene divisa tra i thread per intervalli di id
+        postList.stream().parallel().forEach(p -> {
+            p.migrateIterations(cycle);
+            p.forEachVote((voter, value, date) -> {
+                if(date >= last_rewards_check) rewardsLog.recordVote(p.getPostID(), userDirectory.getName(voter), value);
+            });
+            for(WinSomeComment c : p.getCommentList()) {
+                if(c.getDateSent() >= last_rewards_check) rewardsLog.recordComment(p.getPostID(), c.getAuthor());
+            }
+        });
+    }
+
+    /**
+     * Converte le relazioni lette da file (dove restano salvate come array di username) negli insiemi di id usati in
+     * memoria
+     * @param lists le relazioni lette da file
+     * @return le stesse relazioni come insiemi di id
+     */
+    private ConcurrentHashMap<String, IntSet> toSets(ConcurrentHashMap<String, ArrayList<String>> lists) {
+        ConcurrentHashMap<String, IntSet> converted = new ConcurrentHashMap<>();
+        for(String u : lists.keySet()) {
+            IntSet set = new IntSet();
+            for(String other : lists.get(u)) {
+                set.add(userDirectory.idOf(other));
+            }
+            converted.put(userDirectory.canonical(u), set);
+        }
+        return converted;
+    }
+
+    /**
+     * Converte un insieme di id di utenti nella lista dei loro username, per i client e per i file json
+     * @param ids gli id degli utenti
+     * @return la lista degli username, senza un ordine preciso
+     */
+    private ArrayList<String> toNames(IntSet ids) {
+        ArrayList<String> ret = new ArrayList<>(ids.size());
+        ids.forEach(id -> ret.add(userDirectory.getName(id)));
+        return ret;
+    }
+
+    /**
+     * Aggiunge un utente all'indice dei tag
+     * @param user l'utente da aggiungere
+     */
+    private void addToTagIndex(WinSomeUser user) {
+        for(String t : user.getTags_list()) {
+            usersByTag.computeIfAbsent(t, k -> ConcurrentHashMap.newKeySet()).add(user);
+        }
+    }
+
+    /**
+     * Rimuove un utente dall'indice dei tag
+     * @param user l'utente da rimuovere
+     */
+    private void removeFromTagIndex(WinSomeUser user) {
+        for(String t : user.getTags_list()) {
+            Set<WinSomeUser> users = usersByTag.get(t);
+            if(users != null) users.remove(user);
+        }
+    }
+
+    /**
+     * Ricostruisce l'indice dei tag partendo dalla lista degli utenti.
+     */
+    private void rebuildTagIndex() {
+        usersByTag.clear();
+        for(WinSomeUser u : userList.values()) {
+            addToTagIndex(u);
+        }
+    }
+
+    /**
+     * Ricostruisce gli indici dei post per autore e dei rewin per utente partendo dalla lista dei post.
+     */
+    private void rebuildPostIndexes() {
+        postsByAuthor.clear();
+        rewinsByUser.clear();
+        for(WinSomePost p : postList.values()) {
+            getIndex(postsByAuthor, p.getAuthor()).add(p.getPostID());
+            p.getRewinUsers().forEach(u -> getIndex(rewinsByUser, userDirectory.getName(u)).add(p.getPostID()));
+        }
+    }
+
+    /**
+     * Rimuove un post cancellato dall'indice del suo autore e da quelli degli utenti che ne hanno fatto il rewin.
+     * @param p il post cancellato
+     */
+    private void removeFromIndexes(WinSomePost p) {
+        ConcurrentSkipListSet<Integer> authorIndex = postsByAuthor.get(p.getAuthor());
+        if(authorIndex != null) authorIndex.remove(p.getPostID());
+        p.getRewinUsers().forEach(u -> {
+            ConcurrentSkipListSet<Integer> rewinIndex = rewinsByUser.get(userDirectory.getName(u));
+            if(rewinIndex != null) rewinIndex.remove(p.getPostID());
+        });
+    }
+
+    /**
+     * Fornisce l'indice di un utente, creandolo se non esiste
+     * @param indexes la mappa degli indici (postsByAuthor o rewinsByUser)
+     * @param username l'utente di cui si vuole l'indice
+     * @return l'indice dell'utente
+     */
+    private static ConcurrentSkipListSet<Integer> getIndex(ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> indexes, String username) {
+        return indexes.computeIfAbsent(username, k -> new ConcurrentSkipListSet<>());
+    }
+
+    /**
+     * Aggiunge alla lista delle sorgenti da unire l'indice di un utente, se esiste e non è vuoto
+     * @param sources la lista di sorgenti
+     * @param indexes la mappa degli indici (postsByAuthor o rewinsByUser)
+     * @param username l'utente di cui aggiungere l'indice
+     */
+    private static void addIndexSource(ArrayList<Iterator<Integer>> sources, ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> indexes, String username) {
+        ConcurrentSkipListSet<Integer> index = indexes.get(username);
+        if(index != null && !index.isEmpty()) sources.add(index.iterator());
+    }
+
+    /**
+     * Aggiunge alla lista delle sorgenti da unire la parte dell'indice di un utente con id minore di before, letta
+     * dall'id più grande al più piccolo
+     * @param sources la lista di sorgenti
+     * @param indexes la mappa degli indici (postsByAuthor o rewinsByUser)
+     * @param username l'utente di cui aggiungere l'indice
+     * @param before il cursore, escluso
+     */
+    private static void addIndexPageSource(ArrayList<Iterator<Integer>> sources, ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> indexes, String username, int before) {
+        ConcurrentSkipListSet<Integer> index = indexes.get(username);
+        if(index == null) return;
+        Iterator<Integer> it = index.headSet(before, false).descendingIterator();
+        if(it.hasNext()) sources.add(it);
+    }
+
+    /**
+     * Unisce (k-way merge) più indici letti all'indietro, dall'id più grande, fermandosi dopo limit post distinti;
+     * salta duplicati e post cancellati come mergeIndexes(). Costa O((k + limit) log k) se i duplicati sono pochi.
+     * @param sources gli iteratori sugli indici da unire, ognuno in ordine decrescente
+     * @param limit il numero massimo di post da restituire
+     * @return i limit post con id più grande, ordinati per id crescente
+     */
+    ArrayList<WinSomePost> mergeIndexesDescending(ArrayList<Iterator<Integer>> sources, int limit) {
+        ArrayList<WinSomePost> ret = new ArrayList<>(Math.min(limit, 64));
+        PriorityQueue<IndexCursor> queue = new PriorityQueue<>(Math.max(1, sources.size()), Collections.reverseOrder());
+        for(Iterator<Integer> it : sources) {
+            if(it.hasNext()) queue.add(new IndexCursor(it));
+        }
+
+        int last = -1;
+        while(!queue.isEmpty() && ret.size() < limit) {
+            IndexCursor c = queue.poll();
+            int id = c.current;
+            if(id != last) {
+                WinSomePost p = postList.get(id);
+                if(p != null) ret.add(p);
+                last = id;
+            }
+            if(c.advance()) queue.add(c);
+        }
+
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * Unisce (k-way merge) più indici ordinati di id in un'unica lista di post ordinata per id, saltando i duplicati e
+     * i post cancellati nel frattempo. Costa O(n log k) dove n è il numero di id negli indici e k il numero di indici.
+     * @param sources gli iteratori sugli indici da unire
+     * @return la lista ordinata dei post
+     */
+    private ArrayList<WinSomePost> mergeIndexes(ArrayList<Iterator<Integer>> sources) {
+        ArrayList<WinSomePost> ret = new ArrayList<>();
+        PriorityQueue<IndexCursor> queue = new PriorityQueue<>(Math.max(1, sources.size()));
+        for(Iterator<Integer> it : sources) {
+            if(it.hasNext()) queue.add(new IndexCursor(it));
+        }
+
+        int last = -1;
+        while(!queue.isEmpty()) {
+            IndexCursor c = queue.poll();
+            int id = c.current;
+            if(id != last) {
+                WinSomePost p = postList.get(id);
+                if(p != null) ret.add(p);
+                last = id;
+            }
+            if(c.advance()) queue.add(c);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Posizione corrente all'interno di un indice durante il k-way merge
+     */
+    private static class IndexCursor implements Comparable<IndexCursor> {
+        private final Iterator<Integer> it;
+        private int current;
+
+        IndexCursor(Iterator<Integer> it) {
+            this.it = it;
+            this.current = it.next();
+        }
+
+        boolean advance() {
+            if(!it.hasNext()) return false;
+            current = it.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(IndexCursor o) {
+            return Integer.compare(current, o.current);
+        }
     }
 
     /**
@@ -589,10 +1631,11 @@ public class SocialManager {
     /**
      * Permette di salvare il dato l'id dell'ultimo post creato in memoria persistente. Si è preferito tenere
      * questo metodo nella classe SocialManager invece che nel main per cercare di tenere più separati possibili
-     * i compiti delle singole classi.
+     * i compiti delle singole classi. Il valore è quello dello snapshot, coerente con i post salvati.
+     * @param snapshot lo snapshot appena salvato
      */
-    public void savePersistentData() {
-        config.forceSavePreference("last_post_id", String.valueOf(last_post_id.intValue()));
+    public void savePersistentData(SocialSnapshot snapshot) {
+        config.forceSavePreference("last_post_id", String.valueOf(snapshot.getLastPostId()));
     }
 
     /**
@@ -651,5 +1694,36 @@ public class SocialManager {
         if(post_max_content_length <= 0) {
             throw new ConfigurationException("valore 'post_max_content_length' non valido (" + post_max_content_length + " dovrebbe essere maggiore di 0)");
         }
+
+        // controllo se verificare i bilanci dei portafogli al caricamento (se manca, come nei config generati dalle
+        // versioni precedenti, la verifica è attiva: i loro file dati non contengono il bilancio)
+        String balance_check = Objects.requireNonNullElse(config.getPreference("wallet_balance_check"), "true");
+        if(!balance_check.equals("true") && !balance_check.equals("false")) {
+            throw new ConfigurationException("valore 'wallet_balance_check' non valido (" + balance_check + " dovrebbe essere 'true' oppure 'false')");
+        }
+        wallet_balance_check = Boolean.parseBoolean(balance_check);
+
+        // controllo le opzioni delle timeline (se mancano sono disattivate, come prima che esistessero)
+        String fanout = Objects.requireNonNullElse(config.getPreference("timeline_fanout"), "false");
+        if(!fanout.equals("true") && !fanout.equals("false")) {
+            throw new ConfigurationException("valore 'timeline_fanout' non valido (" + fanout + " dovrebbe essere 'true' oppure 'false')");
+        }
+        timeline_fanout = Boolean.parseBoolean(fanout);
+        try {
+            timeline_capacity = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("timeline_capacity"), "500"));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("valore 'timeline_capacity' non valido (" + e.getLocalizedMessage() + ")");
+        }
+        if(timeline_capacity <= 0) {
+            throw new ConfigurationException("valore 'timeline_capacity' non valido (" + timeline_capacity + " dovrebbe essere maggiore di 0)");
+        }
+        try {
+            timeline_max_followers = Integer.parseInt(Objects.requireNonNullElse(config.getPreference("timeline_max_followers"), "5000"));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("valore 'timeline_max_followers' non valido (" + e.getLocalizedMessage() + ")");
+        }
+        if(timeline_max_followers < 0) {
+            throw new ConfigurationException("valore 'timeline_max_followers' non valido (" + timeline_max_followers + " non può essere negativo)");
+        }
     }
 }
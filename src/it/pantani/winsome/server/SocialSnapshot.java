@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.server.entities.WinSomePost;
+import it.pantani.winsome.server.entities.WinSomeUser;
+import it.pantani.winsome.server.entities.WinSomeWallet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Fotografia coerente dei dati del social, catturata dal SocialManager e salvata su disco dal PeriodicSaveManager.
+ * Le mappe contengono copie dei dati (gli utenti sono immutabili e quindi condivisi) e non vengono modificate dalle
+ * richieste dei client, per cui possono essere scritte su file senza bloccare nessuno. Contiene anche i valori
+ * del file di configurazione relativi allo stesso istante e il segmento del write-ahead log da cui ripartire.
+ */
+public class SocialSnapshot {
+    private final HashMap<String, WinSomeUser> users;
+    private final HashMap<String, WinSomeWallet> wallets;
+    private final HashMap<String, ArrayList<String>> followers;
+    private final HashMap<String, ArrayList<String>> following;
+    private final HashMap<Integer, WinSomePost> posts;
+    private final int lastPostId;
+    private final int rewardsCycle;
+    private final long lastRewardsCheck;
+    private final int walSegment;
+
+    SocialSnapshot(HashMap<String, WinSomeUser> users, HashMap<String, WinSomeWallet> wallets, HashMap<String, ArrayList<String>> followers,
+                   HashMap<String, ArrayList<String>> following, HashMap<Integer, WinSomePost> posts, int lastPostId,
+                   int rewardsCycle, long lastRewardsCheck, int walSegment) {
+        this.users = users;
+        this.wallets = wallets;
+        this.followers = followers;
+        this.following = following;
+        this.posts = posts;
+        this.lastPostId = lastPostId;
+        this.rewardsCycle = rewardsCycle;
+        this.lastRewardsCheck = lastRewardsCheck;
+        this.walSegment = walSegment;
+    }
+
+    public HashMap<String, WinSomeUser> getUsers() {
+        return users;
+    }
+
+    public HashMap<String, WinSomeWallet> getWallets() {
+        return wallets;
+    }
+
+    public HashMap<String, ArrayList<String>> getFollowers() {
+        return followers;
+    }
+
+    public HashMap<String, ArrayList<String>> getFollowing() {
+        return following;
+    }
+
+    public HashMap<Integer, WinSomePost> getPosts() {
+        return posts;
+    }
+
+    /**
+     * Fornisce l'id che avrà il prossimo post, al momento della cattura
+     * @return il valore di last_post_id da salvare
+     */
+    public int getLastPostId() {
+        return lastPostId;
+    }
+
+    /**
+     * Fornisce il numero dell'ultimo ciclo dei premi applicato ai portafogli compresi nello snapshot
+     * @return il valore di rewards_cycle_count da salvare
+     */
+    public int getRewardsCycle() {
+        return rewardsCycle;
+    }
+
+    /**
+     * Fornisce la data dell'ultimo ciclo dei premi applicato ai portafogli compresi nello snapshot
+     * @return il valore di last_rewards_check da salvare
+     */
+    public long getLastRewardsCheck() {
+        return lastRewardsCheck;
+    }
+
+    /**
+     * Fornisce il primo segmento del write-ahead log con modifiche successive allo snapshot: una volta salvato lo
+     * snapshot, i segmenti precedenti possono essere cancellati.
+     * @return il numero del segmento, 0 se il registro è disattivato
+     */
+    public int getWalSegment() {
+        return walSegment;
+    }
+}
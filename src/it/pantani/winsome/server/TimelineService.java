@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import it.pantani.winsome.server.entities.WinSomePost;
+import it.pantani.winsome.server.utils.IntSet;
+import it.pantani.winsome.server.utils.TimelineBuffer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Feed costruiti in anticipo ("fan-out on write"), per gli utenti che leggono il feed molto più spesso di quanto
+ * pubblichino. Quando un utente legge il feed per la prima volta gli viene creata una timeline (TimelineBuffer) con
+ * gli id dei post più recenti del feed; da quel momento ogni post e ogni rewin degli utenti che segue viene aggiunto
+ * alla sua timeline, e follow e unfollow la aggiornano. Leggere una pagina del feed costa quindi quanto copiare la
+ * timeline, senza unire gli indici di tutti gli utenti seguiti.
+ * Gli autori con più di max_followers follower non vengono distribuiti (sarebbe troppo costoso ad ogni post): i loro
+ * post e rewin sono uniti alla timeline al momento della lettura, come fa SocialManager.getFeed ("fan-out on read").
+ * Un autore che supera il limite resta tra quelli letti al momento.
+ * Le timeline non sono salvate: sono ricostruite dai dati del social alla prima lettura dopo l'avvio. Ogni id letto
+ * dalla timeline viene comunque verificato con isPostInFeed(), quindi un post cancellato o di un utente non più seguito
+ * non compare mai; se la timeline non basta a riempire la pagina richiesta si legge il feed dagli indici.
+ */
+public class TimelineService {
+    private final SocialManager social;
+    private final int capacity;
+    private final int max_followers;
+
+    private final ConcurrentHashMap<String, TimelineBuffer> timelines;
+    private final Set<String> readAuthors; // autori con troppi follower, i cui post sono letti al momento
+
+    /**
+     * @param social il social di cui costruire i feed
+     * @param capacity il numero di post di ogni timeline
+     * @param max_followers gli autori con più follower di questo numero non vengono distribuiti nelle timeline
+     */
+    public TimelineService(SocialManager social, int capacity, int max_followers) {
+        this.social = social;
+        this.capacity = capacity;
+        this.max_followers = max_followers;
+        this.timelines = new ConcurrentHashMap<>();
+        this.readAuthors = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Distribuisce un nuovo post nelle timeline dei follower dell'autore
+     * @param author l'autore del post
+     * @param post_id l'id del post
+     */
+    void postAdded(String author, int post_id) {
+        push(author, post_id);
+    }
+
+    /**
+     * Distribuisce un rewin nelle timeline dei follower di chi lo ha fatto
+     * @param username l'utente che ha fatto il rewin
+     * @param post_id l'id del post
+     */
+    void rewinAdded(String username, int post_id) {
+        push(username, post_id);
+    }
+
+    /**
+     * Aggiunge alla timeline di username (se ne ha una) i post più recenti del blog dell'utente appena seguito
+     * @param username l'utente che ha iniziato a seguire
+     * @param followed l'utente seguito
+     */
+    void followed(String username, String followed) {
+        TimelineBuffer t = timelines.get(username);
+        if(t == null || readAuthors.contains(followed)) return;
+
+        ArrayList<WinSomePost> recent = social.getBlogPage(followed, capacity, Integer.MAX_VALUE);
+        // se il blog ha più post della timeline, quelli più vecchi della pagina mancano
+        if(recent.size() == capacity) t.raiseFloor(recent.get(0).getPostID());
+        for(WinSomePost p : recent) {
+            t.add(p.getPostID());
+        }
+    }
+
+    /**
+     * Toglie dalla timeline di username (se ne ha una) i post che non sono più nel suo feed
+     * @param username l'utente che ha smesso di seguire
+     * @param unfollowed l'utente non più seguito
+     */
+    void unfollowed(String username, String unfollowed) {
+        TimelineBuffer t = timelines.get(username);
+        if(t == null) return;
+        t.removeIf(id -> !social.isPostInFeed(id, username));
+    }
+
+    /**
+     * Restituisce una pagina del feed di username, con lo stesso risultato di SocialManager.getFeedPage(): la
+     * timeline (creata alla prima lettura) unita ai blog degli autori seguiti che non vengono distribuiti.
+     * @param username l'username di cui vedere il feed
+     * @param limit il numero massimo di post della pagina
+     * @param before il cursore, escluso (Integer.MAX_VALUE per partire dal post più recente)
+     * @return la pagina, ordinata per id
+     */
+    public ArrayList<WinSomePost> getFeedPage(String username, int limit, int before) {
+        TimelineBuffer t = timelines.get(username);
+        if(t == null) t = build(username);
+        if(!t.isReady()) return social.readFeedPage(username, limit, before); // in costruzione da un altro thread
+
+        int[] ids = t.copyBefore(before);
+        int floor = t.getFloor(); // letto dopo la copia: può solo essere più alto, quindi più prudente
+
+        ArrayList<Iterator<Integer>> sources = new ArrayList<>();
+        // gli id sono verificati solo quando il merge arriva a leggerli, cioè al più per una pagina
+        Iterator<Integer> timeline = IntStream.of(ids).filter(id -> social.isPostInFeed(id, username)).iterator();
+        if(timeline.hasNext()) sources.add(timeline);
+        if(!readAuthors.isEmpty()) {
+            IntSet following = social.getFollowingIds(username);
+            for(String u : readAuthors) {
+                if(following.contains(social.getUserId(u))) social.addBlogSources(sources, u, before);
+            }
+        }
+        ArrayList<WinSomePost> page = social.mergeIndexesDescending(sources, limit);
+
+        // la pagina è corretta solo se non scende sotto il pavimento della timeline
+        boolean complete = (page.size() == limit) ? page.get(0).getPostID() >= floor : floor == 0;
+        if(!complete) return social.readFeedPage(username, limit, before);
+        return page;
+    }
+
+    /**
+     * @return il numero di timeline create
+     */
+    public int size() {
+        return timelines.size();
+    }
+
+    /**
+     * Crea e riempie la timeline di un utente. La timeline è registrata prima di leggere il feed, così i post
+     * pubblicati nel frattempo vi vengono distribuiti oppure sono già negli indici letti.
+     * @param username l'utente
+     * @return la timeline dell'utente
+     */
+    private TimelineBuffer build(String username) {
+        TimelineBuffer t = new TimelineBuffer(capacity);
+        TimelineBuffer prev = timelines.putIfAbsent(username, t);
+        if(prev != null) return prev;
+
+        ArrayList<WinSomePost> feed = social.readFeedPage(username, capacity, Integer.MAX_VALUE);
+        if(feed.size() == capacity) t.raiseFloor(feed.get(0).getPostID());
+        for(WinSomePost p : feed) {
+            t.add(p.getPostID());
+        }
+        t.setReady();
+        return t;
+    }
+
+    /**
+     * Aggiunge un id alle timeline dei follower di un utente, a meno che l'utente non abbia troppi follower
+     */
+    private void push(String username, int post_id) {
+        if(readAuthors.contains(username)) return;
+        IntSet followers = social.getFollowerIds(username);
+        if(followers.size() > max_followers) {
+            readAuthors.add(username);
+            return;
+        }
+        followers.forEach(f -> {
+            TimelineBuffer t = timelines.get(social.getUsername(f));
+            if(t != null) t.add(post_id);
+        });
+    }
+}
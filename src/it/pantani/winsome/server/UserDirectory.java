@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dizionario degli utenti registrati. Ad ogni utente assegna, alla registrazione (o al caricamento dei dati), un id
+ * intero progressivo e tiene un'unica istanza del suo username. Il SocialManager memorizza gli id invece degli username
+ * nelle relazioni tra utenti, nei voti e nei rewin (come interi, senza un oggetto per elemento) e li converte
+ * in username solo verso l'esterno: file json, write-ahead log, risposte ai client e RMI. Dove restano gli username
+ * (autori di post e commenti) usa l'istanza canonica, così ogni username occupa memoria una volta sola.
+ * Gli id non vengono salvati su disco e un utente rimosso non viene tolto dal dizionario: voti e rewin dell'utente
+ * restano nei post con il suo id, e se l'username venisse registrato di nuovo riceverebbe lo stesso id. Così un
+ * utente non può votare due volte lo stesso post con due id diversi, e i file json (dove voti e rewin sono salvati per
+ * username) restano coerenti con la memoria.
+ */
+class UserDirectory {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    // id -> username; l'array viene sostituito (sotto il lock dell'oggetto) quando è pieno, i lettori non usano lock
+    private volatile String[] names;
+    private int next;
+
+    UserDirectory() {
+        this.ids = new ConcurrentHashMap<>();
+        this.names = new String[INITIAL_CAPACITY];
+        this.next = 0;
+    }
+
+    /**
+     * Registra un utente, se non lo era già
+     * @param username l'username dell'utente, che diventa l'istanza canonica
+     * @return l'id dell'utente
+     */
+    synchronized int register(String username) {
+        Integer id = ids.get(username);
+        if(id != null) return id;
+
+        String[] arr = names;
+        if(next == arr.length) arr = Arrays.copyOf(arr, arr.length * 2);
+        arr[next] = username;
+        names = arr; // pubblico l'array prima dell'id, così chi trova l'id trova anche il nome
+        ids.put(username, next);
+        return next++;
+    }
+
+    /**
+     * Fornisce l'id di un username letto dall'esterno (file json, write-ahead log), registrandolo se non lo è ancora:
+     * i dati salvati possono riferirsi ad utenti rimossi
+     * @param username l'username
+     * @return l'id dell'username
+     */
+    int idOf(String username) {
+        Integer id = ids.get(username);
+        return (id != null) ? id : register(username);
+    }
+
+    /**
+     * Fornisce l'id di un utente
+     * @param username l'username dell'utente
+     * @return l'id dell'utente, -1 se non è registrato
+     */
+    int getId(String username) {
+        Integer id = ids.get(username);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Fornisce l'username di un utente dato il suo id
+     * @param id l'id dell'utente
+     * @return l'username canonico dell'utente
+     */
+    String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * Fornisce l'istanza canonica di un username
+     * @param username l'username da cercare
+     * @return l'istanza canonica se l'utente è registrato, altrimenti username stesso
+     */
+    String canonical(String username) {
+        if(username == null) return null;
+        Integer id = ids.get(username);
+        return (id == null) ? username : names[id];
+    }
+
+    /**
+     * Svuota il dizionario (usato quando la lista degli utenti viene sostituita al caricamento dei dati)
+     */
+    synchronized void clear() {
+        ids.clear();
+        names = new String[INITIAL_CAPACITY];
+        next = 0;
+    }
+
+    /**
+     * @return il numero di utenti registrati nel dizionario
+     */
+    int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.entities;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro dei commenti di un post. I commenti possono solo essere aggiunti, quindi sono memorizzati in blocchi di
+ * dimensione crescente (4, 8, 16...) che, una volta allocati, non vengono mai copiati né spostati. L'aggiunta avviene
+ * sotto il lock del registro (ogni post ha il proprio, quindi commenti a post diversi non si ostacolano) e pubblica il
+ * nuovo numero di commenti solo dopo aver scritto il commento: chi legge non usa lock e vede sempre i primi size()
+ * commenti completi, anche mentre altri thread ne aggiungono.
+ * Il registro tiene anche il numero di commenti di ogni autore, così il gestore premi non deve scorrere i commenti.
+ * Nei file json è salvato come un semplice array di commenti, come la lista usata in precedenza.
+ */
+@JsonAdapter(CommentLog.GsonAdapterFactory.class)
+public class CommentLog implements Iterable<WinSomeComment> {
+    private static final int FIRST_BLOCK_SHIFT = 2; // il primo blocco contiene 4 commenti
+
+    // il blocco k contiene i commenti con indice da 4*(2^k - 1) a 4*(2^(k+1) - 1) escluso
+    private volatile WinSomeComment[][] blocks;
+    private volatile int size;
+    private final ConcurrentHashMap<String, Integer> countByAuthor;
+
+    public CommentLog() {
+        this.blocks = new WinSomeComment[0][];
+        this.size = 0;
+        this.countByAuthor = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Aggiunge un commento in fondo al registro
+     * @param comment il commento da aggiungere
+     */
+    public synchronized void add(WinSomeComment comment) {
+        int index = size;
+        int block = blockOf(index);
+        WinSomeComment[][] b = blocks;
+        if(block == b.length) {
+            WinSomeComment[][] grown = new WinSomeComment[block + 1][];
+            System.arraycopy(b, 0, grown, 0, block);
+            grown[block] = new WinSomeComment[1 << (block + FIRST_BLOCK_SHIFT)];
+            blocks = grown;
+            b = grown;
+        }
+        b[block][offsetOf(index, block)] = comment;
+        countByAuthor.merge(comment.getAuthor(), 1, Integer::sum);
+        size = index + 1; // scrittura volatile: pubblica il commento ai lettori
+    }
+
+    /**
+     * @return il numero di commenti nel registro
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Fornisce un commento dato il suo indice
+     * @param index l'indice del commento, da 0 a size() - 1
+     * @return il commento
+     */
+    public WinSomeComment get(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("indice " + index + ", commenti " + size);
+        int block = blockOf(index);
+        return blocks[block][offsetOf(index, block)];
+    }
+
+    /**
+     * Fornisce il numero di commenti scritti da un utente
+     * @param username l'username dell'utente
+     * @return il numero di commenti dell'utente, 0 se non ne ha scritti
+     */
+    public int countByAuthor(String username) {
+        return countByAuthor.getOrDefault(username, 0);
+    }
+
+    /**
+     * Scorre i commenti presenti all'inizio della visita, in ordine di aggiunta; i commenti aggiunti nel frattempo non
+     * vengono visitati.
+     * @return iteratore sui commenti
+     */
+    public Iterator<WinSomeComment> iterator() {
+        int end = size;
+        WinSomeComment[][] b = blocks; // letto dopo size, quindi contiene tutti i blocchi dei primi end commenti
+        return new Iterator<WinSomeComment>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            public WinSomeComment next() {
+                if(next >= end) throw new NoSuchElementException();
+                int block = blockOf(next);
+                return b[block][offsetOf(next++, block)];
+            }
+        };
+    }
+
+    /**
+     * @return una copia dei commenti presenti, in ordine di aggiunta
+     */
+    public ArrayList<WinSomeComment> toList() {
+        ArrayList<WinSomeComment> ret = new ArrayList<>(size);
+        for(WinSomeComment c : this) {
+            ret.add(c);
+        }
+        return ret;
+    }
+
+    private static int blockOf(int index) {
+        return (31 - Integer.numberOfLeadingZeros((index >> FIRST_BLOCK_SHIFT) + 1));
+    }
+
+    private static int offsetOf(int index, int block) {
+        return index + (1 << FIRST_BLOCK_SHIFT) - (1 << (block + FIRST_BLOCK_SHIFT));
+    }
+
+    /**
+     * Salva e carica il registro nei file json come array di commenti
+     */
+    static class GsonAdapterFactory implements TypeAdapterFactory {
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if(type.getRawType() != CommentLog.class) return null;
+            TypeAdapter<WinSomeComment> comment_adapter = gson.getAdapter(WinSomeComment.class);
+            return (TypeAdapter<T>) new TypeAdapter<CommentLog>() {
+                public void write(JsonWriter out, CommentLog log) throws IOException {
+                    if(log == null) {
+                        out.nullValue();
+                        return;
+                    }
+                    out.beginArray();
+                    for(WinSomeComment c : log) {
+                        comment_adapter.write(out, c);
+                    }
+                    out.endArray();
+                }
+
+                public CommentLog read(JsonReader in) throws IOException {
+                    CommentLog log = new CommentLog();
+                    if(in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                        return log;
+                    }
+                    in.beginArray();
+                    while(in.hasNext()) {
+                        log.add(comment_adapter.read(in));
+                    }
+                    in.endArray();
+                    return log;
+                }
+            };
+        }
+    }
+}
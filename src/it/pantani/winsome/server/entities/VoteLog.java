@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.entities;
+
+import java.util.Arrays;
+
+/**
+ * Registro dei voti di un post, indicizzati per id del votante (vedi UserDirectory). I voti sono memorizzati in array
+ * paralleli (votante, valore, data) invece che come oggetti WinSomeVote in una mappa, e un indice hash ad indirizzamento
+ * aperto trova il voto di un utente senza scorrerli. I voti possono solo essere aggiunti.
+ * Tutti i metodi sono sincronizzati sul registro: ogni post ha il proprio, quindi voti a post diversi non si ostacolano.
+ * Nei file json i voti restano salvati con gli username dei votanti, vedi WinSomePost.copy.
+ */
+public class VoteLog {
+    private static final int FIRST_CAPACITY = 4;
+
+    // gli array sono creati al primo voto, molti post non ne ricevono
+    private int[] voters;
+    private int[] values;
+    private long[] dates;
+    private int size;
+    // posizione + 1 del voto di ogni votante, 0 se libero; la lunghezza è una potenza di 2 e resta almeno doppia di size
+    private int[] slots;
+
+    /**
+     * Oggetto che visita i voti del registro
+     */
+    public interface Visitor {
+        /**
+         * @param voter l'id del votante
+         * @param value il valore del voto
+         * @param date la data del voto in tempo UNIX
+         */
+        void visit(int voter, int value, long date);
+    }
+
+    /**
+     * Aggiunge un voto, se il votante non ha già votato
+     * @param voter l'id del votante
+     * @param value il valore del voto
+     * @param date la data del voto in tempo UNIX
+     * @return vero se il voto è stato aggiunto, falso se il votante aveva già votato
+     */
+    public synchronized boolean add(int voter, int value, long date) {
+        if(find(voter) >= 0) return false;
+
+        if(voters == null) {
+            voters = new int[FIRST_CAPACITY];
+            values = new int[FIRST_CAPACITY];
+            dates = new long[FIRST_CAPACITY];
+            slots = new int[FIRST_CAPACITY * 2];
+        } else if(size == voters.length) {
+            voters = Arrays.copyOf(voters, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            dates = Arrays.copyOf(dates, size * 2);
+            slots = new int[size * 4];
+            for(int i = 0; i < size; i++) {
+                insertSlot(voters[i], i);
+            }
+        }
+
+        voters[size] = voter;
+        values[size] = value;
+        dates[size] = date;
+        insertSlot(voter, size);
+        size++;
+        return true;
+    }
+
+    /**
+     * Fornisce il voto di un utente
+     * @param voter l'id del votante
+     * @return il valore del voto, null se l'utente non ha votato
+     */
+    public synchronized Integer getValue(int voter) {
+        int i = find(voter);
+        return (i < 0) ? null : values[i];
+    }
+
+    /**
+     * @return il numero di voti
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Visita i voti in ordine di aggiunta. Il registro resta bloccato durante la visita, quindi il visitatore non deve
+     * attendere altri thread che votano lo stesso post.
+     * @param visitor l'oggetto che visita i voti
+     */
+    public synchronized void forEach(Visitor visitor) {
+        for(int i = 0; i < size; i++) {
+            visitor.visit(voters[i], values[i], dates[i]);
+        }
+    }
+
+    /**
+     * @return la posizione del voto del votante, -1 se non ha votato
+     */
+    private int find(int voter) {
+        if(slots == null) return -1;
+        int mask = slots.length - 1;
+        for(int s = hash(voter) & mask; slots[s] != 0; s = (s + 1) & mask) {
+            if(voters[slots[s] - 1] == voter) return slots[s] - 1;
+        }
+        return -1;
+    }
+
+    private void insertSlot(int voter, int index) {
+        int mask = slots.length - 1;
+        int s = hash(voter) & mask;
+        while(slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = index + 1;
+    }
+
+    private static int hash(int voter) {
+        int h = voter * 0x9E3779B9; // gli id sono consecutivi: li sparpaglio sulla tabella
+        return h ^ (h >>> 16);
+    }
+}
@@ -21,9 +21,20 @@ public class WinSomeComment {
      * @param content il contenuto del commento
      */
     public WinSomeComment(String author, String content) {
+        this(author, content, System.currentTimeMillis());
+    }
+
+    /**
+     * Questo costruttore inizializza un oggetto di tipo commento con una data già nota (usato per rieseguire le
+     * operazioni del write-ahead log).
+     * @param author l'autore del commento
+     * @param content il contenuto del commento
+     * @param dateSent la data del commento in tempo UNIX
+     */
+    public WinSomeComment(String author, String content, long dateSent) {
         this.author = author;
         this.content = content;
-        this.dateSent = System.currentTimeMillis();
+        this.dateSent = dateSent;
     }
 
     /**
@@ -6,14 +6,19 @@
 
 package it.pantani.winsome.server.entities;
 
+import it.pantani.winsome.server.utils.IntSet;
+
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
 
 /**
  * Classe che rappresenta un post di WinSome. E' una delle principali e contiene tutte le informazioni necessarie che
- * permettono il funzionamento del social. Tutti gli attributi si riferiscono all'oggetto eccetto rewinUsers (gli utenti
- * che hanno fatto rewin al post) e numIterations (necessario per il calcolo dei premi) che, seppur non essendo inerenti
+ * permettono il funzionamento del social. Tutti gli attributi si riferiscono all'oggetto eccetto i rewin (gli utenti
+ * che hanno fatto rewin al post) e rewardsStartCycle (necessario per il calcolo dei premi) che, seppur non essendo inerenti
  * completamente all'oggetto post (e violando diciamo il principio di modularità dell'Object Oriented Programming),
  * si è deciso di salvarli qui per maggiore comodità.
  */
@@ -23,33 +28,122 @@ public class WinSomePost {
     private final String postTitle;
     private final String postContent;
     private final long dateSent;
-    private final ConcurrentHashMap<String, WinSomeVote> votes;
-    private final ArrayList<WinSomeComment> comments;
-    private final ConcurrentLinkedQueue<String> rewinUsers;
-    private int numIterations;
+    // voti e rewin nella forma dei file json, con gli username: sono presenti solo nei post letti da file e nelle copie
+    // create per gli snapshot (vedi copy), null nei post in uso dal social
+    private HashMap<String, WinSomeVote> votes;
+    // voti e rewin in uso, indicizzati per id dell'utente (vedi UserDirectory); non vengono salvati nei file json ma
+    // ricostruiti da votes e rewinUsers quando il post viene copiato al caricamento
+    private final transient VoteLog voteLog;
+    private final transient IntSet rewins;
+    // contatori aggiornati da addVote, così mostrare un post non richiede di scorrere i voti; non vengono salvati nei
+    // file json ma ricalcolati dai voti quando il post viene copiato al caricamento (vedi copy)
+    private final transient AtomicInteger upvotes;
+    private final transient AtomicInteger downvotes;
+    private final transient AtomicInteger score; // somma dei valori di tutti i voti
+    private final CommentLog comments; // sicuro con più thread e con il numero di commenti di ogni autore
+    private ArrayList<String> rewinUsers; // forma dei file json, vedi votes
+    // versione del post, incrementata dopo ogni nuovo voto, commento o rewin: le viste formattate del post sono valide
+    // solo per la versione con cui sono state create
+    private final transient AtomicInteger version;
+    private transient volatile RenderedView[] renderedViews; // creato alla prima vista memorizzata
+    private int rewardsStartCycle; // ciclo dei premi in cui il post è stato creato, le iterazioni sono i cicli trascorsi da allora
+    private int numIterations; // usato solo dai file dati delle versioni precedenti, vedi migrateIterations
 
     /**
      * Questo costruttore inizializza un oggetto di tipo Post. Il post come entità è immutabile, tuttavia, per comodità
-     * l'unico attributo che invece è modificabile è numIterations che viene incrementato ad ogni controllo del post
-     * da parte del gestore premi. La data di invio del post è impostata in automatico.
+     * l'unico attributo che invece è modificabile è rewardsStartCycle, impostato dal social alla creazione del post e
+     * usato dal gestore premi per ricavarne il numero di iterazioni. La data di invio del post è impostata in automatico.
      * @param postID id del post
      * @param author autore del post
      * @param postTitle titolo del post
      * @param postContent corpo (contenuto) del post
      */
     public WinSomePost(int postID, String author, String postTitle, String postContent) {
+        this(postID, author, postTitle, postContent, System.currentTimeMillis());
+    }
+
+    /**
+     * Questo costruttore inizializza un post con una data di invio già nota (usato per rieseguire le operazioni del
+     * write-ahead log).
+     * @param postID id del post
+     * @param author autore del post
+     * @param postTitle titolo del post
+     * @param postContent corpo (contenuto) del post
+     * @param dateSent data di invio del post in tempo UNIX
+     */
+    public WinSomePost(int postID, String author, String postTitle, String postContent, long dateSent) {
         this.postID = postID;
         this.author = author;
         this.postTitle = postTitle;
         this.postContent = postContent;
-        this.dateSent = System.currentTimeMillis();
-        this.votes = new ConcurrentHashMap<>();
-        this.comments = new ArrayList<>();
-        this.rewinUsers = new ConcurrentLinkedQueue<>();
-
+        this.dateSent = dateSent;
+        this.votes = null;
+        this.voteLog = new VoteLog();
+        this.rewins = new IntSet();
+        this.upvotes = new AtomicInteger();
+        this.downvotes = new AtomicInteger();
+        this.score = new AtomicInteger();
+        this.version = new AtomicInteger();
+        this.renderedViews = null;
+        this.comments = new CommentLog();
+        this.rewinUsers = null;
+
+        this.rewardsStartCycle = 0;
         this.numIterations = 0;
     }
 
+    /**
+     * Crea la copia del post da salvare nei file json, usata per gli snapshot: voti e rewin sono convertiti dagli id
+     * degli utenti ai loro username. Voti e commenti sono immutabili e quindi condivisi con l'originale. Va chiamato
+     * quando il post non può essere modificato (il SocialManager lo fa durante la cattura dello snapshot).
+     * @param names funzione che fornisce l'username di un utente dato il suo id
+     * @return la copia del post
+     */
+    public WinSomePost copy(IntFunction<String> names) {
+        WinSomePost ret = new WinSomePost(postID, author, postTitle, postContent, dateSent);
+        ret.votes = new HashMap<>();
+        voteLog.forEach((voter, value, date) -> {
+            String name = names.apply(voter);
+            ret.votes.put(name, new WinSomeVote(name, value, date));
+        });
+        for(WinSomeComment c : comments) {
+            ret.comments.add(c);
+        }
+        ret.rewinUsers = new ArrayList<>(rewins.size());
+        rewins.forEach(u -> ret.rewinUsers.add(names.apply(u)));
+        ret.rewardsStartCycle = rewardsStartCycle;
+        ret.numIterations = numIterations;
+        return ret;
+    }
+
+    /**
+     * Crea il post da usare nel social a partire da uno letto dal file json: voti e rewin sono convertiti dagli
+     * username agli id degli utenti, e autore e commentatori sono sostituiti dalle istanze canoniche del dizionario degli
+     * utenti.
+     * @param ids funzione che fornisce l'id di un utente dato il suo username
+     * @param canonical funzione che fornisce l'istanza canonica di un username
+     * @return la copia del post
+     */
+    public WinSomePost copy(ToIntFunction<String> ids, UnaryOperator<String> canonical) {
+        WinSomePost ret = new WinSomePost(postID, canonical.apply(author), postTitle, postContent, dateSent);
+        if(votes != null) {
+            for(WinSomeVote v : votes.values()) {
+                ret.addVote(ids.applyAsInt(v.getAuthor()), v.getVote(), v.getDateSent());
+            }
+        }
+        for(WinSomeComment c : comments) {
+            ret.comments.add(new WinSomeComment(canonical.apply(c.getAuthor()), c.getContent(), c.getDateSent()));
+        }
+        if(rewinUsers != null) {
+            for(String u : rewinUsers) {
+                ret.addRewin(ids.applyAsInt(u));
+            }
+        }
+        ret.rewardsStartCycle = rewardsStartCycle;
+        ret.numIterations = numIterations;
+        return ret;
+    }
+
     /**
      * Fornisce l'id del post
      * @return id del post
@@ -91,28 +185,11 @@ public class WinSomePost {
     }
 
     /**
-     * Fornisce la lista dei voti
-     * @return lista dei voti del post
-     */
-    public ConcurrentHashMap<String, WinSomeVote> getVoteList() {
-        return votes;
-    }
-
-    /**
-     * Fornisce la lista dei voti inviati dopo una certa data
-     * @param after_this_date la minima data (in tempo UNIX) che i voti devono avere per essere restituiti
-     * @return lista dei voti del post inviati dopo after_this_date
+     * Visita i voti del post, in ordine di aggiunta (i voti vanno aggiunti con addVote, che aggiorna i contatori)
+     * @param visitor l'oggetto che visita i voti, con l'id del votante
      */
-    public ConcurrentHashMap<String, WinSomeVote> getVoteList(long after_this_date) {
-        ConcurrentHashMap<String, WinSomeVote> ret = new ConcurrentHashMap<>();
-
-        for(WinSomeVote v : votes.values()) {
-            if(v.getDateSent() >= after_this_date) {
-                ret.put(v.getAuthor(), v);
-            }
-        }
-
-        return ret;
+    public void forEachVote(VoteLog.Visitor visitor) {
+        voteLog.forEach(visitor);
     }
 
     /**
@@ -120,31 +197,33 @@ public class WinSomePost {
      * @return numero di voti totale
      */
     public int getTotalVotes() {
-        return votes.size();
+        return voteLog.size();
     }
 
     /**
      * Fornisce il numero di voti con un certo valore
      * Si è voluti rimanere generici perché un'altra implementazione del social potrebbe per esempio
-     * far assumere voti diversi da 1 e -1.
+     * far assumere voti diversi da 1 e -1: per i voti 1 e -1 il risultato è dato dai contatori, per gli altri valori i
+     * voti vengono scorsi.
      * @param findValue il valore del voto che si intende cercare
      * @return il numero di voti che corrispondono al criterio
      */
     public int getNumVotesByValue(int findValue) {
-        int found = 0;
-
-        for(WinSomeVote value : votes.values()) {
-            if(value.getVote() == findValue) found++;
-        }
-
-        return found;
+        if(findValue == 1) return upvotes.get();
+        if(findValue == -1) return downvotes.get();
+        int[] found = new int[1];
+        voteLog.forEach((voter, value, date) -> {
+            if(value == findValue) found[0]++;
+        });
+
+        return found[0];
     }
 
     /**
-     * Fornisce la lista di commenti del post
+     * Fornisce la lista di commenti del post. Si può scorrere anche mentre altri thread aggiungono commenti.
      * @return lista di commenti al post
      */
-    public ArrayList<WinSomeComment> getCommentList() {
+    public CommentLog getCommentList() {
         return comments;
     }
 
@@ -167,11 +246,26 @@ public class WinSomePost {
 
     /**
      * Aggiunge un voto al post
-     * @param username l'username dell'utente che aggiunge il voto
+     * @param voter l'id dell'utente che aggiunge il voto
      * @param value il valore del voto dell'utente
+     * @param date la data del voto in tempo UNIX
+     * @return vero se il voto è stato aggiunto, falso se l'utente aveva già votato questo post
      */
-    public void addVote(String username, int value) {
-        votes.putIfAbsent(username, new WinSomeVote(username, value));
+    public boolean addVote(int voter, int value, long date) {
+        if(!voteLog.add(voter, value, date)) return false;
+        if(value == 1) upvotes.incrementAndGet();
+        else if(value == -1) downvotes.incrementAndGet();
+        score.addAndGet(value);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Fornisce il punteggio del post, cioè la somma dei valori dei suoi voti, senza scorrere i voti
+     * @return il punteggio del post
+     */
+    public int getScore() {
+        return score.get();
     }
 
     /**
@@ -180,18 +274,34 @@ public class WinSomePost {
      * @param content il contenuto del commento dell'utente
      */
     public void addComment(String username, String content) {
-        comments.add(new WinSomeComment(username, content));
+        addComment(new WinSomeComment(username, content));
     }
 
     /**
-     * Fornisce il voto di un utente su questo post
+     * Aggiunge un commento già creato al post
+     * @param comment il commento da aggiungere
+     */
+    public void addComment(WinSomeComment comment) {
+        comments.add(comment);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Fornisce il numero di commenti fatti da un utente, senza scorrere i commenti
      * @param username l'username dell'utente
+     * @return il numero di commenti fatti dall'utente su questo post
+     */
+    public int getNumCommentsByUser(String username) {
+        return comments.countByAuthor(username);
+    }
+
+    /**
+     * Fornisce il voto di un utente su questo post
+     * @param voter l'id dell'utente
      * @return se l'utente ha votato questo post restituisce il valore del voto, null altrimenti
      */
-    public Integer findVoteByUser(String username) {
-        WinSomeVote v = votes.get(username);
-        if(v == null) return null;
-        return v.getVote();
+    public Integer findVoteByUser(int voter) {
+        return voteLog.getValue(voter);
     }
 
     /**
@@ -201,6 +311,7 @@ public class WinSomePost {
      */
     public ArrayList<WinSomeComment> findCommentsByUser(String username) {
         ArrayList<WinSomeComment> ret = new ArrayList<>();
+        if(comments.countByAuthor(username) == 0) return ret;
 
         for(WinSomeComment c : comments) {
             if(c.getAuthor().equals(username)) {
@@ -263,49 +374,130 @@ public class WinSomePost {
     }
 
     /**
-     * Fornisce la lista di utenti che hanno fatto il rewin di questo post
-     * @return lista di utenti che hanno fatto il rewin
+     * Fornisce gli id degli utenti che hanno fatto il rewin di questo post, da usare solo in lettura
+     * @return insieme degli id degli utenti che hanno fatto il rewin
      */
-    public ConcurrentLinkedQueue<String> getRewinUsers() {
-        return rewinUsers;
+    public IntSet getRewinUsers() {
+        return rewins;
     }
 
     /**
-     * Aggiunge username alla lista di utenti che hanno fatto il rewin di questo post
-     * @param username l'username che vorrebbe fare il rewin
+     * Aggiunge un utente a quelli che hanno fatto il rewin di questo post
+     * @param user l'id dell'utente che vorrebbe fare il rewin
      * @return vero se l'utente non ha mai fatto il rewin di questo post in passato, falso altrimenti
      */
-    public boolean addRewin(String username) {
-        if(rewinUsers.contains(username)) {
-            return false;
-        } else {
-            rewinUsers.add(username);
-            return true;
-        }
+    public boolean addRewin(int user) {
+        if(!rewins.add(user)) return false;
+        version.incrementAndGet();
+        return true;
     }
 
     /**
      * Verifica se l'utente ha mai fatto un rewin di questo post
-     * @param username l'utente di cui si vuole verificare la condizione
+     * @param user l'id dell'utente di cui si vuole verificare la condizione
      * @return vero se l'utente ha già fatto il rewin di questo post, falso altrimenti
      */
-    public boolean isRewinUserPresent(String username) {
-        return rewinUsers.contains(username);
+    public boolean isRewinUserPresent(int user) {
+        return rewins.contains(user);
+    }
+
+    /**
+     * Fornisce la versione del post, da leggere prima di formattarlo (vedi setRenderedView)
+     * @return la versione attuale del post
+     */
+    public int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Fornisce una vista del post già formattata, se è stata creata con la versione attuale del post
+     * @param view il numero che identifica la vista (per esempio le opzioni di formattazione usate)
+     * @return la vista formattata, null se non c'è o se il post è cambiato da quando è stata creata
+     */
+    public String getRenderedView(int view) {
+        RenderedView[] slots = renderedViews;
+        if(slots == null) return null;
+        int current = version.get();
+        for(RenderedView rv : slots) {
+            if(rv != null && rv.view == view && rv.version == current) return rv.text;
+        }
+        return null;
+    }
+
+    /**
+     * Memorizza una vista formattata del post. La versione va letta con getVersion() prima di formattare il post: se
+     * nel frattempo il post è cambiato la vista non viene memorizzata (o non viene più restituita), quindi una vista
+     * memorizzata non è mai più vecchia della versione a cui è associata.
+     * Il post tiene al più RenderedView.SLOTS viste: la nuova vista prende il posto di una con lo stesso numero o non
+     * più valida, altrimenti quello della prima.
+     * @param view il numero che identifica la vista
+     * @param version la versione del post letta prima di formattarlo
+     * @param text la vista formattata
+     */
+    public void setRenderedView(int view, int version, String text) {
+        if(version != this.version.get()) return; // il post è già cambiato
+        RenderedView[] slots = renderedViews;
+        if(slots == null) {
+            slots = new RenderedView[RenderedView.SLOTS];
+            renderedViews = slots; // due thread possono crearne uno a testa: si perde al più una vista
+        }
+        int slot = 0;
+        for(int i = 0; i < slots.length; i++) {
+            RenderedView rv = slots[i];
+            if(rv == null || rv.view == view || rv.version != version) {
+                slot = i;
+                break;
+            }
+        }
+        slots[slot] = new RenderedView(view, version, text);
+    }
+
+    /**
+     * Vista formattata di una versione del post. È immutabile, quindi può essere letta da un altro thread senza
+     * sincronizzazione; se la lettura trova una vista vecchia il controllo della versione la scarta.
+     */
+    private static class RenderedView {
+        // viste tenute da ogni post: i comandi del server ne usano due (post intero e riga del feed/blog)
+        private static final int SLOTS = 2;
+
+        private final int view;
+        private final int version;
+        private final String text;
+
+        private RenderedView(int view, int version, String text) {
+            this.view = view;
+            this.version = version;
+            this.text = text;
+        }
     }
 
     /**
-     * Fornisce il numero di iterazioni che il gestore premi ha fatto su questo post
+     * Fornisce il numero di iterazioni che il gestore premi ha fatto su questo post, cioè il numero di cicli di calcolo
+     * dei premi trascorsi dalla sua creazione
+     * @param current_cycle il numero dell'ultimo ciclo di calcolo dei premi
      * @return numero di iterazioni su questo post
      */
-    public int getNumIterations() {
-        return numIterations;
+    public int getNumIterations(int current_cycle) {
+        return current_cycle - rewardsStartCycle;
+    }
+
+    /**
+     * Imposta il ciclo di calcolo dei premi in cui il post è stato creato
+     * @param cycle il numero di cicli di calcolo dei premi effettuati al momento della creazione
+     */
+    public void setRewardsStartCycle(int cycle) {
+        this.rewardsStartCycle = cycle;
     }
 
     /**
-     * Aggiunge un'iterazione su questo post
-     * @return il numero di iterazioni totali dopo l'incremento
+     * Converte il contatore di iterazioni dei file dati delle versioni precedenti (incrementato su ogni post ad ogni
+     * ciclo) nel ciclo di partenza equivalente. Dopo la conversione il contatore è azzerato, quindi chiamare questo
+     * metodo più volte non ha effetto.
+     * @param current_cycle il numero di cicli di calcolo dei premi effettuati finora
      */
-    public int addIteration() {
-        return ++this.numIterations;
+    public void migrateIterations(int current_cycle) {
+        if(numIterations == 0) return;
+        rewardsStartCycle = current_cycle - numIterations;
+        numIterations = 0;
     }
 }
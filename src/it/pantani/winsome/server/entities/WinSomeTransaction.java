@@ -23,9 +23,20 @@ public class WinSomeTransaction {
      * @param reason la causale
      */
     public WinSomeTransaction(double edit, String reason) {
+        this(edit, reason, System.currentTimeMillis());
+    }
+
+    /**
+     * Questo costruttore inizializza un oggetto di tipo WinSomeTransaction con una data già nota (usato per
+     * rieseguire le operazioni del write-ahead log).
+     * @param edit il valore della transazione (può essere positivo, negativo o anche 0)
+     * @param reason la causale
+     * @param date la data della transazione in tempo UNIX
+     */
+    public WinSomeTransaction(double edit, String reason, long date) {
         this.edit = edit;
         this.reason = reason;
-        this.date = System.currentTimeMillis();
+        this.date = date;
     }
 
     /**
@@ -30,6 +30,18 @@ public class WinSomeUser {
      * @param tags_list lista di tags
      */
     public WinSomeUser(String username, String password, List<String> tags_list) {
+        this(username, password, tags_list, System.currentTimeMillis());
+    }
+
+    /**
+     * Questo costruttore inizializza un utente WinSome con una data di creazione già nota (usato per rieseguire le
+     * operazioni del write-ahead log).
+     * @param username nome del nuovo utente
+     * @param password password dell'utente hashata
+     * @param tags_list lista di tags
+     * @param creationDate data di creazione dell'account in tempo UNIX
+     */
+    public WinSomeUser(String username, String password, List<String> tags_list, long creationDate) {
         this.username = username;
         this.password = password;
 
@@ -37,7 +49,7 @@ public class WinSomeUser {
             this.tags_list.add(tag.toLowerCase());
         }
 
-        this.creationDate = System.currentTimeMillis();
+        this.creationDate = creationDate;
     }
 
     /**
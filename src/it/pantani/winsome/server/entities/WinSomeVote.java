@@ -22,9 +22,20 @@ public class WinSomeVote {
      * @param vote il valore del voto
      */
     public WinSomeVote(String author, int vote) {
+        this(author, vote, System.currentTimeMillis());
+    }
+
+    /**
+     * Questo costruttore inizializza un oggetto di tipo WinSomeVote con una data già nota (usato per rieseguire le
+     * operazioni del write-ahead log).
+     * @param author l'autore del voto
+     * @param vote il valore del voto
+     * @param dateSent la data del voto in tempo UNIX
+     */
+    public WinSomeVote(String author, int vote, long dateSent) {
         this.author = author;
         this.vote = vote;
-        this.dateSent = System.currentTimeMillis();
+        this.dateSent = dateSent;
     }
 
     /**
@@ -6,16 +6,20 @@
 
 package it.pantani.winsome.server.entities;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Classe che rappresenta il portafoglio di un utente. Il bilancio (che può essere anche negativo, sarà
- * la classe che implementa il wallet ad effettuare controlli) viene calcolato dalla lista di transazioni
- * che un utente ha fatto.
+ * la classe che implementa il wallet ad effettuare controlli) è la somma della lista di transazioni
+ * che un utente ha fatto, ma viene mantenuto aggiornato ad ogni transazione invece di essere ricalcolato.
  */
 public class WinSomeWallet {
     private final String username;
     private final ConcurrentLinkedQueue<WinSomeTransaction> transactions;
+    // somma delle transazioni, aggiornata insieme alla coda (sotto il lock dell'oggetto) in modo che le due cose
+    // siano sempre coerenti e che la somma sia fatta nello stesso ordine delle transazioni
+    private double balance;
 
     /**
      * Questo costruttore inizializza un wallet.
@@ -24,6 +28,19 @@ public class WinSomeWallet {
     public WinSomeWallet(String username) {
         this.username = username;
         this.transactions = new ConcurrentLinkedQueue<>();
+        this.balance = 0;
+    }
+
+    /**
+     * Crea una copia del portafoglio con la propria coda di transazioni (che sono immutabili e quindi condivise con
+     * l'originale), usata per gli snapshot da salvare su disco.
+     * @return la copia del portafoglio
+     */
+    public synchronized WinSomeWallet copy() {
+        WinSomeWallet ret = new WinSomeWallet(username);
+        ret.transactions.addAll(transactions);
+        ret.balance = balance;
+        return ret;
     }
 
     /**
@@ -43,17 +60,28 @@ public class WinSomeWallet {
     }
 
     /**
-     * Fornisce il bilancio di questo portafoglio. Visto che l'oggetto WinSomeWallet non contiene un bilancio
-     * che viene aggiornato, il bilancio è calcolato ogni volta.
+     * Fornisce il bilancio di questo portafoglio, senza scorrere le transazioni
      * @return bilancio di questo portafoglio
      */
-    public double getBalance() {
-        double balance = 0;
+    public synchronized double getBalance() {
+        return balance;
+    }
+
+    /**
+     * Ricalcola il bilancio sommando tutte le transazioni e lo confronta con quello mantenuto dal portafoglio. Se
+     * i due valori sono diversi (per esempio perché il portafoglio è stato salvato da una versione precedente, che
+     * non salvava il bilancio) viene tenuto quello ricalcolato.
+     * @return vero se il bilancio era coerente con le transazioni, falso se è stato corretto
+     */
+    public synchronized boolean verifyBalance() {
+        double sum = 0;
         for(WinSomeTransaction t : transactions) {
-            balance += t.getEdit();
+            sum += t.getEdit();
         }
 
-        return balance;
+        if(sum == balance) return true;
+        balance = sum;
+        return false;
     }
 
     /**
@@ -65,8 +93,37 @@ public class WinSomeWallet {
      * @return il nuovo bilancio dopo la modifica
      */
     public double changeBalance(double edit, String reason) {
-        transactions.add(new WinSomeTransaction(edit, reason));
+        return addTransaction(new WinSomeTransaction(edit, reason));
+    }
+
+    /**
+     * Inserisce una transazione già creata nel portafoglio
+     * @param transaction la nuova transazione
+     * @return il nuovo bilancio dopo la modifica
+     */
+    public synchronized double addTransaction(WinSomeTransaction transaction) {
+        transactions.add(transaction);
+        balance += transaction.getEdit();
+
+        return balance;
+    }
 
-        return getBalance();
+    /**
+     * Inserisce un gruppo di transazioni già create nel portafoglio, con un'unica acquisizione del lock: la coda le
+     * aggancia in fondo tutte insieme e il bilancio viene aggiornato una volta sola (sommando le transazioni nel loro
+     * ordine, come farebbero le singole chiamate ad addTransaction)
+     * @param batch le nuove transazioni
+     * @return il nuovo bilancio dopo la modifica
+     */
+    public synchronized double addTransactions(Collection<WinSomeTransaction> batch) {
+        if(batch.isEmpty()) return balance;
+        double sum = balance;
+        for(WinSomeTransaction t : batch) {
+            sum += t.getEdit();
+        }
+        transactions.addAll(batch);
+        balance = sum;
+
+        return balance;
     }
 }
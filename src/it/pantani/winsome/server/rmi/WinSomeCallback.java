@@ -11,16 +11,17 @@ import it.pantani.winsome.shared.rmi.WinSomeCallbackInterface;
 
 import java.rmi.RemoteException;
 import java.rmi.server.RemoteObject;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Classe che permette al client di registrarsi al server per poter ricevere notifiche
  * riguardo all'aggiornamento della lista followers. Il server mantiene una hashmap
  * con chiave username in modo da associare un utente alla relativa interfaccia su cui
- * inviare la notifica.
+ * inviare la notifica. La mappa è concorrente perché è usata sia dai thread RMI sia
+ * dai connectionhandler, senza bisogno di sincronizzazione esplicita.
  */
 public class WinSomeCallback extends RemoteObject implements WinSomeCallbackInterface {
-    private static final HashMap<String, NotifyEventInterface> clients = new HashMap<>();
+    private static final ConcurrentHashMap<String, NotifyEventInterface> clients = new ConcurrentHashMap<>();
 
     /**
      * Permette al client di registrarsi al callback in modo che il server sappia a
@@ -29,9 +30,7 @@ public class WinSomeCallback extends RemoteObject implements WinSomeCallbackInte
      * @param clientInterface l'interfaccia del client
      */
     public void registerForCallback(String username, NotifyEventInterface clientInterface) throws RemoteException {
-        if(!clients.containsKey(username)) {
-            clients.put(username, clientInterface);
-        }
+        clients.putIfAbsent(username, clientInterface);
     }
 
     /**
@@ -50,8 +49,9 @@ public class WinSomeCallback extends RemoteObject implements WinSomeCallbackInte
      * @param change il cambiamento nella lista follower da notificare
      */
     public static void notifyFollowerUpdate(String username, String change) throws RemoteException {
-        if(clients.containsKey(username)) {
-           clients.get(username).notificationEvent(change);
+        NotifyEventInterface client = clients.get(username);
+        if(client != null) {
+            client.notificationEvent(change);
         }
     }
 
@@ -26,7 +26,8 @@ public class WinSomeService implements WinSomeServiceInterface {
      * @param username il nome dell'utente da registrare
      * @param password la password (in chiaro) dell'utente da registrare
      * @param tags_list la lista di tags che contengono le categorie che interessano all'utente che si sta registrando
-     * @return Utils.SOCIAL_REGISTRATION_FAILED se l'username fornito è già registrato, Utils.SOCIAL_REGISTRATION_SUCCESS altrimenti
+     * @return Utils.SOCIAL_REGISTRATION_FAILED se l'username fornito è già registrato o se la registrazione non è stata
+     * scritta nel write-ahead log, Utils.SOCIAL_REGISTRATION_SUCCESS altrimenti
      */
     public String register(String username, String password, ArrayList<String> tags_list) throws RemoteException {
         username = username.toLowerCase(); // username viene convertito tutto in minuscolo
@@ -44,7 +45,12 @@ public class WinSomeService implements WinSomeServiceInterface {
 
         SocialManager s = ServerMain.social;
         WinSomeUser newUser = new WinSomeUser(username, PasswordManager.hashPassword(password), tags_list);
+        s.takeLogFailure();
         s.addUser(newUser);
+        if(s.takeLogFailure()) {
+            System.out.println(" fallita (errore di scrittura del write-ahead log)");
+            return Utils.SOCIAL_REGISTRATION_FAILED;
+        }
         System.out.println(" successo");
         return Utils.SOCIAL_REGISTRATION_SUCCESS;
     }
@@ -62,7 +68,7 @@ public class WinSomeService implements WinSomeServiceInterface {
         WinSomeUser u = s.getUser(username);
         if(u != null) {
             if(s.checkUserPassword(u, password)) {
-                return s.getFollowers(username);
+                return new ArrayList<>(s.getFollowers(username));
             }
         }
         return new ArrayList<>(); // restituisco lista vuota altrimenti
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Insieme concorrente di interi non negativi (gli id degli utenti, vedi UserDirectory) memorizzati direttamente in una
+ * tabella hash ad indirizzamento aperto, senza un oggetto per elemento. Aggiunte, rimozioni e ricerche costano O(1)
+ * e non usano lock: ogni slot viene modificato con un compare-and-set.
+ * Uno slot, una volta assegnato ad un elemento, resta suo per tutta la vita della tabella: la rimozione lo segna come
+ * cancellato e una nuova aggiunta dello stesso elemento lo riattiva, così un elemento non può mai comparire in due
+ * slot. Quando la tabella è troppo piena ne viene creata una nuova e gli slot della vecchia sono congelati uno alla
+ * volta (dopo il congelamento non cambiano più) e copiati nella nuova; un'operazione che trova congelato lo slot del
+ * suo elemento ne completa la copia e prosegue sulla nuova tabella, quindi nessuno aspetta chi sta ridimensionando.
+ * La visita degli elementi è debolmente consistente, come quella degli insiemi di ConcurrentHashMap.
+ */
+public class IntSet {
+    public static final int MAX_VALUE = (1 << 30) - 2; // il valore + 1 deve stare nei bit di KEY_MASK
+
+    // contenuto di uno slot: valore + 1 (0 se libero), più i due bit di stato
+    private static final int EMPTY = 0;
+    private static final int DELETED = 1 << 30;
+    private static final int FROZEN = 1 << 31;
+    private static final int KEY_MASK = DELETED - 1;
+
+    private static final int MIN_CAPACITY = 4;
+    private static final Table NO_TABLE = new Table(0); // condivisa dagli insiemi ancora vuoti
+
+    private static final AtomicReferenceFieldUpdater<IntSet, Table> TABLE = AtomicReferenceFieldUpdater.newUpdater(IntSet.class, Table.class, "table");
+    private static final AtomicIntegerFieldUpdater<IntSet> SIZE = AtomicIntegerFieldUpdater.newUpdater(IntSet.class, "size");
+
+    private volatile Table table;
+    private volatile int size;
+
+    public IntSet() {
+        this.table = NO_TABLE;
+        this.size = 0;
+    }
+
+    /**
+     * Aggiunge un elemento, se non è già presente
+     * @param value l'elemento da aggiungere, tra 0 e MAX_VALUE
+     * @return vero se l'elemento è stato aggiunto, falso se era già presente
+     */
+    public boolean add(int value) {
+        int key = encode(value);
+        Table t = table;
+        while(true) {
+            if(t == NO_TABLE) {
+                TABLE.compareAndSet(this, NO_TABLE, new Table(MIN_CAPACITY));
+                t = table;
+                continue;
+            }
+            int result = t.add(key);
+            if(result == Table.DONE) {
+                SIZE.incrementAndGet(this);
+                return true;
+            }
+            if(result == Table.PRESENT) return false;
+            if(result == Table.FULL) t = resize(t);
+            else t = t.moveKey(key, this);
+        }
+    }
+
+    /**
+     * Rimuove un elemento
+     * @param value l'elemento da rimuovere
+     * @return vero se l'elemento era presente, falso altrimenti
+     */
+    public boolean remove(int value) {
+        int key = encode(value);
+        Table t = table;
+        while(true) {
+            int result = t.remove(key);
+            if(result == Table.DONE) {
+                SIZE.decrementAndGet(this);
+                return true;
+            }
+            if(result == Table.ABSENT) return false;
+            t = t.moveKey(key, this);
+        }
+    }
+
+    /**
+     * @param value l'elemento da cercare
+     * @return vero se l'elemento è presente
+     */
+    public boolean contains(int value) {
+        if(value < 0 || value > MAX_VALUE) return false;
+        int key = value + 1;
+        Table t = table;
+        while(true) {
+            int result = t.find(key);
+            if(result == Table.PRESENT) return true;
+            if(result == Table.ABSENT) return false;
+            t = t.moveKey(key, this);
+        }
+    }
+
+    /**
+     * Verifica se questo insieme e other hanno almeno un elemento in comune, cercando gli elementi dell'insieme più
+     * piccolo nel più grande
+     * @param other l'altro insieme
+     * @return vero se i due insiemi hanno almeno un elemento in comune
+     */
+    public boolean intersects(IntSet other) {
+        IntSet small = this;
+        IntSet large = other;
+        if(small.size() > large.size()) {
+            small = other;
+            large = this;
+        }
+        Table t = small.current();
+        for(int i = 0; i < t.length(); i++) {
+            int s = t.get(i);
+            if(isLive(s) && large.contains((s & KEY_MASK) - 1)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return il numero di elementi
+     */
+    public int size() {
+        return Math.max(size, 0); // una rimozione può essere contata prima dell'aggiunta che l'ha preceduta
+    }
+
+    /**
+     * @return vero se l'insieme è vuoto
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Visita gli elementi, senza un ordine preciso. Gli elementi aggiunti o rimossi durante la visita possono essere
+     * visitati oppure no.
+     * @param action l'azione da eseguire su ogni elemento
+     */
+    public void forEach(IntConsumer action) {
+        Table t = current();
+        for(int i = 0; i < t.length(); i++) {
+            int s = t.get(i);
+            if(isLive(s)) action.accept((s & KEY_MASK) - 1);
+        }
+    }
+
+    /**
+     * @return gli elementi, senza un ordine preciso
+     */
+    public int[] toArray() {
+        Table t = current();
+        int[] ret = new int[Math.max(size(), 4)];
+        int n = 0;
+        for(int i = 0; i < t.length(); i++) {
+            int s = t.get(i);
+            if(!isLive(s)) continue;
+            if(n == ret.length) ret = Arrays.copyOf(ret, n * 2);
+            ret[n++] = (s & KEY_MASK) - 1;
+        }
+        return (n == ret.length) ? ret : Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * @return gli elementi, senza un ordine preciso
+     */
+    public IntStream stream() {
+        return IntStream.of(toArray());
+    }
+
+    /**
+     * Fornisce la tabella più recente, completando prima gli eventuali ridimensionamenti in corso
+     * @return la tabella su cui si trovano ora tutti gli elementi
+     */
+    private Table current() {
+        Table t = table;
+        while(t.next != null) {
+            t = resize(t);
+        }
+        return t;
+    }
+
+    /**
+     * Ridimensiona una tabella: crea la nuova tabella (se non l'ha già fatto un altro thread), vi copia tutti gli slot
+     * della vecchia e la rende la tabella dell'insieme. Più thread possono copiare la stessa tabella insieme.
+     * @param t la tabella da ridimensionare
+     * @return la nuova tabella
+     */
+    private Table resize(Table t) {
+        Table next = t.nextOrCreate(size());
+        for(int i = 0; i < t.length(); i++) {
+            t.moveSlot(i, this);
+        }
+        TABLE.compareAndSet(this, t, next);
+        return next;
+    }
+
+    private static int encode(int value) {
+        if(value < 0 || value > MAX_VALUE) throw new IllegalArgumentException("valore non valido: " + value);
+        return value + 1;
+    }
+
+    private static boolean isLive(int s) {
+        return (s & KEY_MASK) != 0 && (s & DELETED) == 0;
+    }
+
+    /**
+     * Una tabella dell'insieme. I metodi di ricerca e modifica restituiscono MOVED quando lo slot dell'elemento è
+     * congelato: l'operazione va ripetuta sulla tabella successiva dopo moveKey().
+     */
+    private static class Table {
+        static final int DONE = 0; // elemento aggiunto o rimosso
+        static final int PRESENT = 1;
+        static final int ABSENT = 2;
+        static final int FULL = 3; // per aggiungere l'elemento bisogna ridimensionare
+        static final int MOVED = 4;
+
+        private static final AtomicIntegerFieldUpdater<Table> USED = AtomicIntegerFieldUpdater.newUpdater(Table.class, "used");
+        private static final AtomicReferenceFieldUpdater<Table, Table> NEXT = AtomicReferenceFieldUpdater.newUpdater(Table.class, Table.class, "next");
+
+        private final AtomicIntegerArray slots;
+        private final int threshold; // slot assegnati (anche a elementi cancellati) oltre i quali si ridimensiona
+        private volatile int used;
+        private volatile Table next;
+
+        Table(int capacity) {
+            this.slots = new AtomicIntegerArray(capacity);
+            this.threshold = capacity - capacity / 4;
+            this.used = 0;
+            this.next = null;
+        }
+
+        int length() {
+            return slots.length();
+        }
+
+        int get(int i) {
+            return slots.get(i);
+        }
+
+        int add(int key) {
+            int mask = slots.length() - 1;
+            int i = hash(key) & mask;
+            for(int probes = 0; probes < slots.length(); probes++, i = (i + 1) & mask) {
+                while(true) {
+                    int s = slots.get(i);
+                    if((s & FROZEN) != 0) {
+                        if((s & KEY_MASK) == key || (s & KEY_MASK) == EMPTY) return MOVED;
+                        break;
+                    }
+                    if(s == EMPTY) {
+                        if(used >= threshold) return (next != null) ? MOVED : FULL; // solo il primo ridimensiona
+                        if(!slots.compareAndSet(i, EMPTY, key)) continue;
+                        USED.incrementAndGet(this);
+                        return DONE;
+                    }
+                    if((s & KEY_MASK) != key) break;
+                    if(s == key) return PRESENT;
+                    if(slots.compareAndSet(i, s, key)) return DONE; // riattivo lo slot cancellato
+                }
+            }
+            return (next != null) ? MOVED : FULL;
+        }
+
+        int remove(int key) {
+            int mask = slots.length() - 1;
+            int i = hash(key) & mask;
+            for(int probes = 0; probes < slots.length(); probes++, i = (i + 1) & mask) {
+                while(true) {
+                    int s = slots.get(i);
+                    if((s & FROZEN) != 0) {
+                        if((s & KEY_MASK) == key || (s & KEY_MASK) == EMPTY) return MOVED;
+                        break;
+                    }
+                    if(s == EMPTY) return ABSENT;
+                    if((s & KEY_MASK) != key) break;
+                    if(s != key) return ABSENT; // già cancellato
+                    if(slots.compareAndSet(i, s, key | DELETED)) return DONE;
+                }
+            }
+            return (next != null) ? MOVED : ABSENT;
+        }
+
+        int find(int key) {
+            int mask = slots.length() - 1;
+            int i = hash(key) & mask;
+            for(int probes = 0; probes < slots.length(); probes++, i = (i + 1) & mask) {
+                int s = slots.get(i);
+                if((s & FROZEN) != 0) {
+                    if((s & KEY_MASK) == key || (s & KEY_MASK) == EMPTY) return MOVED;
+                    continue;
+                }
+                if(s == EMPTY) return ABSENT;
+                if((s & KEY_MASK) == key) return (s == key) ? PRESENT : ABSENT;
+            }
+            return (next != null) ? MOVED : ABSENT;
+        }
+
+        /**
+         * Congela lo slot di un elemento (o lo slot libero in cui si ferma la sua ricerca), ne copia lo stato nella
+         * tabella successiva e la restituisce. Va chiamato solo se la tabella successiva esiste.
+         */
+        Table moveKey(int key, IntSet set) {
+            int mask = slots.length() - 1;
+            int i = hash(key) & mask;
+            for(int probes = 0; probes < slots.length(); probes++, i = (i + 1) & mask) {
+                int k = slots.get(i) & KEY_MASK;
+                if(k != key && k != EMPTY) continue;
+                moveSlot(i, set);
+                // uno slot libero può essere stato assegnato ad un altro elemento prima del congelamento
+                k = slots.get(i) & KEY_MASK;
+                if(k == key || k == EMPTY) break;
+            }
+            return next;
+        }
+
+        /**
+         * Congela uno slot e, se contiene un elemento presente, lo copia nella tabella successiva
+         */
+        void moveSlot(int i, IntSet set) {
+            int s;
+            do {
+                s = slots.get(i);
+            } while((s & FROZEN) == 0 && !slots.compareAndSet(i, s, s | FROZEN));
+            if(isLive(s)) copy(next, s & KEY_MASK, set);
+        }
+
+        /**
+         * Copia un elemento in una tabella, solo se quella tabella non ha mai avuto uno slot per l'elemento: se ce l'ha,
+         * l'elemento vi è già stato copiato e da lì può essere stato rimosso, e quello stato non va perso.
+         */
+        private static void copy(Table t, int key, IntSet set) {
+            while(true) {
+                int mask = t.slots.length() - 1;
+                int i = hash(key) & mask;
+                Table further = null;
+                for(int probes = 0; probes < t.slots.length() && further == null; probes++, i = (i + 1) & mask) {
+                    while(true) {
+                        int s = t.slots.get(i);
+                        if((s & KEY_MASK) == key) return;
+                        if(s == EMPTY) {
+                            if(!t.slots.compareAndSet(i, EMPTY, key)) continue;
+                            USED.incrementAndGet(t);
+                            return;
+                        }
+                        if(s == FROZEN) further = t.next; // l'elemento non è mai stato in questa tabella
+                        break;
+                    }
+                }
+                t = (further != null) ? further : t.nextOrCreate(set.size()); // tabella piena
+            }
+        }
+
+        /**
+         * Fornisce la tabella successiva, creandola se non esiste. La capacità è scelta in modo che gli elementi
+         * presenti occupino al più 3/8 degli slot.
+         */
+        Table nextOrCreate(int size) {
+            Table n = next;
+            if(n != null) return n;
+            int capacity = MIN_CAPACITY;
+            while(capacity / 8 * 3 < size + 1) {
+                capacity <<= 1;
+            }
+            NEXT.compareAndSet(this, null, new Table(capacity));
+            return next;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9; // gli id sono consecutivi: li sparpaglio sulla tabella
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -9,17 +9,23 @@ package it.pantani.winsome.server.utils;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import it.pantani.winsome.server.SocialManager;
+import it.pantani.winsome.server.SocialSnapshot;
 import it.pantani.winsome.server.entities.WinSomePost;
 import it.pantani.winsome.server.entities.WinSomeUser;
 import it.pantani.winsome.server.entities.WinSomeWallet;
 
 import java.io.*;
 import java.lang.reflect.Type;
-import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -33,8 +39,9 @@ public class JsonManager {
     private static final String POSTS_DATA_PATH = "posts_data.json";
     private static final String WALLETS_DATA_PATH = "wallets_data.json";
 
+    private static final String TEMP_SUFFIX = ".tmp"; // estensione dei file durante il salvataggio
+
     private final Gson gson;
-    private JsonReader reader;
 
     /**
      * Costruttore che inizializza l'oggetto Gson (che permette di salvare oggetti e recuperarli da un file json). Inoltre,
@@ -66,16 +73,17 @@ public class JsonManager {
      * @param s l'oggetto social
      */
     public void loadUserData(SocialManager s) {
-        String input = getFromFile(WINSOME_FOLDER_NAME+"/"+ USER_DATA_PATH);
-        if(input == null) return;
-
-        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
-        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, WinSomeUser>>() {}.getType();
-        if(input.equals("")) {
+        String path = WINSOME_FOLDER_NAME+"/"+ USER_DATA_PATH;
+        if(isFileEmpty(path)) {
             System.out.println("> File dati utenti vuoto.");
             return;
         }
-        s.setUserList(gson.fromJson(input, listaDelMioOggettoClasse)); // importazione nel social
+
+        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
+        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, WinSomeUser>>() {}.getType();
+        ConcurrentHashMap<String, WinSomeUser> input = getFromFile(path, listaDelMioOggettoClasse);
+        if(input == null) return;
+        s.setUserList(input); // importazione nel social
     }
 
     /**
@@ -83,16 +91,17 @@ public class JsonManager {
      * @param s l'oggetto social
      */
     public void loadPostData(SocialManager s) {
-        String input = getFromFile(WINSOME_FOLDER_NAME+"/"+ POSTS_DATA_PATH);
-        if(input == null) return;
-
-        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
-        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<Integer, WinSomePost>>() {}.getType();
-        if(input.equals("")) {
+        String path = WINSOME_FOLDER_NAME+"/"+ POSTS_DATA_PATH;
+        if(isFileEmpty(path)) {
             System.out.println("> File dati post vuoto.");
             return;
         }
-        s.setPostList(gson.fromJson(input, listaDelMioOggettoClasse)); // importazione nel social
+
+        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
+        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<Integer, WinSomePost>>() {}.getType();
+        ConcurrentHashMap<Integer, WinSomePost> input = getFromFile(path, listaDelMioOggettoClasse);
+        if(input == null) return;
+        s.setPostList(input); // importazione nel social
     }
 
     /**
@@ -100,16 +109,17 @@ public class JsonManager {
      * @param s l'oggetto social
      */
     public void loadWalletsData(SocialManager s) {
-        String input = getFromFile(WINSOME_FOLDER_NAME+"/"+ WALLETS_DATA_PATH);
-        if(input == null) return;
-
-        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
-        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, WinSomeWallet>>() {}.getType();
-        if(input.equals("")) {
+        String path = WINSOME_FOLDER_NAME+"/"+ WALLETS_DATA_PATH;
+        if(isFileEmpty(path)) {
             System.out.println("> File dati wallet vuoto.");
             return;
         }
-        s.setWalletList(gson.fromJson(input, listaDelMioOggettoClasse)); // importazione nel social
+
+        // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
+        Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, WinSomeWallet>>() {}.getType();
+        ConcurrentHashMap<String, WinSomeWallet> input = getFromFile(path, listaDelMioOggettoClasse);
+        if(input == null) return;
+        s.setWalletList(input); // importazione nel social
     }
 
     /**
@@ -118,116 +128,88 @@ public class JsonManager {
      */
     public void loadRelationsData(SocialManager s) {
         // FOLLOWERS
-        String input = getFromFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWERS_DATA_PATH);
-        if(input != null) {
-            if(input.equals("")) {
-                System.out.println("> File dati relazioni (followers) vuoto.");
-            } else {
-                // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
-                Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, ArrayList<String>>>() {}.getType();
-                s.setFollowersList(gson.fromJson(input, listaDelMioOggettoClasse)); // importazione nel social
-            }
+        String path = WINSOME_FOLDER_NAME+"/"+ FOLLOWERS_DATA_PATH;
+        if(isFileEmpty(path)) {
+            System.out.println("> File dati relazioni (followers) vuoto.");
+        } else {
+            // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
+            Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, ArrayList<String>>>() {}.getType();
+            ConcurrentHashMap<String, ArrayList<String>> input = getFromFile(path, listaDelMioOggettoClasse);
+            if(input != null) s.setFollowersList(input); // importazione nel social
         }
 
         // FOLLOWING
-        input = getFromFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWING_DATA_PATH);
-        if(input != null) {
-            if(input.equals("")) {
-                System.out.println("> File dati relazioni (following) vuoto.");
-            } else {
-                // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
-                Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, ArrayList<String>>>() {}.getType();
-                s.setFollowingList(gson.fromJson(input, listaDelMioOggettoClasse)); // importazione nel social
-            }
+        path = WINSOME_FOLDER_NAME+"/"+ FOLLOWING_DATA_PATH;
+        if(isFileEmpty(path)) {
+            System.out.println("> File dati relazioni (following) vuoto.");
+        } else {
+            // se non ci fosse questa riga, la JVM non sarebbe in grado di ricavare la struttura esatta degli oggetti serializzati
+            Type listaDelMioOggettoClasse = new TypeToken<ConcurrentHashMap<String, ArrayList<String>>>() {}.getType();
+            ConcurrentHashMap<String, ArrayList<String>> input = getFromFile(path, listaDelMioOggettoClasse);
+            if(input != null) s.setFollowingList(input); // importazione nel social
         }
     }
 
     /**
      * Salva tutti i file per garantire la persistenza del server.
-     * @param s l'oggetto social
+     * @param s lo snapshot dei dati del social da salvare
      * @throws IOException in caso di errori con il salvataggio dei dati
      */
-    public void saveAll(SocialManager s) throws IOException {
-        saveInFile(WINSOME_FOLDER_NAME+"/"+ USER_DATA_PATH, s.getUserList());
-        saveInFile(WINSOME_FOLDER_NAME+"/"+ WALLETS_DATA_PATH, s.getWalletList());
+    public void saveAll(SocialSnapshot s) throws IOException {
+        saveInFile(WINSOME_FOLDER_NAME+"/"+ USER_DATA_PATH, s.getUsers());
+        saveInFile(WINSOME_FOLDER_NAME+"/"+ WALLETS_DATA_PATH, s.getWallets());
 
-        saveInFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWERS_DATA_PATH, s.getFollowersList());
-        saveInFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWING_DATA_PATH, s.getFollowingList());
+        saveInFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWERS_DATA_PATH, s.getFollowers());
+        saveInFile(WINSOME_FOLDER_NAME+"/"+ FOLLOWING_DATA_PATH, s.getFollowing());
 
-        saveInFile(WINSOME_FOLDER_NAME+"/"+ POSTS_DATA_PATH, s.getPostList());
+        saveInFile(WINSOME_FOLDER_NAME+"/"+ POSTS_DATA_PATH, s.getPosts());
     }
 
     /**
-     * Salva in un file un determinato oggetto, che viene convertito in json.
+     * Salva in un file un determinato oggetto, che viene convertito in json. L'oggetto è scritto man mano (con un
+     * JsonWriter) su un file temporaneo, senza costruire in memoria la stringa json completa; a scrittura completata
+     * il file temporaneo viene forzato su disco e sostituisce quello vecchio, così un'interruzione durante il
+     * salvataggio non lascia mai un file a metà.
      * @param path il percorso del file in cui salvare l'oggetto
      * @param structure l'oggetto da salvare
      * @throws IOException in caso di errori con il salvataggio dei dati
      */
     private void saveInFile(String path, Object structure) throws IOException {
-        String toSave = gson.toJson(structure);
-
-        // --- scrivo dati sul canale (file) - NIO
-        WritableByteChannel dest;
-        try {
-            dest = Channels.newChannel(new FileOutputStream(path));
-        } catch(Exception e) {
-            System.err.println("[!] Percorso '" + path + "' non valido per il file.");
-            return;
+        Path dest = Paths.get(path);
+        Path temp = Paths.get(path + TEMP_SUFFIX);
+
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8)));
+            gson.toJson(structure, structure.getClass(), writer);
+            writer.flush();
+            channel.force(true);
         }
-        ByteBuffer buffer = ByteBuffer.allocateDirect(toSave.getBytes().length);
-        buffer.put(toSave.getBytes());
-        buffer.flip();
-        dest.write(buffer);
-        dest.close();
+        Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
-     * Legge un file dinamicamente
+     * Legge un file json e lo converte nell'oggetto del tipo richiesto. Il file è letto man mano (con un JsonReader)
+     * invece di essere prima caricato tutto in una stringa.
      * @param path il percorso del file da leggere
-     * @return il contenuto del file
+     * @param type il tipo dell'oggetto salvato nel file
+     * @return l'oggetto letto dal file, null in caso di errore
      */
-    private String getFromFile(String path) {
-        // leggo dal file
-        ReadableByteChannel src;
-
-        try {
-            src = Channels.newChannel(new FileInputStream(path));
-        } catch(Exception e) {
-            System.err.println("[!] Percorso '" + path + "' non valido per il file.");
-            return null;
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
-        String input = ""; // stringa che contiene il file
-        buffer.clear();
-        try {
-            while(src.read(buffer) >= 0 || buffer.position() != 0) {
-                // preparo a leggere i byte che sono stati inseriti nel buffer
-                buffer.flip();
-
-                // aggiungo a stringa
-                input = getJsonData(input, buffer);
-
-                // pulisco il buffer
-                buffer.compact();
-            }
+    private <T> T getFromFile(String path, Type type) {
+        try(JsonReader reader = new JsonReader(new BufferedReader(Channels.newReader(FileChannel.open(Paths.get(path), StandardOpenOption.READ), StandardCharsets.UTF_8)))) {
+            return gson.fromJson(reader, type);
         } catch(IOException e) {
-            e.printStackTrace();
-        }
-
-        // quando arrivo alla fine, è possibile che non tutti i dati sono stati letti
-        buffer.flip();
-        while(buffer.hasRemaining()) {
-            input = getJsonData(input, buffer);
-        }
-
-        try {
-            src.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("[!] Impossibile leggere il file '" + path + "'. Motivo: " + e.getLocalizedMessage());
+            return null;
         }
+    }
 
-        return input;
+    /**
+     * Verifica se un file è vuoto (o non esiste)
+     * @param path il percorso del file
+     * @return vero se il file non contiene dati
+     */
+    private boolean isFileEmpty(String path) {
+        return new File(path).length() == 0;
     }
 
     /**
@@ -248,21 +230,4 @@ public class JsonManager {
             return false;
         }
     }
-
-    /**
-     * Visto che con NIO i file non sono letti tutti insieme, devo salvarmi man mano i byte su una stringa,
-     * che, una volta finiti tutti i dati, comporrà il file sorgente.
-     * @param extend la stringa da estendere ogni volta con i nuovi dati
-     * @param buffer i nuovi byte (dati) con cui estendere la stringa extend
-     * @return la stringa estesa con i nuovi dati
-     */
-    private String getJsonData(String extend, ByteBuffer buffer) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(extend);
-        while(buffer.hasRemaining()) {
-            sb.append((char) buffer.get());
-        }
-
-        return sb.toString();
-    }
 }
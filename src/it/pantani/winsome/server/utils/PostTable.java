@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.utils;
+
+import it.pantani.winsome.server.entities.WinSomePost;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tabella dei post indicizzata direttamente dall'id. Gli id dei post sono assegnati in modo progressivo (last_post_id),
+ * quindi invece di una mappa si usa un array diviso in segmenti di dimensione fissa, allocati man mano che gli id
+ * crescono: la ricerca di un post non crea oggetti Integer e non attraversa nodi, ma legge direttamente la cella.
+ * Le letture non usano lock; inserimenti e cancellazioni sono compare-and-set sulla cella, mentre l'aggiunta di un
+ * segmento (rara) avviene sotto il lock della tabella. Un post cancellato lascia nella sua cella una "lapide", così
+ * l'id non può più essere occupato da un altro post.
+ */
+public class PostTable {
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 1024 post per segmento
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // contenuto delle celle dei post cancellati
+    private static final WinSomePost TOMBSTONE = new WinSomePost(-1, "", "", "", 0);
+
+    // l'array dei segmenti viene sostituito (con uno più grande) sotto il lock della tabella; i lettori non usano lock
+    private volatile AtomicReferenceArray<WinSomePost>[] segments;
+    private final AtomicInteger size;
+
+    public PostTable() {
+        this.segments = newSegmentArray(16);
+        this.size = new AtomicInteger();
+    }
+
+    /**
+     * Fornisce un post dato il suo id
+     * @param post_id l'id del post
+     * @return il post, null se non esiste o è stato cancellato
+     */
+    public WinSomePost get(int post_id) {
+        if(post_id < 0) return null;
+        AtomicReferenceArray<WinSomePost>[] segs = segments;
+        int index = post_id >>> SEGMENT_SHIFT;
+        if(index >= segs.length) return null;
+        AtomicReferenceArray<WinSomePost> segment = segs[index];
+        if(segment == null) return null;
+        WinSomePost p = segment.get(post_id & SEGMENT_MASK);
+        return (p == TOMBSTONE) ? null : p;
+    }
+
+    /**
+     * Inserisce un post, se la cella del suo id è libera (cioè non contiene un post né la lapide di uno cancellato)
+     * @param post_id l'id del post
+     * @param post il post da inserire
+     * @return vero se il post è stato inserito, falso se l'id era già occupato
+     */
+    public boolean putIfAbsent(int post_id, WinSomePost post) {
+        Objects.requireNonNull(post);
+        if(post_id < 0) throw new IllegalArgumentException("id del post negativo: " + post_id);
+        if(!segmentFor(post_id).compareAndSet(post_id & SEGMENT_MASK, null, post)) return false;
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Cancella un post, ma solo se la cella contiene ancora proprio quel post
+     * @param post_id l'id del post
+     * @param post il post che si vuole cancellare
+     * @return vero se il post è stato cancellato, falso se era già stato cancellato
+     */
+    public boolean remove(int post_id, WinSomePost post) {
+        if(post == null || post == TOMBSTONE || get(post_id) != post) return false;
+        if(!segmentFor(post_id).compareAndSet(post_id & SEGMENT_MASK, post, TOMBSTONE)) return false;
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Cancella il post con un certo id, qualunque esso sia
+     * @param post_id l'id del post
+     * @return il post cancellato, null se non c'era
+     */
+    public WinSomePost remove(int post_id) {
+        while(true) {
+            WinSomePost p = get(post_id);
+            if(p == null) return null;
+            if(remove(post_id, p)) return p;
+        }
+    }
+
+    /**
+     * @return il numero di post presenti (esclusi quelli cancellati)
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return vero se la tabella non contiene post
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Fornisce gli id dei post presenti in ordine crescente. Lo stream può essere reso parallelo con parallel(): è
+     * diviso per intervalli di id, quindi ogni thread visita una parte distinta della tabella.
+     * @return stream degli id dei post presenti
+     */
+    public IntStream ids() {
+        int capacity = segments.length * SEGMENT_SIZE;
+        return IntStream.range(0, capacity).filter(id -> get(id) != null);
+    }
+
+    /**
+     * Fornisce i post presenti in ordine di id; anche questo stream può essere reso parallelo con parallel().
+     * Un post inserito o cancellato durante la visita può esserci o meno.
+     * @return stream dei post presenti
+     */
+    public Stream<WinSomePost> stream() {
+        int capacity = segments.length * SEGMENT_SIZE;
+        return IntStream.range(0, capacity).mapToObj(this::get).filter(Objects::nonNull);
+    }
+
+    /**
+     * Fornisce i post presenti, da usare nei cicli for-each
+     * @return i post presenti in ordine di id
+     */
+    public Iterable<WinSomePost> values() {
+        return () -> stream().iterator();
+    }
+
+    /**
+     * Fornisce il segmento che contiene un id, creandolo (insieme a quelli precedenti mancanti) se non esiste
+     */
+    private AtomicReferenceArray<WinSomePost> segmentFor(int post_id) {
+        int index = post_id >>> SEGMENT_SHIFT;
+        AtomicReferenceArray<WinSomePost>[] segs = segments;
+        if(index < segs.length && segs[index] != null) return segs[index];
+
+        synchronized(this) {
+            segs = segments;
+            if(index >= segs.length) {
+                int length = segs.length;
+                while(length <= index) length *= 2;
+                segs = Arrays.copyOf(segs, length);
+            }
+            if(segs[index] == null) segs[index] = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            segments = segs; // pubblico il segmento con la scrittura volatile
+            return segs[index];
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<WinSomePost>[] newSegmentArray(int length) {
+        return (AtomicReferenceArray<WinSomePost>[]) new AtomicReferenceArray[length];
+    }
+}
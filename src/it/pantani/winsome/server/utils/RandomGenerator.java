@@ -6,18 +6,25 @@
 
 package it.pantani.winsome.server.utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 
 /**
- * Classe che si occupa di generare numeri pseudocasuali utilizzando un servizio esterno.
+ * Classe che si occupa di generare numeri pseudocasuali utilizzando un servizio esterno. La richiesta è fatta con
+ * HttpClient (condiviso da tutte le chiamate) invece che con URLConnection, che internamente usa blocchi synchronized e
+ * bloccherebbe il carrier thread quando il connectionhandler gira su un virtual thread.
  */
 public abstract class RandomGenerator {
     // indirizzo utilizzato per il recupero di valori casuali
     public static final String web_address = "https://www.random.org/decimal-fractions/?num=1&dec=20&col=1&format=plain&rnd=new";
+    // tempo massimo di attesa della risposta del servizio esterno
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    private static final HttpClient client = HttpClient.newBuilder().connectTimeout(timeout).build();
 
     /**
      * Contatta il servizio esterno per ottenere un valore casuale e lo restituisce come numero double.
@@ -25,17 +32,14 @@ public abstract class RandomGenerator {
      */
     public static double generateRandomValue() {
         try {
-            URL url = new URL(web_address);
-            URLConnection url_conn = url.openConnection();
-
-            // apro uno stream
-            BufferedReader buf_read = new BufferedReader(new InputStreamReader(url_conn.getInputStream()));
-            String body = buf_read.readLine();
-            buf_read.close();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(web_address)).timeout(timeout).GET().build();
+            String body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
 
-            return Double.parseDouble(body);
+            return Double.parseDouble(body.trim());
         } catch(IOException | NumberFormatException e) {
             System.err.println("[!] Errore durante generazione di valore casuale. Motivo: " + e.getLocalizedMessage());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         return 0;
     }
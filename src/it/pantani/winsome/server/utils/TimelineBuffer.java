@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.utils;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Timeline di un utente: gli id dei post più recenti del suo feed, ordinati, in un buffer circolare di capacità fissa.
+ * I post nuovi hanno l'id più grande e vengono aggiunti in fondo, facendo uscire dall'inizio il più vecchio; i rewin
+ * di post meno recenti sono inseriti al loro posto, spostando solo gli id più grandi.
+ * Il buffer ricorda anche un "pavimento": sotto quell'id la timeline può non essere completa, perché i post sono
+ * usciti dal buffer o non ci sono mai entrati. Gli id maggiori o uguali al pavimento sono invece tutti presenti (a
+ * parte quelli che chi usa la timeline ha scelto di non inserire).
+ * Tutti i metodi sono sincronizzati sul buffer; le operazioni costano al più O(capacità).
+ */
+public class TimelineBuffer {
+    private final int[] ids;
+    private int start; // posizione nell'array del primo id (il più piccolo)
+    private int size;
+    private int floor;
+    private volatile boolean ready; // vero quando la timeline è stata riempita per la prima volta
+
+    /**
+     * @param capacity il numero massimo di id nella timeline
+     */
+    public TimelineBuffer(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacita' non valida: " + capacity);
+        this.ids = new int[capacity];
+        this.start = 0;
+        this.size = 0;
+        this.floor = 0;
+        this.ready = false;
+    }
+
+    /**
+     * Inserisce un id al suo posto, se non è già presente. Se il buffer è pieno esce l'id più piccolo (oppure non
+     * entra quello nuovo, se è il più piccolo) e il pavimento si alza di conseguenza.
+     * @param post_id l'id da inserire
+     */
+    public synchronized void add(int post_id) {
+        if(post_id < floor) return;
+        int pos = search(post_id);
+        if(pos < size && at(pos) == post_id) return;
+
+        if(size == ids.length) {
+            if(pos == 0) { // più vecchio di tutti quelli presenti: resta fuori dalla timeline
+                floor = post_id + 1;
+                return;
+            }
+            floor = at(0) + 1;
+            start = (start + 1) % ids.length;
+            size--;
+            pos--;
+        }
+        for(int i = size; i > pos; i--) {
+            set(i, at(i - 1));
+        }
+        set(pos, post_id);
+        size++;
+    }
+
+    /**
+     * Rimuove gli id che soddisfano una condizione; il pavimento non cambia
+     * @param filter la condizione
+     */
+    public synchronized void removeIf(IntPredicate filter) {
+        int kept = 0;
+        for(int i = 0; i < size; i++) {
+            int id = at(i);
+            if(!filter.test(id)) set(kept++, id);
+        }
+        size = kept;
+    }
+
+    /**
+     * Alza il pavimento (non lo abbassa mai), togliendo gli id che finiscono sotto di esso
+     * @param new_floor il nuovo pavimento
+     */
+    public synchronized void raiseFloor(int new_floor) {
+        if(new_floor <= floor) return;
+        floor = new_floor;
+        int pos = search(new_floor);
+        start = (start + pos) % ids.length;
+        size -= pos;
+    }
+
+    /**
+     * @return l'id sotto il quale la timeline può non essere completa, 0 se è completa
+     */
+    public synchronized int getFloor() {
+        return floor;
+    }
+
+    /**
+     * Copia gli id minori di before, dal più grande al più piccolo
+     * @param before il limite, escluso
+     * @return gli id in ordine decrescente
+     */
+    public synchronized int[] copyBefore(int before) {
+        int end = search(before);
+        int[] ret = new int[end];
+        for(int i = 0; i < end; i++) {
+            ret[i] = at(end - 1 - i);
+        }
+        return ret;
+    }
+
+    /**
+     * @return vero se la timeline è stata riempita e può essere letta
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Segnala che la timeline è stata riempita e può essere letta
+     */
+    public void setReady() {
+        ready = true;
+    }
+
+    /**
+     * @return la posizione (logica) del primo id maggiore o uguale a post_id, size se non ce ne sono
+     */
+    private int search(int post_id) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(at(mid) < post_id) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+
+    private int at(int i) {
+        return ids[(start + i) % ids.length];
+    }
+
+    private void set(int i, int post_id) {
+        ids[(start + i) % ids.length] = post_id;
+    }
+}
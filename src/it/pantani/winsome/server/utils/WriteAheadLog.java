@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.server.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Registro binario (write-ahead log) delle modifiche fatte al social. Ogni modifica viene aggiunta in fondo al
+ * segmento corrente e chi la registra attende che sia stata scritta su disco prima di rispondere al client: in questo
+ * modo quello che è stato confermato sopravvive anche ad una chiusura improvvisa del server. Le scritture su disco sono
+ * fatte da un solo thread che raccoglie tutti i record arrivati nel frattempo e li scrive con una sola write e una
+ * sola force (group commit), quindi il costo della sincronizzazione con il disco è diviso tra più richieste.
+ * Il registro è diviso in segmenti (file "wal-n.log"). Ad ogni salvataggio periodico si passa ad un nuovo segmento e,
+ * a salvataggio completato, quelli precedenti sono cancellati perché il loro contenuto è già nei file json.
+ * All'avvio, dopo aver caricato i file json, i segmenti rimasti vengono rieseguiti in ordine.
+ * Se la scrittura di un gruppo fallisce i suoi record non sono confermati (awaitDurable restituisce falso) e il
+ * segmento, che può contenere un record scritto a metà, viene abbandonato: il gruppo successivo è scritto su un nuovo
+ * segmento. Le attese usano ReentrantLock e Condition invece di synchronized e wait, così un virtual thread che
+ * attende la scrittura su disco lascia libero il suo carrier thread.
+ * Formato di un record: [lunghezza del contenuto (int)][crc32 di tipo e contenuto (int)][tipo (byte)][contenuto]
+ */
+public class WriteAheadLog implements Runnable {
+    private static final String WAL_FOLDER_NAME = "data/wal"; // cartella dei segmenti
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + 1;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024; // un record più grande è sicuramente corrotto
+    private static final int MAX_LOST_RANGES = 1024; // gli intervalli più vecchi non hanno più nessuno in attesa
+
+    // tipi di record
+    public static final byte REGISTER = 1;
+    public static final byte FOLLOW = 2;
+    public static final byte UNFOLLOW = 3;
+    public static final byte POST = 4;
+    public static final byte VOTE = 5;
+    public static final byte COMMENT = 6;
+    public static final byte REWIN = 7;
+    public static final byte DELETE = 8;
+    public static final byte TRANSACTION = 9;
+    public static final byte REWARDS_CYCLE = 10;
+
+    private final Path folder;
+
+    // protetti da lock: i record in attesa di essere scritti, i contatori dei record aggiunti e di quelli elaborati dal
+    // thread del registro e gli intervalli [primo, ultimo] di numeri di sequenza la cui scrittura è fallita
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition(); // ci sono record da scrivere o il registro è chiuso
+    private final Condition written = lock.newCondition(); // durable è avanzato
+    private ByteArrayOutputStream pending;
+    private long appended;
+    private long durable;
+    private final ArrayDeque<long[]> lost;
+    private boolean closed;
+
+    // protetti da channelLock: il segmento su cui scrive il thread del registro, e se è stato abbandonato dopo un errore
+    private final ReentrantLock channelLock = new ReentrantLock();
+    private FileChannel channel;
+    private int segment;
+    private boolean broken;
+
+    /**
+     * Crea la cartella dei segmenti se non esiste. Il registro non accetta record finché non viene chiamato open(),
+     * da fare dopo aver rieseguito i segmenti esistenti con replay().
+     * @throws IOException se non è possibile creare la cartella
+     */
+    public WriteAheadLog() throws IOException {
+        folder = Paths.get(WAL_FOLDER_NAME);
+        Files.createDirectories(folder);
+        pending = new ByteArrayOutputStream();
+        appended = 0;
+        durable = 0;
+        lost = new ArrayDeque<>();
+        closed = true;
+        segment = 0;
+        broken = false;
+    }
+
+    /**
+     * Oggetto che riesegue i record letti dal registro all'avvio
+     */
+    public interface Replayer {
+        /**
+         * Riesegue un record
+         * @param type il tipo del record
+         * @param record il contenuto del record
+         * @throws IOException se il contenuto del record non è valido
+         */
+        void replay(byte type, RecordReader record) throws IOException;
+    }
+
+    /**
+     * Legge tutti i segmenti presenti in ordine e ne riesegue i record. Se un segmento termina con un record
+     * incompleto o corrotto (per esempio per una chiusura improvvisa durante la scrittura) la lettura di quel
+     * segmento si ferma lì: quel record non era ancora stato confermato.
+     * @param replayer l'oggetto che riesegue i record
+     * @return il numero di record rieseguiti
+     * @throws IOException in caso di errori di lettura
+     */
+    public int replay(Replayer replayer) throws IOException {
+        int count = 0;
+        for(int n : listSegments()) {
+            Path path = segmentPath(n);
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                CRC32 crc = new CRC32();
+                byte[] header = new byte[HEADER_SIZE];
+                while(true) {
+                    if(!readFully(in, header)) break; // fine del segmento
+                    ByteBuffer h = ByteBuffer.wrap(header);
+                    int length = h.getInt();
+                    int checksum = h.getInt();
+                    byte type = h.get();
+                    if(length < 0 || length > MAX_RECORD_SIZE) {
+                        System.err.println("[!] Record non valido nel segmento '" + path + "', ignoro il resto del segmento.");
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    if(!readFully(in, payload)) {
+                        System.err.println("[!] Record incompleto alla fine del segmento '" + path + "', ignorato.");
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload);
+                    if((int) crc.getValue() != checksum) {
+                        System.err.println("[!] Record corrotto nel segmento '" + path + "', ignoro il resto del segmento.");
+                        break;
+                    }
+
+                    replayer.replay(type, new RecordReader(payload));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Apre un nuovo segmento, successivo a quelli esistenti, su cui verranno scritti i nuovi record. Il thread del
+     * registro va avviato dopo questo metodo.
+     * @throws IOException se non è possibile creare il segmento
+     */
+    public void open() throws IOException {
+        ArrayList<Integer> segments = listSegments();
+        int next = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        channelLock.lock();
+        try {
+            channel = FileChannel.open(segmentPath(next), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segment = next;
+        } finally {
+            channelLock.unlock();
+        }
+        lock.lock();
+        try {
+            closed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ciclo del thread del registro: attende che ci siano record da scrivere, li scrive tutti insieme sul segmento
+     * corrente, forza la scrittura su disco e sveglia i thread che aspettavano quei record, segnando come persi quelli
+     * la cui scrittura è fallita.
+     */
+    public void run() {
+        while(true) {
+            byte[] batch;
+            long from;
+            long upTo;
+            lock.lock();
+            try {
+                while(pending.size() == 0 && !closed) {
+                    hasPending.awaitUninterruptibly();
+                }
+                if(pending.size() == 0) break; // registro chiuso e niente da scrivere
+                batch = pending.toByteArray();
+                pending.reset();
+                from = durable + 1;
+                upTo = appended;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean ok = write(batch);
+
+            lock.lock();
+            try {
+                if(!ok) addLost(from, upTo);
+                durable = upTo;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        channelLock.lock();
+        try {
+            channel.close();
+        } catch(IOException ignored) {
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Scrive un gruppo di record sul segmento corrente e forza la scrittura su disco. Se il segmento è stato abbandonato
+     * per un errore precedente ne apre prima uno nuovo.
+     * @param batch i record da scrivere
+     * @return vero se i record sono su disco, falso se la scrittura è fallita
+     */
+    private boolean write(byte[] batch) {
+        channelLock.lock();
+        try {
+            if(broken) {
+                FileChannel next = FileChannel.open(segmentPath(segment + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                try {
+                    channel.close();
+                } catch(IOException ignored) { }
+                channel = next;
+                segment++;
+                broken = false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            return true;
+        } catch(IOException e) {
+            // il segmento può contenere un record scritto a metà: al riavvio la lettura si fermerebbe lì, quindi i record
+            // successivi vanno scritti su un nuovo segmento. Le modifiche restano comunque in memoria e finiranno nel
+            // prossimo salvataggio
+            System.err.println("[!] Errore di scrittura del write-ahead log: " + e.getLocalizedMessage());
+            broken = true;
+            return false;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Segna come persi i record da from a upTo, unendoli all'ultimo intervallo se sono consecutivi. Va chiamato
+     * tenendo lock.
+     */
+    private void addLost(long from, long upTo) {
+        long[] last = lost.peekLast();
+        if(last != null && last[1] == from - 1) {
+            last[1] = upTo;
+            return;
+        }
+        if(lost.size() == MAX_LOST_RANGES) lost.removeFirst();
+        lost.addLast(new long[] { from, upTo });
+    }
+
+    /**
+     * Aggiunge un record al registro, senza attendere che sia scritto su disco. Se il registro è chiuso il record
+     * viene ignorato.
+     * @param record il record da aggiungere
+     * @return il numero di sequenza del record, da passare ad awaitDurable(); 0 se il record è stato ignorato
+     */
+    public long append(RecordWriter record) {
+        byte[] payload = record.bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record.type);
+        crc.update(payload);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length).putInt((int) crc.getValue()).put(record.type);
+
+        lock.lock();
+        try {
+            if(closed) return 0;
+            pending.write(header.array(), 0, HEADER_SIZE);
+            pending.write(payload, 0, payload.length);
+            hasPending.signal();
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Attende che il thread del registro abbia scritto il record con il numero di sequenza indicato (e quindi anche
+     * tutti quelli precedenti)
+     * @param seq il numero di sequenza restituito da append()
+     * @return vero se il record è su disco, falso se la sua scrittura è fallita
+     */
+    public boolean awaitDurable(long seq) {
+        lock.lock();
+        try {
+            while(durable < seq) {
+                written.awaitUninterruptibly();
+            }
+            for(long[] range : lost) {
+                if(seq >= range[0] && seq <= range[1]) return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passa ad un nuovo segmento. Tutti i record aggiunti dopo la chiamata finiscono nel nuovo segmento. Il social lo
+     * chiama mentre cattura lo snapshot da salvare, quando nessuna modifica è in corso: i segmenti precedenti
+     * contengono quindi esattamente le modifiche comprese nello snapshot.
+     * @return il numero del nuovo segmento
+     * @throws IOException se non è possibile creare il nuovo segmento
+     */
+    public int rotate() throws IOException {
+        channelLock.lock();
+        try {
+            FileChannel next = FileChannel.open(segmentPath(segment + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                if(!broken) channel.force(false);
+                channel.close();
+            } catch(IOException e) { // il vecchio segmento è comunque compreso nello snapshot che si sta catturando
+                System.err.println("[!] Errore di chiusura del segmento del write-ahead log: " + e.getLocalizedMessage());
+            }
+            channel = next;
+            segment++;
+            broken = false;
+            return segment;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Cancella i segmenti precedenti a quello indicato, da chiamare quando il loro contenuto è stato salvato
+     * @param first_to_keep il primo segmento da non cancellare
+     */
+    public void deleteSegmentsBefore(int first_to_keep) {
+        try {
+            for(int n : listSegments()) {
+                if(n < first_to_keep) Files.deleteIfExists(segmentPath(n));
+            }
+        } catch(IOException e) {
+            System.err.println("[!] Impossibile cancellare i vecchi segmenti del write-ahead log: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Chiude il registro: i record già aggiunti vengono scritti, quelli successivi ignorati. Il thread del registro
+     * termina dopo aver chiuso il segmento.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path segmentPath(int n) {
+        return folder.resolve(SEGMENT_PREFIX + n + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Fornisce i numeri dei segmenti presenti nella cartella, in ordine crescente
+     * @return la lista ordinata dei numeri dei segmenti
+     * @throws IOException in caso di errori nella lettura della cartella
+     */
+    private ArrayList<Integer> listSegments() throws IOException {
+        ArrayList<Integer> ret = new ArrayList<>();
+        File[] files = folder.toFile().listFiles();
+        if(files == null) throw new IOException("impossibile leggere la cartella '" + folder + "'");
+        for(File f : files) {
+            String name = f.getName();
+            if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                ret.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch(NumberFormatException ignored) { }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Legge esattamente buffer.length byte
+     * @return vero se i byte sono stati letti, falso se lo stream è finito prima
+     */
+    private static boolean readFully(DataInputStream in, byte[] buffer) throws IOException {
+        try {
+            in.readFully(buffer);
+            return true;
+        } catch(EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Costruisce il contenuto di un record
+     */
+    public static class RecordWriter {
+        private final byte type;
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        public RecordWriter(byte type) {
+            this.type = type;
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(bytes);
+        }
+
+        public RecordWriter putInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch(IOException ignored) { } // non succede con un ByteArrayOutputStream
+            return this;
+        }
+
+        public RecordWriter putLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch(IOException ignored) { }
+            return this;
+        }
+
+        public RecordWriter putDouble(double value) {
+            try {
+                out.writeDouble(value);
+            } catch(IOException ignored) { }
+            return this;
+        }
+
+        public RecordWriter putString(String value) {
+            byte[] b = value.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            bytes.write(b, 0, b.length);
+            return this;
+        }
+    }
+
+    /**
+     * Legge il contenuto di un record, nello stesso ordine in cui è stato scritto
+     */
+    public static class RecordReader {
+        private final ByteBuffer buffer;
+
+        RecordReader(byte[] payload) {
+            this.buffer = ByteBuffer.wrap(payload);
+        }
+
+        public int getInt() throws IOException {
+            if(buffer.remaining() < Integer.BYTES) throw new IOException("record troppo corto");
+            return buffer.getInt();
+        }
+
+        public long getLong() throws IOException {
+            if(buffer.remaining() < Long.BYTES) throw new IOException("record troppo corto");
+            return buffer.getLong();
+        }
+
+        public double getDouble() throws IOException {
+            if(buffer.remaining() < Double.BYTES) throw new IOException("record troppo corto");
+            return buffer.getDouble();
+        }
+
+        public String getString() throws IOException {
+            int length = getInt();
+            if(length < 0 || length > buffer.remaining()) throw new IOException("stringa non valida nel record");
+            String ret = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return ret;
+        }
+    }
+}
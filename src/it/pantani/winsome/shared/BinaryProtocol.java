@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2021/2022
+ * Leonardo Pantani - 598896
+ * University of Pisa - Department of Computer Science
+ */
+
+package it.pantani.winsome.shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Protocollo binario tra client e server, alternativo a quello testuale di Utils.send/Utils.receive. Il client lo
+ * richiede inviando HELLO appena collegato (il primo byte è 0, che non può iniziare una richiesta testuale) e il
+ * server lo conferma rispondendo con gli stessi byte; i client che non lo inviano continuano ad usare il protocollo
+ * testuale.
+ * Ogni messaggio (frame) è formato da: lunghezza del resto del frame (4 byte, big endian), codice dell'operazione
+ * (1 byte), id della richiesta (varint) e argomenti. Gli id dei post e i voti sono interi a lunghezza variabile (varint,
+ * 7 bit per byte), le stringhe sono la loro lunghezza in byte (varint) seguita dal testo in UTF-8. Le risposte del
+ * server sono frame OP_REPLY con l'id della richiesta a cui rispondono e il testo della risposta in UTF-8 (senza
+ * lunghezza, occupa il resto del frame).
+ * L'id della richiesta è scelto dal client e permette di inviare più richieste di seguito senza attendere ogni
+ * risposta (pipelining): il server le elabora nell'ordine di arrivo, ma il client associa ogni risposta alla sua
+ * richiesta tramite l'id e non tramite l'ordine.
+ */
+public abstract class BinaryProtocol {
+    public static final byte[] HELLO = { 0, 'W', 'S', 2 }; // l'ultimo byte è la versione del protocollo
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final int HEADER_LENGTH = Integer.BYTES;
+
+    // codici delle operazioni
+    public static final byte OP_TEXT = 0; // richiesta testuale incapsulata, per i comandi che il client non sa codificare
+    public static final byte OP_LOGIN = 1; // username, password
+    public static final byte OP_LOGOUT = 2;
+    public static final byte OP_LISTUSERS = 3;
+    public static final byte OP_LISTFOLLOWING = 4;
+    public static final byte OP_FOLLOW = 5; // username
+    public static final byte OP_UNFOLLOW = 6; // username
+    public static final byte OP_POST = 7; // titolo, contenuto
+    public static final byte OP_BLOG = 8;
+    public static final byte OP_REWIN = 9; // id post
+    public static final byte OP_RATE = 10; // id post, voto (con segno, zigzag)
+    public static final byte OP_SHOWFEED = 11;
+    public static final byte OP_SHOWPOST = 12; // id post
+    public static final byte OP_COMMENT = 13; // id post, testo
+    public static final byte OP_DELETE = 14; // id post
+    public static final byte OP_WALLET = 15;
+    public static final byte OP_WALLETBTC = 16;
+    public static final byte OP_RATE_MANY = 17; // voto (con segno, zigzag), numero di post, id dei post
+    public static final byte OP_FOLLOW_MANY = 18; // numero di utenti, username
+    public static final byte OP_UNFOLLOW_MANY = 19; // numero di utenti, username
+    public static final byte OP_SHOWFEED_PAGE = 20; // numero di post, id del post prima del quale termina la pagina
+    public static final byte OP_BLOG_PAGE = 21; // come OP_SHOWFEED_PAGE
+    public static final byte OP_REPLY = 64; // risposta del server
+
+    private static final Pattern POST_ARGUMENTS = Pattern.compile("\"([^\"]*)\"");
+
+    /**
+     * Codifica una richiesta scritta come nel protocollo testuale (per esempio "rate 3 +1"). Se il comando non è
+     * conosciuto o gli argomenti non sono validi, la richiesta viene incapsulata così com'è in un frame OP_TEXT: il
+     * server la tratta come una richiesta testuale e risponde con il solito messaggio di errore.
+     * @param request_id l'id della richiesta, che il server riporterà nella risposta
+     * @param raw_request la richiesta testuale
+     * @return il frame da inviare al server
+     */
+    public static byte[] encodeRequest(int request_id, String raw_request) {
+        String[] temp = raw_request.split(" ");
+        String[] arguments = Arrays.copyOfRange(temp, 1, temp.length);
+        FrameWriter w = new FrameWriter(request_id);
+        try {
+            switch(temp[0]) {
+                case "login":
+                    if(arguments.length != 2) break;
+                    return w.op(OP_LOGIN).string(arguments[0]).string(arguments[1]).toFrame();
+                case "logout": return w.op(OP_LOGOUT).toFrame();
+                case "listusers": return w.op(OP_LISTUSERS).toFrame();
+                case "listfollowing": return w.op(OP_LISTFOLLOWING).toFrame();
+                case "wallet": return w.op(OP_WALLET).toFrame();
+                case "walletbtc": return w.op(OP_WALLETBTC).toFrame();
+                case "blog":
+                case "showfeed": {
+                    boolean blog = temp[0].equals("blog");
+                    if(arguments.length == 0) return w.op(blog ? OP_BLOG : OP_SHOWFEED).toFrame();
+                    if(arguments.length > 2) break;
+                    int limit = Integer.parseInt(arguments[0]);
+                    int before = (arguments.length == 2) ? Integer.parseInt(arguments[1]) : Integer.MAX_VALUE;
+                    if(limit <= 0 || before < 0) break;
+                    return w.op(blog ? OP_BLOG_PAGE : OP_SHOWFEED_PAGE).varint(limit).varint(before).toFrame();
+                }
+                case "follow":
+                case "unfollow": {
+                    if(arguments.length == 0) break;
+                    boolean follow = temp[0].equals("follow");
+                    if(arguments.length == 1) return w.op(follow ? OP_FOLLOW : OP_UNFOLLOW).string(arguments[0]).toFrame();
+                    w.op(follow ? OP_FOLLOW_MANY : OP_UNFOLLOW_MANY).varint(arguments.length);
+                    for(String u : arguments) {
+                        w.string(u);
+                    }
+                    return w.toFrame();
+                }
+                case "rewin":
+                case "showpost":
+                case "delete": {
+                    if(arguments.length != 1) break;
+                    int post_id = Integer.parseInt(arguments[0]);
+                    if(post_id < 0) break;
+                    byte op = temp[0].equals("rewin") ? OP_REWIN : temp[0].equals("showpost") ? OP_SHOWPOST : OP_DELETE;
+                    return w.op(op).varint(post_id).toFrame();
+                }
+                case "rate": {
+                    // l'ultimo argomento è il voto, quelli precedenti sono gli id dei post
+                    if(arguments.length < 2) break;
+                    int vote = Integer.parseInt(arguments[arguments.length - 1]);
+                    int[] post_ids = new int[arguments.length - 1];
+                    for(int i = 0; i < post_ids.length; i++) {
+                        post_ids[i] = Integer.parseInt(arguments[i]);
+                    }
+                    if(Arrays.stream(post_ids).anyMatch(id -> id < 0)) break;
+                    if(post_ids.length == 1) return w.op(OP_RATE).varint(post_ids[0]).signedVarint(vote).toFrame();
+                    w.op(OP_RATE_MANY).signedVarint(vote).varint(post_ids.length);
+                    for(int post_id : post_ids) {
+                        w.varint(post_id);
+                    }
+                    return w.toFrame();
+                }
+                case "comment": {
+                    if(arguments.length < 2) break;
+                    int post_id = Integer.parseInt(arguments[0]);
+                    if(post_id < 0) break;
+                    // come nel protocollo testuale, il commento è il resto della richiesta dal terzo elemento
+                    return w.op(OP_COMMENT).varint(post_id).string(String.join(" ", Arrays.asList(temp).subList(2, temp.length))).toFrame();
+                }
+                case "post": {
+                    if(raw_request.chars().filter(ch -> ch == '"').count() % 2 != 0) break;
+                    Matcher m = POST_ARGUMENTS.matcher(raw_request);
+                    ArrayList<String> text = new ArrayList<>();
+                    while(m.find()) {
+                        text.add(m.group(1));
+                    }
+                    if(text.size() != 1 && text.size() != 2) break;
+                    return w.op(OP_POST).string(text.get(0)).string(text.size() == 2 ? text.get(1) : "").toFrame();
+                }
+            }
+        } catch(NumberFormatException ignored) { } // argomento non numerico: lo segnala il server
+        return new FrameWriter(request_id).op(OP_TEXT).raw(raw_request.getBytes(StandardCharsets.UTF_8)).toFrame();
+    }
+
+    /**
+     * Codifica una risposta del server
+     * @param request_id l'id della richiesta a cui si risponde
+     * @param message il testo della risposta
+     * @return il frame da inviare al client
+     */
+    public static byte[] encodeReply(int request_id, String message) {
+        return new FrameWriter(request_id).op(OP_REPLY).raw(message.getBytes(StandardCharsets.UTF_8)).toFrame();
+    }
+
+    /**
+     * Lato client: richiede il protocollo binario e attende la conferma del server
+     * @param in lo stream da cui leggere la conferma
+     * @param out lo stream su cui inviare la richiesta
+     * @throws IOException se il server non conferma il protocollo o la connessione si interrompe
+     */
+    public static void negotiate(InputStream in, OutputStream out) throws IOException {
+        out.write(HELLO);
+        out.flush();
+        byte[] ack = in.readNBytes(HELLO.length);
+        if(!Arrays.equals(ack, HELLO)) throw new IOException("il server non supporta il protocollo binario");
+    }
+
+    /**
+     * Legge un frame completo da uno stream
+     * @param in lo stream da cui leggere
+     * @return il contenuto del frame (codice dell'operazione e argomenti), pronto per essere letto
+     * @throws IOException se la connessione si interrompe o la lunghezza del frame non è valida
+     */
+    public static ByteBuffer readFrame(InputStream in) throws IOException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if(header.length < HEADER_LENGTH) throw new EOFException();
+        int length = ByteBuffer.wrap(header).getInt();
+        if(length < 1 || length > MAX_FRAME_LENGTH) throw new IOException("lunghezza del frame non valida (" + length + ")");
+        byte[] body = in.readNBytes(length);
+        if(body.length < length) throw new EOFException();
+        return ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Legge una risposta del server
+     * @param in lo stream da cui leggere
+     * @return la risposta, con l'id della richiesta a cui si riferisce
+     * @throws IOException se la connessione si interrompe o il frame non è una risposta
+     */
+    public static Reply readReply(InputStream in) throws IOException {
+        ByteBuffer frame = readFrame(in);
+        try {
+            if(frame.get() != OP_REPLY) throw new IOException("risposta del server non valida");
+            int request_id = getVarint(frame);
+            return new Reply(request_id, remainingString(frame));
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("risposta del server non valida");
+        }
+    }
+
+    /**
+     * Legge un intero senza segno a lunghezza variabile
+     * @param buffer il buffer da cui leggere
+     * @return l'intero letto
+     * @throws BufferUnderflowException se il buffer finisce prima dell'intero
+     * @throws IllegalArgumentException se l'intero occupa più di 5 byte
+     */
+    public static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) return value;
+        }
+        throw new IllegalArgumentException("varint troppo lungo");
+    }
+
+    /**
+     * Legge il numero di elementi di una lista. Ogni elemento occupa almeno un byte, quindi un numero maggiore dei
+     * byte rimasti nel frame non è valido (e non fa allocare array enormi a chi legge).
+     * @param buffer il buffer da cui leggere
+     * @return il numero di elementi
+     * @throws BufferUnderflowException se il numero non è valido
+     */
+    public static int getCount(ByteBuffer buffer) {
+        int count = getVarint(buffer);
+        if(count < 0 || count > buffer.remaining()) throw new BufferUnderflowException();
+        return count;
+    }
+
+    /**
+     * Legge un intero con segno a lunghezza variabile (codifica zigzag)
+     * @param buffer il buffer da cui leggere
+     * @return l'intero letto
+     */
+    public static int getSignedVarint(ByteBuffer buffer) {
+        int v = getVarint(buffer);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Legge una stringa (lunghezza in byte e testo in UTF-8), decodificandola in un'unica operazione
+     * @param buffer il buffer da cui leggere
+     * @return la stringa letta
+     * @throws BufferUnderflowException se il buffer contiene meno byte di quelli indicati
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        if(length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return ret;
+    }
+
+    /**
+     * Legge come stringa UTF-8 tutti i byte rimanenti del buffer
+     * @param buffer il buffer da cui leggere
+     * @return la stringa letta
+     */
+    public static String remainingString(ByteBuffer buffer) {
+        String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        buffer.position(buffer.limit());
+        return ret;
+    }
+
+    /**
+     * Risposta del server letta da readReply()
+     */
+    public static class Reply {
+        public final int requestId;
+        public final String text;
+
+        private Reply(int requestId, String text) {
+            this.requestId = requestId;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Costruisce un frame in un array che cresce secondo necessità; l'intestazione con la lunghezza è scritta da
+     * toFrame()
+     */
+    private static class FrameWriter {
+        private final int requestId;
+        private byte[] buf = new byte[64];
+        private int pos = HEADER_LENGTH;
+
+        private FrameWriter(int requestId) {
+            this.requestId = requestId;
+        }
+
+        private FrameWriter op(byte op) { // l'id della richiesta segue sempre il codice dell'operazione
+            ensure(1);
+            buf[pos++] = op;
+            return varint(requestId);
+        }
+
+        private FrameWriter varint(int value) {
+            ensure(5);
+            while((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+            return this;
+        }
+
+        private FrameWriter signedVarint(int value) {
+            return varint((value << 1) ^ (value >> 31));
+        }
+
+        private FrameWriter string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            return varint(bytes.length).raw(bytes);
+        }
+
+        private FrameWriter raw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+            return this;
+        }
+
+        private void ensure(int n) {
+            if(pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        private byte[] toFrame() {
+            ByteBuffer.wrap(buf).putInt(pos - HEADER_LENGTH);
+            return (pos == buf.length) ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+}
@@ -56,9 +56,19 @@ public class ConfigManager {
                 prop.setProperty("percentage_reward_author", "70"); // percentuale del premio di un post dell'autore
                 prop.setProperty("percentage_reward_curator", "30"); // percentuale del premio di un post del curatore
                 prop.setProperty("rewards_check_timeout", "15000"); // tempo che il RewardsManager dovrà attendere ogni volta che fa un controllo prima di farne un altro
+                prop.setProperty("rewards_threads", String.valueOf(Runtime.getRuntime().availableProcessors())); // numero di thread su cui il RewardsManager divide il calcolo dei premi di un ciclo
                 prop.setProperty("max_timeout_pool_shutdown", "30000"); // tempo (in millisecondi) che il main attenderà prima di chiudere forzatamente la pool di thread ConnectionHandler
+                prop.setProperty("wal_enabled", "true"); // se "true" ogni modifica è registrata su disco nel write-ahead log prima di rispondere al client, e viene recuperata al riavvio anche dopo una chiusura improvvisa
+                prop.setProperty("wallet_balance_check", "true"); // se "true" all'avvio verifica che il bilancio salvato di ogni portafoglio corrisponda alla somma delle sue transazioni
+                prop.setProperty("timeline_fanout", "false"); // se "true" il feed di chi lo legge è costruito in anticipo, distribuendo ogni post nelle timeline dei follower dell'autore
+                prop.setProperty("timeline_capacity", "500"); // [solo con timeline_fanout] numero di post più recenti tenuti nella timeline di ogni utente
+                prop.setProperty("timeline_max_followers", "5000"); // [solo con timeline_fanout] i post degli autori con più follower di questo numero sono letti al momento invece che distribuiti
+                prop.setProperty("server_io_mode", "thread"); // gestione delle connessioni: "thread" (un thread per connessione), "nio" (selector) oppure "virtual" (un virtual thread per connessione, Java 21+)
+                prop.setProperty("nio_reactor_threads", "2"); // [solo modalità nio] numero di thread che gestiscono l'I/O dei socket
+                prop.setProperty("nio_worker_threads", String.valueOf(Runtime.getRuntime().availableProcessors())); // [solo modalità nio] numero di thread che elaborano le richieste
                 prop.setProperty("last_rewards_check", "0"); // [da non modificare] data UNIX dell'ultimo controllo del RewardsManager
                 prop.setProperty("last_post_id", "0"); // [da non modificare] contatore dell'ultimo post di WinSome
+                prop.setProperty("rewards_cycle_count", "0"); // [da non modificare] numero di cicli di calcolo dei premi effettuati dal RewardsManager
             } else {
                 prop.setProperty("server_address", "localhost"); // indirizzo del server
                 prop.setProperty("server_port", "6789"); // porta del server
@@ -68,6 +78,7 @@ public class ConfigManager {
                 prop.setProperty("server_rmi_callback_registry_name", "winsome-server-callback"); // nome registro callback RMI
                 prop.setProperty("multicast_server_address", "224.0.0.1"); // indirizzo multicast per le notifiche
                 prop.setProperty("multicast_server_port", "6788"); // porta del multicast per le notifiche
+                prop.setProperty("client_protocol", "text"); // protocollo di comunicazione col server: "text" oppure "binary" (più compatto)
             }
             prop.store(out, CONFIG_COMMENT);
             out.close();
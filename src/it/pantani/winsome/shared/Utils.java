@@ -9,6 +9,8 @@ package it.pantani.winsome.shared;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -27,6 +29,16 @@ public abstract class Utils {
     public static final String SOCIAL_LOGIN_SUCCESS = "login ok";
     public static final String SOCIAL_LOGOUT_SUCCESS = "logout ok";
 
+    // il formattatore è immutabile e quindi condiviso da tutti i thread (il fuso orario è quello all'avvio)
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM)
+                                                                            .withLocale(Locale.ITALY)
+                                                                            .withZone(ZoneId.systemDefault());
+    // ultime date formattate, una per cella in base al secondo: le transazioni di un ciclo dei premi o i post di uno
+    // stesso momento condividono lo stesso secondo e quindi la stessa stringa. Le celle sono scritte senza lock, ma
+    // contengono oggetti immutabili: nel caso peggiore un thread non vede la data appena formattata da un altro
+    private static final int DATE_CACHE_SIZE = 256;
+    private static final FormattedDate[] DATE_CACHE = new FormattedDate[DATE_CACHE_SIZE];
+
     /**
      * Permette di inviare una stringa su uno stream.
      * @param out lo stream su cui inviare la stringa
@@ -34,8 +46,9 @@ public abstract class Utils {
      */
     public static void send(PrintWriter out, String send) {
         int bytes = send.getBytes().length;
-        out.println(bytes); // invio prima la lunghezza della stringa...
-        out.print(send); // ... e poi la invio
+        // lunghezza e stringa partono con una sola scrittura: inviate separatamente, la seconda attenderebbe la
+        // conferma della prima (algoritmo di Nagle), aggiungendo decine di millisecondi ad ogni richiesta
+        out.print(bytes + System.lineSeparator() + send);
         out.flush();
     }
 
@@ -58,15 +71,32 @@ public abstract class Utils {
             return dato;
         }
 
-        // leggo il dato in in base al numero di bytes ricevuto come primo messaggio dalla in.readLine()
+        // leggo il dato in base al numero di bytes ricevuto come primo messaggio dalla in.readLine(): il reader
+        // restituisce caratteri, quindi per ognuno conto quanti byte occupava (più di uno per i caratteri non ASCII)
+        boolean utf8 = Charset.defaultCharset().equals(StandardCharsets.UTF_8);
         int i = 0;
         while(i < l) {
-            everything.append((char)in.read());
-            i++;
+            int c = in.read();
+            if(c < 0) throw new IOException("connessione chiusa durante la ricezione");
+            everything.append((char) c);
+            i += utf8 ? utf8Length((char) c) : String.valueOf((char) c).getBytes().length;
         }
         return everything.toString();
     }
 
+    /**
+     * Fornisce il numero di byte occupati da un carattere codificato in UTF-8. I caratteri fuori dal Basic
+     * Multilingual Plane sono formati da due char (surrogati) che insieme occupano 4 byte, quindi 2 per ognuno.
+     * @param c il carattere
+     * @return il numero di byte del carattere
+     */
+    private static int utf8Length(char c) {
+        if(c < 0x80) return 1;
+        if(c < 0x800) return 2;
+        if(Character.isSurrogate(c)) return 2;
+        return 3;
+    }
+
     /**
      * Permette di leggere una stringa da console. A differenza del readLine() normale, gestisce il caso della
      * NoSuchElementException che si verifica se il programma termina mentre si è in attesa di leggere un input.
@@ -89,11 +119,14 @@ public abstract class Utils {
      * @return stringa rappresentante la data fornita in formato UNIX
      */
     public static String getFormattedDate(long date) {
-        Instant instant = Instant.ofEpochSecond(date/1000);
-        DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM)
-                                                        .withLocale(Locale.ITALY)
-                                                        .withZone(ZoneId.systemDefault());
-        return formatter.format(instant);
+        long second = Math.floorDiv(date, 1000);
+        int cell = (int) (second & (DATE_CACHE_SIZE - 1));
+        FormattedDate cached = DATE_CACHE[cell];
+        if(cached != null && cached.second == second) return cached.text;
+
+        String text = DATE_FORMATTER.format(Instant.ofEpochSecond(second));
+        DATE_CACHE[cell] = new FormattedDate(second, text);
+        return text;
     }
 
     /**
@@ -106,4 +139,17 @@ public abstract class Utils {
         double multiplier = Math.pow(10, precision);
         return Math.round(input * multiplier) / multiplier;
     }
-}
\ No newline at end of file
+
+    /**
+     * Data formattata di un secondo, elemento della cache delle date
+     */
+    private static final class FormattedDate {
+        private final long second;
+        private final String text;
+
+        private FormattedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}